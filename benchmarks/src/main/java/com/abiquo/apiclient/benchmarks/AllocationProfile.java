@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler and writes the results, including the bytes allocated
+ * per operation (<code>gc.alloc.rate.norm</code>), to <code>jmh-gc.json</code> so they can be
+ * compared between versions. Accepts the same arguments as the JMH command line.
+ * 
+ * @author Ignasi Barrera
+ */
+public class AllocationProfile
+{
+    public static void main(final String[] args) throws Exception
+    {
+        Options options = new OptionsBuilder() //
+            .parent(new CommandLineOptions(args)) //
+            .addProfiler(GCProfiler.class) //
+            .resultFormat(ResultFormatType.JSON) //
+            .result("jmh-gc.json") //
+            .build();
+
+        new Runner(options).run();
+    }
+}
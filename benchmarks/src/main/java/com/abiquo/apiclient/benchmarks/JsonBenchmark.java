@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.apiclient.json.Json;
+import com.abiquo.server.core.appslibrary.VirtualMachineTemplatesDto;
+import com.abiquo.server.core.cloud.VirtualMachinesDto;
+import com.abiquo.server.core.enterprise.EnterprisesDto;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Measures the serialization and deserialization of the API objects.
+ * <p>
+ * The <code>mapper</code> mode resolves the type on each call, as the {@link Json} class used to
+ * do, and is the baseline for the cached readers and writers of the <code>default</code> mode and
+ * the generated accessors of the <code>afterburner</code> mode.
+ * 
+ * @author Ignasi Barrera
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark
+{
+    private static final ImmutableMap<String, Class< ? >> TYPES = ImmutableMap
+        .<String, Class< ? >> of("vms.json", VirtualMachinesDto.class, //
+            "templates.json", VirtualMachineTemplatesDto.class, //
+            "ents.json", EnterprisesDto.class);
+
+    @Param({"vms.json", "templates.json", "ents.json"})
+    public String payload;
+
+    @Param({"mapper", "default", "afterburner"})
+    public String mode;
+
+    private Class< ? > type;
+
+    private String json;
+
+    private Object object;
+
+    private Codec codec;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        type = TYPES.get(payload);
+        json = Payloads.load(payload);
+
+        if ("mapper".equals(mode))
+        {
+            codec = new MapperCodec();
+        }
+        else
+        {
+            codec = new JsonCodec("afterburner".equals(mode) ? Json.withAfterburner() : new Json());
+        }
+
+        object = codec.read(json, type);
+    }
+
+    @Benchmark
+    public Object read() throws IOException
+    {
+        return codec.read(json, type);
+    }
+
+    @Benchmark
+    public String write() throws IOException
+    {
+        return codec.write(object);
+    }
+
+    private static interface Codec
+    {
+        public Object read(String json, Class< ? > type) throws IOException;
+
+        public String write(Object object) throws IOException;
+    }
+
+    private static class JsonCodec implements Codec
+    {
+        private final Json json;
+
+        public JsonCodec(final Json json)
+        {
+            this.json = json;
+        }
+
+        @Override
+        public Object read(final String str, final Class< ? > type) throws IOException
+        {
+            return json.read(str, type);
+        }
+
+        @Override
+        public String write(final Object object) throws IOException
+        {
+            return json.write(object);
+        }
+    }
+
+    // The same configuration used by the Json class, without caching the readers and writers
+    private static class MapperCodec implements Codec
+    {
+        private final ObjectMapper mapper;
+
+        public MapperCodec()
+        {
+            mapper = new ObjectMapper();
+            mapper.setVisibilityChecker(mapper.getVisibilityChecker().withFieldVisibility(
+                Visibility.ANY));
+            mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+            mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+            mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        }
+
+        @Override
+        public Object read(final String str, final Class< ? > type) throws IOException
+        {
+            return mapper.readValue(str, mapper.constructType(type));
+        }
+
+        @Override
+        public String write(final Object object) throws IOException
+        {
+            return mapper.writeValueAsString(object);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.benchmarks;
+
+import static com.abiquo.apiclient.auth.BasicAuthentication.basic;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.abiquo.apiclient.ApiClient;
+import com.abiquo.apiclient.RestClient;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * A local API server and a client connected to it, to measure the benchmarks that go through
+ * the network.
+ * 
+ * @author Ignasi Barrera
+ */
+final class MockApi implements Closeable
+{
+    private final MockWebServer server;
+
+    private final ApiClient api;
+
+    private int takenRequests;
+
+    public MockApi(final Dispatcher dispatcher) throws IOException
+    {
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.play();
+
+        api = ApiClient.builder() //
+            .endpoint(url("/api")) //
+            .authentication(basic("user", "password")) //
+            .build();
+    }
+
+    public static MockResponse jsonResponse(final String mediaType, final String body)
+    {
+        return new MockResponse() //
+            .setHeader("Content-Type", mediaType) //
+            .setBody(body);
+    }
+
+    public String url(final String path)
+    {
+        return server.getUrl(path).toString();
+    }
+
+    public RestClient client()
+    {
+        return api.getClient();
+    }
+
+    /**
+     * The mock server keeps all the requests it receives. Discard them between iterations so
+     * they do not fill the heap and distort the allocation profile.
+     */
+    public void drainRequests() throws InterruptedException
+    {
+        while (takenRequests < server.getRequestCount())
+        {
+            server.takeRequest();
+            takenRequests++;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        api.close();
+        server.shutdown();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.benchmarks;
+
+import static com.abiquo.apiclient.auth.OAuthAuthentication.oauth;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.apiclient.auth.Authentication;
+import com.abiquo.apiclient.json.Json;
+import com.abiquo.apiclient.json.JsonRequestBody;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+
+/**
+ * Measures the OAuth signature of requests with and without body.
+ * 
+ * @author Ignasi Barrera
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OAuthBenchmark
+{
+    private static final String URL =
+        "http://localhost/api/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1";
+
+    private Authentication authentication;
+
+    private Request get;
+
+    private Request put;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        authentication =
+            oauth("consumer-key", "consumer-secret", "access-token", "access-token-secret");
+
+        get = new Request.Builder().url(URL) //
+            .addHeader("Accept", VirtualMachineDto.MEDIA_TYPE) //
+            .get().build();
+
+        Json json = new Json();
+        VirtualMachineDto vm = json.read(Payloads.load("vm.json"), VirtualMachineDto.class);
+        MediaType contentType = MediaType.parse(VirtualMachineDto.MEDIA_TYPE);
+        put = new Request.Builder().url(URL) //
+            .addHeader("Accept", VirtualMachineDto.MEDIA_TYPE) //
+            .put(new JsonRequestBody(json, contentType, vm)).build();
+    }
+
+    @Benchmark
+    public Request signGet()
+    {
+        return authentication.authenticate(get);
+    }
+
+    @Benchmark
+    public Request signPut()
+    {
+        return authentication.authenticate(put);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.benchmarks;
+
+import static com.abiquo.apiclient.benchmarks.MockApi.jsonResponse;
+import static com.abiquo.apiclient.domain.PageIterator.flatten;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.apiclient.RestClient;
+import com.abiquo.apiclient.domain.PageIterator;
+import com.abiquo.apiclient.json.Json;
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+import com.abiquo.server.core.cloud.VirtualMachinesDto;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Measures the traversal of a paginated collection with the {@link PageIterator}, fetching the
+ * pages from a local server.
+ * 
+ * @author Ignasi Barrera
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageIteratorBenchmark
+{
+    private static final String PATH = "/api/cloud/virtualmachines";
+
+    @Param({"1000"})
+    public int totalSize;
+
+    @Param({"10", "100", "1000"})
+    public int pageSize;
+
+    private MockApi api;
+
+    private RestClient client;
+
+    private VirtualMachinesDto firstPage;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        final Map<String, String> pages = new ConcurrentHashMap<String, String>();
+        api = new MockApi(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request)
+            {
+                String page = pages.get(request.getPath());
+                return page == null ? new MockResponse().setResponseCode(404) : jsonResponse(
+                    VirtualMachinesDto.MEDIA_TYPE, page);
+            }
+        });
+        client = api.client();
+
+        Json json = new Json();
+        for (int start = 0; start < totalSize; start += pageSize)
+        {
+            VirtualMachinesDto page = page(start);
+            if (start == 0)
+            {
+                firstPage = page;
+            }
+            pages.put(pagePath(start), json.write(page));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void drainRequests() throws InterruptedException
+    {
+        api.drainRequests();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        api.close();
+    }
+
+    @Benchmark
+    public int traverse()
+    {
+        int count = 0;
+        for (VirtualMachineDto vm : flatten(client, firstPage))
+        {
+            count += vm.getId();
+        }
+        return count;
+    }
+
+    private VirtualMachinesDto page(final int start)
+    {
+        VirtualMachinesDto page = new VirtualMachinesDto();
+        page.setTotalSize(totalSize);
+        for (int i = start; i < Math.min(start + pageSize, totalSize); i++)
+        {
+            VirtualMachineDto vm = new VirtualMachineDto();
+            vm.setId(i);
+            vm.setName("vm-" + i);
+            vm.addLink(new RESTLink("edit", api.url(PATH + "/" + i)));
+            page.add(vm);
+        }
+        if (start + pageSize < totalSize)
+        {
+            page.addLink(new RESTLink("next", api.url(pagePath(start + pageSize))));
+        }
+        return page;
+    }
+
+    private String pagePath(final int start)
+    {
+        return PATH + "?startwith=" + start + "&limit=" + pageSize;
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.benchmarks;
+
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Loads the payloads used by the benchmarks. They are the same payloads used in the tests of the
+ * client.
+ * 
+ * @author Ignasi Barrera
+ */
+final class Payloads
+{
+    public static String load(final String resource) throws IOException
+    {
+        return Resources.toString(Resources.getResource(resource), Charsets.UTF_8);
+    }
+
+    private Payloads()
+    {
+        throw new AssertionError("Utility class. Clients shouldn't instantiate it directly.");
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.benchmarks;
+
+import static com.abiquo.apiclient.auth.BasicAuthentication.basic;
+import static com.google.common.collect.Maps.transformValues;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.apiclient.ApiClient;
+import com.abiquo.apiclient.RestClient;
+import com.abiquo.apiclient.domain.options.VirtualMachineListOptions;
+import com.abiquo.model.transport.SingleResourceTransportDto;
+import com.abiquo.server.core.cloud.VirtualMachinesDto;
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.net.HttpHeaders;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+/**
+ * Measures the construction of the GET requests sent by the {@link RestClient}.
+ * <p>
+ * The requests are answered by an interceptor with an empty response, without reaching the
+ * network, so the benchmarks measure the request construction and the fixed cost of an OkHttp
+ * call. The <code>legacy</code> benchmark reproduces how requests used to be built, parsing the
+ * URL to check if it is absolute, concatenating the version to the media type and sorting and
+ * encoding the query parameters with regular expressions, and sends them through the same
+ * client. Run it with <code>-prof gc</code> to compare the allocation rate of both approaches.
+ * 
+ * @author Ignasi Barrera
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark
+{
+    private static final String BASE_URL = "http://localhost/api";
+
+    private static final Pattern URL_ENCODED_PATTERN = Pattern
+        .compile(".*%[a-fA-F0-9][a-fA-F0-9].*");
+
+    @Param({"/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines",
+        "http://localhost/api/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines"})
+    public String uri;
+
+    private Map<String, Object> queryParams;
+
+    private ApiClient api;
+
+    private RestClient client;
+
+    @Setup
+    public void setup()
+    {
+        api =
+            ApiClient.builder().endpoint(BASE_URL).authentication(basic("user", "password"))
+                .build();
+        client = api.getClient();
+        client.rawClient().interceptors().add(new Interceptor()
+        {
+            @Override
+            public Response intercept(final Chain chain)
+            {
+                return new Response.Builder().request(chain.request())
+                    .protocol(Protocol.HTTP_1_1).code(204).message("No Content")
+                    .body(ResponseBody.create(null, new byte[0])).build();
+            }
+        });
+        queryParams =
+            VirtualMachineListOptions.builder().limit(25).start(100).has("web server")
+                .build().queryParams();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        api.close();
+    }
+
+    @Benchmark
+    public VirtualMachinesDto templated()
+    {
+        return client.get(uri, queryParams, VirtualMachinesDto.MEDIA_TYPE,
+            VirtualMachinesDto.class);
+    }
+
+    @Benchmark
+    public int legacy() throws IOException
+    {
+        Request request =
+            new Request.Builder().url(legacyAbsolute(uri) + "?" + legacyQueryLine(queryParams))
+                .addHeader(HttpHeaders.ACCEPT, legacyWithVersion(VirtualMachinesDto.MEDIA_TYPE))
+                .get().build();
+        Response response = client.rawClient().newCall(request).execute();
+        response.body().close();
+        return response.code();
+    }
+
+    private static String legacyAbsolute(final String path)
+    {
+        try
+        {
+            new URL(path);
+        }
+        catch (MalformedURLException e)
+        {
+            return BASE_URL + (path.startsWith("/") ? path : "/" + path);
+        }
+        return path;
+    }
+
+    private static String legacyWithVersion(final String mediaType)
+    {
+        return mediaType.contains("version=") ? mediaType : mediaType + "; version="
+            + SingleResourceTransportDto.API_VERSION;
+    }
+
+    private static String legacyQueryLine(final Map<String, Object> queryParams)
+    {
+        Map<String, Object> queryParamsSorted = new TreeMap<String, Object>(queryParams);
+        return Joiner.on('&').withKeyValueSeparator("=")
+            .join(transformValues(queryParamsSorted, new Function<Object, String>()
+            {
+                @Override
+                public String apply(final Object input)
+                {
+                    return legacyUrlEncode(input.toString());
+                }
+            }));
+    }
+
+    private static String legacyUrlEncode(final String value)
+    {
+        if (URL_ENCODED_PATTERN.matcher(value).matches())
+        {
+            return value;
+        }
+
+        try
+        {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("*", "%2A");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw Throwables.propagate(ex);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.benchmarks;
+
+import static com.abiquo.apiclient.benchmarks.MockApi.jsonResponse;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.apiclient.RestClient;
+import com.abiquo.model.transport.SingleResourceTransportDto;
+import com.abiquo.server.core.appslibrary.VirtualMachineTemplatesDto;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+import com.abiquo.server.core.cloud.VirtualMachinesDto;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Measures a complete GET request: building the request, sending it to a local server, checking
+ * the response and deserializing its body.
+ * 
+ * @author Ignasi Barrera
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RestClientBenchmark
+{
+    public static enum Resource
+    {
+        VM("vm.json", VirtualMachineDto.class, VirtualMachineDto.MEDIA_TYPE), //
+        VMS("vms.json", VirtualMachinesDto.class, VirtualMachinesDto.MEDIA_TYPE), //
+        TEMPLATES("templates.json", VirtualMachineTemplatesDto.class,
+            VirtualMachineTemplatesDto.MEDIA_TYPE);
+
+        private final String payload;
+
+        private final Class< ? extends SingleResourceTransportDto> type;
+
+        private final String mediaType;
+
+        private Resource(final String payload,
+            final Class< ? extends SingleResourceTransportDto> type, final String mediaType)
+        {
+            this.payload = payload;
+            this.type = type;
+            this.mediaType = mediaType;
+        }
+    }
+
+    @Param({"VM", "VMS", "TEMPLATES"})
+    public Resource resource;
+
+    private MockApi api;
+
+    private RestClient client;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        final String body = Payloads.load(resource.payload);
+        api = new MockApi(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request)
+            {
+                return jsonResponse(resource.mediaType, body);
+            }
+        });
+        client = api.client();
+    }
+
+    @TearDown(Level.Iteration)
+    public void drainRequests() throws InterruptedException
+    {
+        api.drainRequests();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        api.close();
+    }
+
+    @Benchmark
+    public SingleResourceTransportDto get()
+    {
+        return client.get("/resource", resource.mediaType, resource.type);
+    }
+}
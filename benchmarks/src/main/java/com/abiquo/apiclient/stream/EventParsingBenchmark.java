@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.stream;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.event.model.Event;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Measures the parsing of the events received by the {@link StreamClient}. The client is not
+ * connected to any server.
+ * 
+ * @author Ignasi Barrera
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventParsingBenchmark
+{
+    private StreamClient client;
+
+    private String rawEvent;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        client = StreamClient.builder() //
+            .endpoint("http://localhost/m/stream") //
+            .credentials("user", "password") //
+            .build();
+        rawEvent = Resources.toString(Resources.getResource("event.json"), Charsets.UTF_8);
+    }
+
+    @Benchmark
+    public Event parse() throws IOException
+    {
+        return client.parseEvent(rawEvent);
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.abiquo.apiclient.domain.exception.RequestRejectedException;
+
+/**
+ * Limits the number of concurrent requests sent to the Abiquo API, adapting the limit to the
+ * latency and the errors observed in the responses.
+ * <p>
+ * The limit follows an additive-increase/multiplicative-decrease (AIMD) approach: it grows slowly
+ * while requests complete with a latency close to the minimum observed one, and it is reduced as
+ * soon as the latency grows over the configured tolerance or requests fail because the server is
+ * overloaded. The minimum latency is tracked for each route, so the routes that are naturally
+ * slower, such as large listings or task creation, are not taken for overload.
+ * <p>
+ * Requests over the limit wait until a slot is available, and are rejected with a
+ * {@link RequestRejectedException} if they cannot be sent within the configured maximum time.
+ * <p>
+ * The same limit can be shared by several clients that talk to the same Abiquo server.
+ * 
+ * @author Ignasi Barrera
+ */
+public class AdaptiveConcurrencyLimit
+{
+    // Bounds the memory used if requests are sent to unbounded routes
+    private static final int MAX_ROUTES = 1000;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double backoffRatio;
+
+    private final double latencyTolerance;
+
+    private final long maxWaitNanos;
+
+    private final int minRttWindow;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    // Guarded by the lock
+
+    private double limit;
+
+    private int inFlight;
+
+    private int queued;
+
+    private final Map<String, MinRtt> minRtts = new HashMap<String, MinRtt>();
+
+    private long rejectedCount;
+
+    // Do not use directly. Use the builder.
+    private AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit,
+        final int maxLimit, final double backoffRatio, final double latencyTolerance,
+        final long maxWaitNanos, final int minRttWindow)
+    {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        this.maxWaitNanos = maxWaitNanos;
+        this.minRttWindow = minRttWindow;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private int initialLimit = 10;
+
+        private int minLimit = 1;
+
+        private int maxLimit = 200;
+
+        private double backoffRatio = 0.9;
+
+        private double latencyTolerance = 2.0;
+
+        private long maxWaitNanos = TimeUnit.SECONDS.toNanos(30);
+
+        private int minRttWindow = 1000;
+
+        public Builder initialLimit(final int initialLimit)
+        {
+            checkArgument(initialLimit > 0, "initialLimit must be > 0");
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        public Builder minLimit(final int minLimit)
+        {
+            checkArgument(minLimit > 0, "minLimit must be > 0");
+            this.minLimit = minLimit;
+            return this;
+        }
+
+        public Builder maxLimit(final int maxLimit)
+        {
+            checkArgument(maxLimit > 0, "maxLimit must be > 0");
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * The factor applied to the limit when the server shows signs of overload.
+         */
+        public Builder backoffRatio(final double backoffRatio)
+        {
+            checkArgument(backoffRatio > 0 && backoffRatio < 1,
+                "backoffRatio must be between 0 and 1");
+            this.backoffRatio = backoffRatio;
+            return this;
+        }
+
+        /**
+         * How many times the minimum observed latency of its route a request can take before
+         * considering that the server is overloaded.
+         */
+        public Builder latencyTolerance(final double latencyTolerance)
+        {
+            checkArgument(latencyTolerance >= 1, "latencyTolerance must be >= 1");
+            this.latencyTolerance = latencyTolerance;
+            return this;
+        }
+
+        /**
+         * The maximum time a request waits for a free slot before being rejected.
+         */
+        public Builder maxWait(final long maxWait, final TimeUnit timeUnit)
+        {
+            checkArgument(maxWait >= 0, "maxWait must be >= 0");
+            this.maxWaitNanos = timeUnit.toNanos(maxWait);
+            return this;
+        }
+
+        /**
+         * The number of samples of a route after which its minimum observed latency is forgotten,
+         * so the limit adapts to permanent changes in the server latency.
+         */
+        public Builder minRttWindow(final int minRttWindow)
+        {
+            checkArgument(minRttWindow > 0, "minRttWindow must be > 0");
+            this.minRttWindow = minRttWindow;
+            return this;
+        }
+
+        public AdaptiveConcurrencyLimit build()
+        {
+            checkArgument(minLimit <= maxLimit, "minLimit must be <= maxLimit");
+            int initial = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+            return new AdaptiveConcurrencyLimit(initial, minLimit, maxLimit, backoffRatio,
+                latencyTolerance, maxWaitNanos, minRttWindow);
+        }
+    }
+
+    /**
+     * Waits until there is a free slot to send a request.
+     * 
+     * @throws RequestRejectedException If no slot is available within the maximum wait time.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public void acquire() throws RequestRejectedException, InterruptedIOException
+    {
+        lock.lock();
+        try
+        {
+            long remaining = maxWaitNanos;
+            queued++;
+            try
+            {
+                while (inFlight >= (int) limit)
+                {
+                    if (remaining <= 0)
+                    {
+                        rejectedCount++;
+                        throw new RequestRejectedException("Request rejected: the limit of "
+                            + (int) limit + " concurrent requests has been reached");
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send the request");
+            }
+            finally
+            {
+                queued--;
+            }
+            inFlight++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the slot of a completed request and adapts the limit to its outcome, comparing its
+     * latency with the one of all the requests released without a route.
+     * 
+     * @see #release(String, long, boolean)
+     */
+    public void release(final long rttNanos, final boolean overloaded)
+    {
+        release("", rttNanos, overloaded);
+    }
+
+    /**
+     * Releases the slot of a completed request and adapts the limit to its outcome.
+     * 
+     * @param route The route of the request. Its latency is compared with the minimum latency
+     *            observed in the same route.
+     * @param rttNanos The time it took the server to respond to the request.
+     * @param overloaded Whether the request failed because the server could not handle it.
+     */
+    public void release(final String route, final long rttNanos, final boolean overloaded)
+    {
+        lock.lock();
+        try
+        {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+
+            MinRtt minRtt = minRtts.get(route);
+            if (minRtt == null)
+            {
+                if (minRtts.size() >= MAX_ROUTES)
+                {
+                    minRtts.clear();
+                }
+                minRtt = new MinRtt();
+                minRtts.put(route, minRtt);
+            }
+            long minRttNanos = minRtt.record(rttNanos, minRttWindow);
+
+            if (overloaded || rttNanos > minRttNanos * latencyTolerance)
+            {
+                limit = Math.max(minLimit, limit * backoffRatio);
+            }
+            else if (saturated)
+            {
+                // Only grow if the current limit is actually being used
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+
+            available.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // The minimum latency observed in a route. Guarded by the lock of the limit
+    private static class MinRtt
+    {
+        private long minRttNanos = Long.MAX_VALUE;
+
+        private int samples;
+
+        public long record(final long rttNanos, final int window)
+        {
+            if (++samples > window)
+            {
+                samples = 0;
+                minRttNanos = Long.MAX_VALUE;
+            }
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+            return minRttNanos;
+        }
+    }
+
+    /**
+     * The current number of concurrent requests allowed.
+     */
+    public int getLimit()
+    {
+        lock.lock();
+        try
+        {
+            return (int) limit;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of requests that have been sent and have not completed yet.
+     */
+    public int getInFlight()
+    {
+        lock.lock();
+        try
+        {
+            return inFlight;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of requests waiting for a free slot.
+     */
+    public int getQueueDepth()
+    {
+        lock.lock();
+        try
+        {
+            return queued;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of requests rejected because no slot was available in time.
+     */
+    public long getRejectedCount()
+    {
+        lock.lock();
+        try
+        {
+            return rejectedCount;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.abiquo.apiclient.domain.exception.RequestRejectedException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Limits the rate and the number of concurrent requests sent to the different families of routes
+ * of the Abiquo API, so bulk processes do not starve the rest of the requests performed from the
+ * same application.
+ * <p>
+ * Route families are configured with path patterns relative to the API endpoint, such as
+ * <code>/admin/**</code> or <code>/cloud/virtualdatacenters/**</code>. Each request is governed
+ * by the route with the longest matching pattern, and requests that do not match any route are
+ * not limited. Requests that exceed the limits wait for the configured maximum time and are then
+ * rejected with a {@link RequestRejectedException}.
+ * <p>
+ * The same admission control can be shared by several clients to enforce global limits.
+ * 
+ * @author Ignasi Barrera
+ */
+public class AdmissionControl
+{
+    private final List<Route> routes;
+
+    private final long maxWaitNanos;
+
+    // Do not use directly. Use the builder.
+    private AdmissionControl(final List<Route> routes, final long maxWaitNanos)
+    {
+        this.routes = ImmutableList.copyOf(routes);
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private final Map<String, Limits> limits = new LinkedHashMap<String, Limits>();
+
+        private long maxWaitNanos = TimeUnit.SECONDS.toNanos(30);
+
+        /**
+         * Limits the number of requests per second sent to the routes matching the given pattern.
+         */
+        public Builder rateLimit(final String pattern, final double permitsPerSecond)
+        {
+            checkArgument(permitsPerSecond > 0, "permitsPerSecond must be > 0");
+            limits(pattern).permitsPerSecond = permitsPerSecond;
+            return this;
+        }
+
+        /**
+         * Limits the number of concurrent requests sent to the routes matching the given pattern.
+         */
+        public Builder concurrencyLimit(final String pattern, final int maxConcurrentRequests)
+        {
+            checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be > 0");
+            limits(pattern).maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * The maximum time a request waits to be admitted before being rejected. A zero value
+         * rejects the requests that exceed the limits immediately.
+         */
+        public Builder maxWait(final long maxWait, final TimeUnit timeUnit)
+        {
+            checkArgument(maxWait >= 0, "maxWait must be >= 0");
+            this.maxWaitNanos = timeUnit.toNanos(maxWait);
+            return this;
+        }
+
+        private Limits limits(final String pattern)
+        {
+            checkNotNull(pattern, "pattern cannot be null");
+            checkArgument(pattern.startsWith("/"), "pattern must start with /");
+            Limits existing = limits.get(pattern);
+            if (existing == null)
+            {
+                existing = new Limits();
+                limits.put(pattern, existing);
+            }
+            return existing;
+        }
+
+        public AdmissionControl build()
+        {
+            List<Route> routes = new ArrayList<Route>();
+            for (Map.Entry<String, Limits> entry : limits.entrySet())
+            {
+                routes.add(new Route(entry.getKey(), entry.getValue()));
+            }
+
+            // The most specific routes are checked first
+            Collections.sort(routes, new Comparator<Route>()
+            {
+                @Override
+                public int compare(final Route r1, final Route r2)
+                {
+                    return r2.prefix.length() - r1.prefix.length();
+                }
+            });
+
+            return new AdmissionControl(routes, maxWaitNanos);
+        }
+    }
+
+    private static class Limits
+    {
+        private double permitsPerSecond;
+
+        private int maxConcurrentRequests;
+    }
+
+    /**
+     * A granted admission. It must be released once the request has completed.
+     */
+    public static interface Permit
+    {
+        public void release();
+    }
+
+    private static final Permit UNLIMITED = new Permit()
+    {
+        @Override
+        public void release()
+        {
+            // Nothing to release
+        }
+    };
+
+    /**
+     * Waits until the request for the given path (relative to the API endpoint) can be sent.
+     * 
+     * @throws RequestRejectedException If the request is not admitted within the maximum wait
+     *             time.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public Permit acquire(final String path) throws RequestRejectedException,
+        InterruptedIOException
+    {
+        Route route = route(path);
+        return route == null ? UNLIMITED : route.acquire(maxWaitNanos);
+    }
+
+    private Route route(final String path)
+    {
+        for (Route route : routes)
+        {
+            if (route.matches(path))
+            {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the admission statistics of each configured route.
+     */
+    public List<RouteStats> getStats()
+    {
+        return ImmutableList.<RouteStats> copyOf(routes);
+    }
+
+    /**
+     * Admission statistics for a family of routes.
+     */
+    public static interface RouteStats
+    {
+        public String getPattern();
+
+        /** The number of requests that have been admitted. */
+        public long getAdmittedCount();
+
+        /** The number of requests that have been rejected. */
+        public long getRejectedCount();
+
+        /** The number of admitted requests that have not completed yet. */
+        public int getInFlight();
+
+        /** The accumulated time the admitted requests waited to be admitted. */
+        public long getTotalWaitTime(TimeUnit timeUnit);
+
+        /** The maximum time an admitted request waited to be admitted. */
+        public long getMaxWaitTime(TimeUnit timeUnit);
+    }
+
+    private static class Route implements RouteStats
+    {
+        private final String pattern;
+
+        // The pattern without the trailing wildcard, if present
+        private final String prefix;
+
+        private final boolean wildcard;
+
+        private final RateLimiter rateLimiter;
+
+        private final Semaphore semaphore;
+
+        private final AtomicLong admitted = new AtomicLong();
+
+        private final AtomicLong rejected = new AtomicLong();
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        public Route(final String pattern, final Limits limits)
+        {
+            this.pattern = pattern;
+            this.wildcard = pattern.endsWith("/**");
+            this.prefix = wildcard ? pattern.substring(0, pattern.length() - 3) : pattern;
+            this.rateLimiter =
+                limits.permitsPerSecond > 0 ? RateLimiter.create(limits.permitsPerSecond) : null;
+            this.semaphore =
+                limits.maxConcurrentRequests > 0 ? new Semaphore(limits.maxConcurrentRequests,
+                    true) : null;
+        }
+
+        public boolean matches(final String path)
+        {
+            if (!wildcard)
+            {
+                return path.equals(prefix);
+            }
+            return prefix.isEmpty() || path.equals(prefix) || path.startsWith(prefix + "/");
+        }
+
+        public Permit acquire(final long maxWait) throws RequestRejectedException,
+            InterruptedIOException
+        {
+            long start = System.nanoTime();
+
+            if (rateLimiter != null && !rateLimiter.tryAcquire(maxWait, TimeUnit.NANOSECONDS))
+            {
+                throw reject();
+            }
+
+            if (semaphore != null)
+            {
+                long remaining = Math.max(0, maxWait - (System.nanoTime() - start));
+                try
+                {
+                    if (!semaphore.tryAcquire(remaining, TimeUnit.NANOSECONDS))
+                    {
+                        throw reject();
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                        "Interrupted while waiting to send the request");
+                }
+            }
+
+            recordWait(System.nanoTime() - start);
+            admitted.incrementAndGet();
+            inFlight.incrementAndGet();
+
+            return new Permit()
+            {
+                @Override
+                public void release()
+                {
+                    inFlight.decrementAndGet();
+                    if (semaphore != null)
+                    {
+                        semaphore.release();
+                    }
+                }
+            };
+        }
+
+        private RequestRejectedException reject()
+        {
+            rejected.incrementAndGet();
+            return new RequestRejectedException("Request rejected by the limits of route "
+                + pattern);
+        }
+
+        private void recordWait(final long waitNanos)
+        {
+            totalWaitNanos.addAndGet(waitNanos);
+            long max;
+            do
+            {
+                max = maxWaitNanos.get();
+            }
+            while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos));
+        }
+
+        @Override
+        public String getPattern()
+        {
+            return pattern;
+        }
+
+        @Override
+        public long getAdmittedCount()
+        {
+            return admitted.get();
+        }
+
+        @Override
+        public long getRejectedCount()
+        {
+            return rejected.get();
+        }
+
+        @Override
+        public int getInFlight()
+        {
+            return inFlight.get();
+        }
+
+        @Override
+        public long getTotalWaitTime(final TimeUnit timeUnit)
+        {
+            return timeUnit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public long getMaxWaitTime(final TimeUnit timeUnit)
+        {
+            return timeUnit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+        }
+    }
+}
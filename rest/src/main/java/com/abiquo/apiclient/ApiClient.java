@@ -15,13 +15,25 @@
  */
 package com.abiquo.apiclient;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 
 import com.abiquo.apiclient.auth.Authentication;
+import com.abiquo.apiclient.cache.MetadataCache;
+import com.abiquo.apiclient.cache.ResponseCache;
+import com.abiquo.apiclient.json.Json;
+import com.abiquo.apiclient.metrics.ClientMetrics;
+import com.abiquo.apiclient.polling.AdaptivePolling;
+import com.abiquo.apiclient.polling.FixedIntervalPolling;
+import com.abiquo.apiclient.polling.PollingStrategy;
 import com.abiquo.model.transport.SingleResourceTransportDto;
 
-public class ApiClient
+public class ApiClient implements Closeable
 {
     private final RestClient client;
 
@@ -43,21 +55,75 @@ public class ApiClient
 
     private final SSLConfiguration sslConfiguration;
 
+    private final Transport transport;
+
+    private final ResponseCache responseCache;
+
+    private final MetadataCache metadataCache;
+
+    private final boolean coalesceRequests;
+
+    private final RetryPolicy retryPolicy;
+
+    private final AdmissionControl admissionControl;
+
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+
+    private final ClientMetrics metrics;
+
+    private final CallListener callListener;
+
+    private final CompletionSource completionSource;
+
+    private final long safetyPollNanos;
+
+    private final PollingStrategy pollingStrategy;
+
+    private final Json json;
+
+    // True if the transport has been created by this client and is not shared with other clients
+    private final boolean ownsTransport;
+
     // Do not use directly. Use the builder.
     private ApiClient(final String endpoint, final Authentication authentication,
-        final String version, final SSLConfiguration sslConfiguration)
+        final String version, final SSLConfiguration sslConfiguration, final Transport transport,
+        final ResponseCache responseCache, final MetadataCache metadataCache,
+        final boolean coalesceRequests, final RetryPolicy retryPolicy,
+        final AdmissionControl admissionControl, final AdaptiveConcurrencyLimit concurrencyLimit,
+        final ClientMetrics metrics, final CallListener callListener,
+        final CompletionSource completionSource, final long safetyPollNanos,
+        final PollingStrategy pollingStrategy, final Json json)
     {
-        client = new RestClient(authentication, endpoint, version, sslConfiguration);
-        enterpriseApi = new EnterpriseApi(client);
-        infrastructureApi = new InfrastructureApi(client);
+        this.ownsTransport = transport == null;
+        this.transport = ownsTransport ? Transport.builder().build() : transport;
+
+        client =
+            new RestClient(authentication, endpoint, version, sslConfiguration, this.transport,
+                responseCache, coalesceRequests, retryPolicy, admissionControl, concurrencyLimit,
+                metrics, callListener, completionSource, safetyPollNanos, pollingStrategy, json);
+        this.metadataCache = metadataCache == null ? MetadataCache.disabled() : metadataCache;
+
+        enterpriseApi = new EnterpriseApi(client, this.metadataCache);
+        infrastructureApi = new InfrastructureApi(client, this.metadataCache);
         cloudApi = new CloudApi(client);
         templatesApi = new TemplatesApi(client);
-        configApi = new ConfigApi(client);
+        configApi = new ConfigApi(client, this.metadataCache);
 
         this.endpoint = endpoint;
         this.authentication = authentication;
         this.version = version;
         this.sslConfiguration = sslConfiguration;
+        this.responseCache = responseCache;
+        this.coalesceRequests = coalesceRequests;
+        this.retryPolicy = retryPolicy;
+        this.admissionControl = admissionControl;
+        this.concurrencyLimit = concurrencyLimit;
+        this.metrics = metrics;
+        this.callListener = callListener;
+        this.completionSource = completionSource;
+        this.safetyPollNanos = safetyPollNanos;
+        this.pollingStrategy = pollingStrategy;
+        this.json = json;
     }
 
     public static Builder builder()
@@ -75,6 +141,32 @@ public class ApiClient
 
         private SSLConfiguration sslConfiguration;
 
+        private Transport transport;
+
+        private ResponseCache responseCache;
+
+        private MetadataCache metadataCache;
+
+        private boolean coalesceRequests;
+
+        private RetryPolicy retryPolicy;
+
+        private AdmissionControl admissionControl;
+
+        private AdaptiveConcurrencyLimit concurrencyLimit;
+
+        private ClientMetrics metrics;
+
+        private CallListener callListener;
+
+        private CompletionSource completionSource;
+
+        private long safetyPollNanos;
+
+        private PollingStrategy pollingStrategy;
+
+        private Json json;
+
         public Builder endpoint(final String endpoint)
         {
             this.endpoint = endpoint;
@@ -99,16 +191,167 @@ public class ApiClient
             return this;
         }
 
+        /**
+         * Configures a transport that can be shared with other clients. If no transport is
+         * provided, the client will create its own one and release it when the client is closed.
+         */
+        public Builder transport(final Transport transport)
+        {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Enables the conditional revalidation of GET requests using the given cache. Disabled by
+         * default.
+         * <p>
+         * The responses are cached per {@link Authentication} instance, so the same cache can be
+         * shared between clients that use different credentials.
+         */
+        public Builder responseCache(final ResponseCache responseCache)
+        {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        /**
+         * Enables the in-memory cache for the resources that rarely change. Disabled by default.
+         * <p>
+         * Cached resources depend on the permissions of the authenticated user, so the same cache
+         * should not be shared between clients that use different credentials.
+         */
+        public Builder metadataCache(final MetadataCache metadataCache)
+        {
+            this.metadataCache = metadataCache;
+            return this;
+        }
+
+        /**
+         * Makes concurrent identical GET requests share a single HTTP request. Disabled by
+         * default.
+         * <p>
+         * When enabled, all the callers waiting for the same request receive the same decoded
+         * object, so it should not be modified unless it has been copied first.
+         */
+        public Builder coalesceRequests(final boolean coalesceRequests)
+        {
+            this.coalesceRequests = coalesceRequests;
+            return this;
+        }
+
+        /**
+         * Configures the policy used to retry the requests that fail with transient errors. If no
+         * policy is provided, failed requests are not retried.
+         */
+        public Builder retryPolicy(final RetryPolicy retryPolicy)
+        {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Configures the rate and concurrency limits applied to the different families of API
+         * routes. Share the same admission control between clients to enforce global limits.
+         */
+        public Builder admissionControl(final AdmissionControl admissionControl)
+        {
+            this.admissionControl = admissionControl;
+            return this;
+        }
+
+        /**
+         * Configures a concurrency limit that adapts to the latency and the errors returned by
+         * the server. Share the same limit between the clients that talk to the same server.
+         */
+        public Builder concurrencyLimit(final AdaptiveConcurrencyLimit concurrencyLimit)
+        {
+            this.concurrencyLimit = concurrencyLimit;
+            return this;
+        }
+
+        /**
+         * Collects per-route request metrics. Share the same metrics between clients to get
+         * aggregated figures.
+         */
+        public Builder metrics(final ClientMetrics metrics)
+        {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Configures a listener to be notified at each phase of the requests, to profile them.
+         */
+        public Builder callListener(final CallListener callListener)
+        {
+            this.callListener = callListener;
+            return this;
+        }
+
+        /**
+         * Configures a source of notifications used to finish the waits for locked virtual
+         * machines and virtual appliances as soon as the resources change. While waiting, the
+         * resources are only polled at the given safety interval, in case a notification is lost.
+         * Disabled by default.
+         */
+        public Builder completionSource(final CompletionSource completionSource,
+            final long safetyPollInterval, final TimeUnit timeUnit)
+        {
+            checkArgument(safetyPollInterval > 0, "safetyPollInterval must be > 0");
+            this.completionSource = completionSource;
+            this.safetyPollNanos = timeUnit.toNanos(safetyPollInterval);
+            return this;
+        }
+
+        /**
+         * Configures the strategy used to plan the polls while waiting for asynchronous
+         * operations. Use {@link AdaptivePolling} to poll near the expected end of each operation,
+         * learned from the previous waits. Defaults to {@link FixedIntervalPolling}.
+         */
+        public Builder pollingStrategy(final PollingStrategy pollingStrategy)
+        {
+            this.pollingStrategy = pollingStrategy;
+            return this;
+        }
+
+        /**
+         * Configures the {@link Json} used to serialize and deserialize the objects. Use
+         * {@link Json#withAfterburner()} to speed up the processing of large objects.
+         */
+        public Builder json(final Json json)
+        {
+            this.json = json;
+            return this;
+        }
+
         public ApiClient build()
         {
-            return new ApiClient(endpoint, authentication, version, sslConfiguration);
+            return new ApiClient(endpoint, authentication, version, sslConfiguration, transport,
+                responseCache, metadataCache, coalesceRequests, retryPolicy, admissionControl,
+                concurrencyLimit, metrics, callListener, completionSource, safetyPollNanos,
+                pollingStrategy, json);
         }
     }
 
+    /**
+     * Returns a builder with the configuration of this client. The clients created with the
+     * returned builder share the transport of this one. The metadata cache is not copied, as it
+     * is bound to the credentials of this client.
+     */
     public Builder toBuilder()
     {
-        return builder().endpoint(endpoint).authentication(authentication).version(version)
-            .sslConfiguration(sslConfiguration);
+        Builder builder =
+            builder().endpoint(endpoint).authentication(authentication).version(version)
+                .sslConfiguration(sslConfiguration).transport(transport)
+                .responseCache(responseCache).coalesceRequests(coalesceRequests)
+                .retryPolicy(retryPolicy).admissionControl(admissionControl)
+                .concurrencyLimit(concurrencyLimit).metrics(metrics).callListener(callListener)
+                .pollingStrategy(pollingStrategy).json(json);
+        if (completionSource != null)
+        {
+            builder.completionSource(completionSource, safetyPollNanos, TimeUnit.NANOSECONDS);
+        }
+        return builder;
     }
 
     public static interface SSLConfiguration
@@ -134,6 +377,51 @@ public class ApiClient
         return sslConfiguration;
     }
 
+    public Transport getTransport()
+    {
+        return transport;
+    }
+
+    public ResponseCache getResponseCache()
+    {
+        return responseCache;
+    }
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    public AdmissionControl getAdmissionControl()
+    {
+        return admissionControl;
+    }
+
+    public AdaptiveConcurrencyLimit getConcurrencyLimit()
+    {
+        return concurrencyLimit;
+    }
+
+    public ClientMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public CompletionSource getCompletionSource()
+    {
+        return completionSource;
+    }
+
+    public PollingStrategy getPollingStrategy()
+    {
+        return pollingStrategy;
+    }
+
+    public MetadataCache getMetadataCache()
+    {
+        return metadataCache;
+    }
+
     public RestClient getClient()
     {
         return client;
@@ -164,4 +452,17 @@ public class ApiClient
         return configApi;
     }
 
+    /**
+     * Releases the transport resources if they are owned by this client. Shared transports
+     * configured in the builder must be closed by their owners.
+     */
+    @Override
+    public void close()
+    {
+        if (ownsTransport)
+        {
+            transport.close();
+        }
+    }
+
 }
@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+/**
+ * Receives the size of the body of a response once it has been read by the {@link RestClient}.
+ * <p>
+ * Listeners are called in the threads that read the responses, before the result of the request
+ * is handed out.
+ * 
+ * @author Ignasi Barrera
+ */
+public interface BodySizeListener
+{
+    /**
+     * @param bytes The number of bytes of the response body, once decompressed.
+     */
+    public void onBodyRead(long bytes);
+}
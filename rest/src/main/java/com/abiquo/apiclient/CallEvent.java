@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.squareup.okhttp.Request;
+
+/**
+ * An event fired when a request reaches one of its {@link Phase phases}.
+ * <p>
+ * All the events fired for the same request have the same call id. Retried requests fire the
+ * network phases once per attempt.
+ * 
+ * @author Ignasi Barrera
+ */
+public class CallEvent
+{
+    /**
+     * The phases of a request.
+     * <p>
+     * Successful responses are deserialized while they are read, so their status is checked
+     * first and the {@link #BODY_READ} and {@link #JSON_DECODED} events are fired together at the
+     * end. Other responses are read first, then checked and finally deserialized.
+     */
+    public static enum Phase
+    {
+        /** The request has been built and is about to be sent. */
+        REQUEST_BUILT,
+
+        /** A connection to the server has been acquired, including the DNS and TLS setup. */
+        CONNECTION_ACQUIRED,
+
+        /** The request has been authenticated. */
+        AUTHENTICATED,
+
+        /** The response headers have been received. */
+        HEADERS_RECEIVED,
+
+        /** The response body has been completely read. */
+        BODY_READ,
+
+        /** The status of the response has been checked. */
+        RESPONSE_CHECKED,
+
+        /** The response body has been deserialized. */
+        JSON_DECODED,
+
+        /** The request failed without getting a response. */
+        FAILED;
+    }
+
+    private final Phase phase;
+
+    private final long callId;
+
+    private final Request request;
+
+    private final long timestampNanos;
+
+    public CallEvent(final Phase phase, final long callId, final Request request)
+    {
+        this.phase = checkNotNull(phase, "phase cannot be null");
+        this.callId = callId;
+        this.request = checkNotNull(request, "request cannot be null");
+        this.timestampNanos = System.nanoTime();
+    }
+
+    public Phase getPhase()
+    {
+        return phase;
+    }
+
+    public long getCallId()
+    {
+        return callId;
+    }
+
+    public Request getRequest()
+    {
+        return request;
+    }
+
+    /**
+     * The value of {@link System#nanoTime()} when the event was fired. It is only meaningful when
+     * compared with the timestamps of other events.
+     */
+    public long getTimestampNanos()
+    {
+        return timestampNanos;
+    }
+
+    /**
+     * Returns the id of the call the given request belongs to, or -1 if the request was not
+     * created by a {@link RestClient} configured with a {@link CallListener}.
+     */
+    public static long callId(final Request request)
+    {
+        Object tag = request.tag();
+        return tag instanceof CallId ? ((CallId) tag).id : -1;
+    }
+
+    static Object newCallTag(final long id)
+    {
+        return new CallId(id);
+    }
+
+    // Stored as the tag of the requests to correlate the events of the same call
+    private static class CallId
+    {
+        private final long id;
+
+        public CallId(final long id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "call-" + id;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this).add("phase", phase).add("callId", callId)
+            .add("timestampNanos", timestampNanos).toString();
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+/**
+ * Receives the events fired by the {@link RestClient} at each phase of a request, to measure
+ * where the time is spent.
+ * <p>
+ * Listeners are called synchronously in the threads that perform the requests, so they must be
+ * fast and must not throw exceptions.
+ * 
+ * @author Ignasi Barrera
+ */
+public interface CallListener
+{
+    public void onEvent(CallEvent event);
+}
@@ -16,17 +16,24 @@
 package com.abiquo.apiclient;
 
 import static com.abiquo.apiclient.domain.ApiPath.VIRTUALDATACENTERS_URL;
+import static com.abiquo.apiclient.domain.LinkIndex.editLink;
+import static com.abiquo.apiclient.domain.LinkIndex.searchLink;
 import static com.abiquo.apiclient.domain.Links.create;
+import static com.abiquo.apiclient.domain.Types.ACCEPTED_REQUEST;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
+import com.abiquo.apiclient.domain.exception.HttpException;
 import com.abiquo.apiclient.domain.options.ExternalIpListOptions;
 import com.abiquo.apiclient.domain.options.VirtualApplianceListOptions;
 import com.abiquo.apiclient.domain.options.VirtualDatacenterListOptions;
 import com.abiquo.apiclient.domain.options.VirtualMachineListOptions;
+import com.abiquo.apiclient.polling.Operation;
 import com.abiquo.model.enumerator.NetworkType;
+import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.AcceptedRequestDto;
 import com.abiquo.model.transport.SingleResourceTransportDto;
 import com.abiquo.server.core.appslibrary.VirtualMachineTemplateDto;
@@ -52,12 +59,17 @@ import com.abiquo.server.core.infrastructure.storage.TierDto;
 import com.abiquo.server.core.infrastructure.storage.TiersDto;
 import com.abiquo.server.core.infrastructure.storage.VolumeManagementDto;
 import com.abiquo.server.core.task.TaskDto;
-import com.google.common.reflect.TypeToken;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 public class CloudApi
 {
     private final RestClient client;
 
+    // The hypervisor type of the virtual datacenters, by their URI. It never changes
+    private final Cache<String, String> hypervisorTypes = CacheBuilder.newBuilder()
+        .maximumSize(1000).build();
+
     // Package private constructor to be used only by the ApiClient
     CloudApi(final RestClient client)
     {
@@ -66,8 +78,8 @@ public class CloudApi
 
     public VirtualDatacenterDto getVirtualDatacenter(final String id)
     {
-        return client.get(VIRTUALDATACENTERS_URL + "/" + id, VirtualDatacenterDto.MEDIA_TYPE,
-            VirtualDatacenterDto.class);
+        return remember(client.get(VIRTUALDATACENTERS_URL + "/" + id,
+            VirtualDatacenterDto.MEDIA_TYPE, VirtualDatacenterDto.class));
     }
 
     public Iterable<VirtualDatacenterDto> listVirtualDatacenters()
@@ -85,28 +97,28 @@ public class CloudApi
 
     public Iterable<ExternalIpDto> listExternalIps(final VirtualDatacenterDto vdc)
     {
-        return client.list(vdc.searchLink("externalips").getHref(), ExternalIpsDto.MEDIA_TYPE,
+        return client.list(searchLink(vdc, "externalips").getHref(), ExternalIpsDto.MEDIA_TYPE,
             ExternalIpsDto.class);
     }
 
     public Iterable<ExternalIpDto> listExternalIps(final VirtualDatacenterDto vdc,
         final ExternalIpListOptions options)
     {
-        return client.list(vdc.searchLink("externalips").getHref(), options.queryParams(),
+        return client.list(searchLink(vdc, "externalips").getHref(), options.queryParams(),
             ExternalIpsDto.MEDIA_TYPE, ExternalIpsDto.class);
     }
 
     public Iterable<VirtualApplianceDto> listVirtualAppliances(final VirtualDatacenterDto vdc)
     {
-        return client.list(vdc.searchLink("virtualappliances").getHref(),
+        return client.list(searchLink(remember(vdc), "virtualappliances").getHref(),
             VirtualAppliancesDto.MEDIA_TYPE, VirtualAppliancesDto.class);
     }
 
     public Iterable<VirtualApplianceDto> listVirtualAppliances(final VirtualDatacenterDto vdc,
         final VirtualApplianceListOptions options)
     {
-        return client.list(vdc.searchLink("virtualappliances").getHref(), options.queryParams(),
-            VirtualAppliancesDto.MEDIA_TYPE, VirtualAppliancesDto.class);
+        return client.list(searchLink(remember(vdc), "virtualappliances").getHref(),
+            options.queryParams(), VirtualAppliancesDto.MEDIA_TYPE, VirtualAppliancesDto.class);
     }
 
     public VirtualApplianceDto getVirtualAppliance(final String idVdc, final String idVapp)
@@ -118,32 +130,32 @@ public class CloudApi
 
     public Iterable<VirtualMachineDto> listVirtualMachines(final VirtualApplianceDto vapp)
     {
-        return client.list(vapp.searchLink("virtualmachines").getHref(),
+        return client.list(searchLink(vapp, "virtualmachines").getHref(),
             VirtualMachinesDto.MEDIA_TYPE, VirtualMachinesDto.class);
     }
 
     public Iterable<VirtualMachineDto> listVirtualMachines(final VirtualApplianceDto vapp,
         final VirtualMachineListOptions options)
     {
-        return client.list(vapp.searchLink("virtualmachines").getHref(), options.queryParams(),
+        return client.list(searchLink(vapp, "virtualmachines").getHref(), options.queryParams(),
             VirtualMachinesDto.MEDIA_TYPE, VirtualMachinesDto.class);
     }
 
     public VLANNetworkDto getPrivateNetwork(final VirtualDatacenterDto vdc, final String idNetwork)
     {
-        return client.get(vdc.searchLink("privatenetworks").getHref() + "/" + idNetwork,
+        return client.get(searchLink(vdc, "privatenetworks").getHref() + "/" + idNetwork,
             VLANNetworkDto.MEDIA_TYPE, VLANNetworkDto.class);
     }
 
     public Iterable<VMNetworkConfigurationDto> listNetworkConfigurations(final VirtualMachineDto vm)
     {
-        return client.list(vm.searchLink("configurations").getHref(),
+        return client.list(searchLink(vm, "configurations").getHref(),
             VMNetworkConfigurationsDto.MEDIA_TYPE, VMNetworkConfigurationsDto.class);
     }
 
     public VirtualMachineDto getVirtualMachine(final VirtualApplianceDto vapp, final String idVm)
     {
-        return client.get(vapp.searchLink("virtualmachines").getHref() + "/" + idVm,
+        return client.get(searchLink(vapp, "virtualmachines").getHref() + "/" + idVm,
             VirtualMachineDto.MEDIA_TYPE, VirtualMachineDto.class);
     }
 
@@ -160,9 +172,9 @@ public class CloudApi
         vdc.setName(name);
         vdc.setHypervisorType(type);
 
-        vdc.addLink(create("enterprise", enterprise.getEditLink().getHref(),
+        vdc.addLink(create("enterprise", editLink(enterprise).getHref(),
             EnterpriseDto.SHORT_MEDIA_TYPE_JSON));
-        vdc.addLink(create("location", location.searchLink("self").getHref(), mt));
+        vdc.addLink(create("location", searchLink(location, "self").getHref(), mt));
 
         VLANNetworkDto vlan = new VLANNetworkDto();
         vlan.setAddress(vlanAddress);
@@ -172,8 +184,8 @@ public class CloudApi
         vlan.setType(NetworkType.INTERNAL);
         vdc.setVlan(vlan);
 
-        return client.post(VIRTUALDATACENTERS_URL, VirtualDatacenterDto.MEDIA_TYPE,
-            VirtualDatacenterDto.MEDIA_TYPE, vdc, VirtualDatacenterDto.class);
+        return remember(client.post(VIRTUALDATACENTERS_URL, VirtualDatacenterDto.MEDIA_TYPE,
+            VirtualDatacenterDto.MEDIA_TYPE, vdc, VirtualDatacenterDto.class));
     }
 
     public VirtualApplianceDto createVirtualAppliance(final VirtualDatacenterDto vdc,
@@ -182,7 +194,7 @@ public class CloudApi
         VirtualApplianceDto vapp = new VirtualApplianceDto();
         vapp.setName(name);
 
-        return client.post(vdc.searchLink("virtualappliances").getHref(),
+        return client.post(searchLink(remember(vdc), "virtualappliances").getHref(),
             VirtualApplianceDto.MEDIA_TYPE, VirtualApplianceDto.MEDIA_TYPE, vapp,
             VirtualApplianceDto.class);
     }
@@ -192,11 +204,11 @@ public class CloudApi
     {
         VirtualMachineDto vm = new VirtualMachineDto();
         vm.setVdrpEnabled(Boolean.TRUE);
-        vm.addLink(create("virtualmachinetemplate", template.getEditLink().getHref(),
+        vm.addLink(create("virtualmachinetemplate", editLink(template).getHref(),
             VirtualMachineTemplateDto.SHORT_MEDIA_TYPE_JSON));
 
         return client
-            .post(vapp.searchLink("virtualmachines").getHref(), VirtualMachineDto.MEDIA_TYPE,
+            .post(searchLink(vapp, "virtualmachines").getHref(), VirtualMachineDto.MEDIA_TYPE,
                 VirtualMachineDto.MEDIA_TYPE, vm, VirtualMachineDto.class);
     }
 
@@ -209,13 +221,12 @@ public class CloudApi
     public VirtualMachineDto deploy(final VirtualMachineDto vm, final boolean forceDeploy,
         final int pollInterval, final int maxWait, final TimeUnit timeUnit)
     {
-        client.post(vm.searchLink("deploy").getHref() + "?force=" + forceDeploy,
-            AcceptedRequestDto.MEDIA_TYPE, new TypeToken<AcceptedRequestDto<String>>()
-            {
-                private static final long serialVersionUID = -6348281615419377868L;
-            });
+        Operation operation = operation("DEPLOY", vm);
+        client.post(searchLink(vm, "deploy").getHref() + "?force=" + forceDeploy,
+            AcceptedRequestDto.MEDIA_TYPE, ACCEPTED_REQUEST);
 
-        VirtualMachineDto refreshed = client.waitUntilUnlocked(vm, pollInterval, maxWait, timeUnit);
+        VirtualMachineDto refreshed =
+            client.waitUntilUnlocked(vm, operation, pollInterval, maxWait, timeUnit);
         if (!refreshed.getState().isDeployed())
         {
             throw new RuntimeException("Deploy virtual machine operation failed");
@@ -233,14 +244,12 @@ public class CloudApi
     public VirtualApplianceDto deploy(final VirtualApplianceDto vapp, final boolean forceDeploy,
         final int pollInterval, final int maxWait, final TimeUnit timeUnit)
     {
-        client.post(vapp.searchLink("deploy").getHref() + "?force=" + forceDeploy,
-            AcceptedRequestDto.MEDIA_TYPE, new TypeToken<AcceptedRequestDto<String>>()
-            {
-                private static final long serialVersionUID = -6348281615419377868L;
-            });
+        Operation operation = operation("DEPLOY_VIRTUAL_APPLIANCE", vapp);
+        client.post(searchLink(vapp, "deploy").getHref() + "?force=" + forceDeploy,
+            AcceptedRequestDto.MEDIA_TYPE, ACCEPTED_REQUEST);
 
         VirtualApplianceDto refreshed =
-            client.waitUntilUnlocked(vapp, pollInterval, maxWait, timeUnit);
+            client.waitUntilUnlocked(vapp, operation, pollInterval, maxWait, timeUnit);
         if (VirtualApplianceState.DEPLOYED != refreshed.getState())
         {
             throw new RuntimeException("Deploy virtual appliance operation failed");
@@ -255,14 +264,12 @@ public class CloudApi
         VirtualMachineTaskDto virtualMachineTask = new VirtualMachineTaskDto();
         virtualMachineTask.setForceUndeploy(forceUndeploy);
 
-        client.post(vm.searchLink("undeploy").getHref(), AcceptedRequestDto.MEDIA_TYPE,
-            VirtualMachineTaskDto.MEDIA_TYPE, virtualMachineTask,
-            new TypeToken<AcceptedRequestDto<String>>()
-            {
-                private static final long serialVersionUID = -6348281615419377868L;
-            });
+        Operation operation = operation("UNDEPLOY", vm);
+        client.post(searchLink(vm, "undeploy").getHref(), AcceptedRequestDto.MEDIA_TYPE,
+            VirtualMachineTaskDto.MEDIA_TYPE, virtualMachineTask, ACCEPTED_REQUEST);
 
-        VirtualMachineDto refreshed = client.waitUntilUnlocked(vm, pollInterval, maxWait, timeUnit);
+        VirtualMachineDto refreshed =
+            client.waitUntilUnlocked(vm, operation, pollInterval, maxWait, timeUnit);
         if (refreshed.getState().isDeployed())
         {
             throw new RuntimeException("Undeploy virtual machine operation failed");
@@ -284,15 +291,12 @@ public class CloudApi
         VirtualMachineTaskDto virtualMachineTask = new VirtualMachineTaskDto();
         virtualMachineTask.setForceUndeploy(forceUndeploy);
 
-        client.post(vapp.searchLink("undeploy").getHref(), AcceptedRequestDto.MEDIA_TYPE,
-            VirtualMachineTaskDto.MEDIA_TYPE, virtualMachineTask,
-            new TypeToken<AcceptedRequestDto<String>>()
-            {
-                private static final long serialVersionUID = -6348281615419377868L;
-            });
+        Operation operation = operation("UNDEPLOY_VIRTUAL_APPLIANCE", vapp);
+        client.post(searchLink(vapp, "undeploy").getHref(), AcceptedRequestDto.MEDIA_TYPE,
+            VirtualMachineTaskDto.MEDIA_TYPE, virtualMachineTask, ACCEPTED_REQUEST);
 
         VirtualApplianceDto refreshed =
-            client.waitUntilUnlocked(vapp, pollInterval, maxWait, timeUnit);
+            client.waitUntilUnlocked(vapp, operation, pollInterval, maxWait, timeUnit);
         if (VirtualApplianceState.NOT_DEPLOYED != refreshed.getState())
         {
             throw new RuntimeException("Undeploy virtual appliance operation failed");
@@ -314,13 +318,12 @@ public class CloudApi
         VirtualMachineStateDto vmState = new VirtualMachineStateDto();
         vmState.setState(state);
 
-        client.put(vm.searchLink("state").getHref(), AcceptedRequestDto.MEDIA_TYPE,
-            VirtualMachineStateDto.MEDIA_TYPE, vmState, new TypeToken<AcceptedRequestDto<String>>()
-            {
-                private static final long serialVersionUID = -6348281615419377868L;
-            });
+        Operation operation = operation("POWER_" + state.name(), vm);
+        client.put(searchLink(vm, "state").getHref(), AcceptedRequestDto.MEDIA_TYPE,
+            VirtualMachineStateDto.MEDIA_TYPE, vmState, ACCEPTED_REQUEST);
 
-        VirtualMachineDto refreshed = client.waitUntilUnlocked(vm, pollInterval, maxWait, timeUnit);
+        VirtualMachineDto refreshed =
+            client.waitUntilUnlocked(vm, operation, pollInterval, maxWait, timeUnit);
         if (state != refreshed.getState())
         {
             throw new RuntimeException("Virtual machine power state '" + state.name()
@@ -337,13 +340,11 @@ public class CloudApi
 
         if (vm.getState().isDeployed())
         {
-            client.put(vm.getEditLink().getHref(), AcceptedRequestDto.MEDIA_TYPE,
-                VirtualMachineDto.MEDIA_TYPE, vm, new TypeToken<AcceptedRequestDto<String>>()
-                {
-                    private static final long serialVersionUID = -6348281615419377868L;
-                });
+            Operation operation = operation("RECONFIGURE", vm);
+            client.put(editLink(vm).getHref(), AcceptedRequestDto.MEDIA_TYPE,
+                VirtualMachineDto.MEDIA_TYPE, vm, ACCEPTED_REQUEST);
 
-            refreshed = client.waitUntilUnlocked(vm, pollInterval, maxWait, timeUnit);
+            refreshed = client.waitUntilUnlocked(vm, operation, pollInterval, maxWait, timeUnit);
             if (VirtualMachineState.OFF != refreshed.getState())
             {
                 throw new RuntimeException("Virtual machine reconfigure operation failed");
@@ -351,7 +352,7 @@ public class CloudApi
         }
         else
         {
-            client.put(vm.getEditLink().getHref(), AcceptedRequestDto.MEDIA_TYPE,
+            client.put(editLink(vm).getHref(), AcceptedRequestDto.MEDIA_TYPE,
                 VirtualMachineDto.MEDIA_TYPE, vm);
             refreshed = client.refresh(vm);
         }
@@ -359,9 +360,71 @@ public class CloudApi
         return refreshed;
     }
 
+    /**
+     * Returns the operation of the given type, in the hypervisor type of the virtual datacenter
+     * of the given resource if the polling strategy uses it. The hypervisor type is taken from
+     * the virtual datacenters already seen by this API, and the virtual datacenter is only
+     * fetched if it has not been seen. It is left unknown if the virtual datacenter cannot be
+     * fetched due to a transient error.
+     */
+    private Operation operation(final String type, final SingleResourceTransportDto resource)
+    {
+        if (!client.getPollingStrategy().usesHypervisorType())
+        {
+            return Operation.of(type);
+        }
+        RESTLink link = searchLink(resource, "virtualdatacenter");
+        if (link == null)
+        {
+            return Operation.of(type);
+        }
+
+        String hypervisorType = hypervisorTypes.getIfPresent(link.getHref());
+        if (hypervisorType == null)
+        {
+            try
+            {
+                hypervisorType = remember(client.get(link.getHref(),
+                    VirtualDatacenterDto.MEDIA_TYPE, VirtualDatacenterDto.class))
+                    .getHypervisorType();
+            }
+            catch (RuntimeException ex)
+            {
+                if (!isTransient(ex))
+                {
+                    throw ex;
+                }
+                // The polls will just use the history of the operation in all hypervisors
+                return Operation.of(type);
+            }
+        }
+        return Operation.of(type, hypervisorType);
+    }
+
+    // Connection failures and server errors, which the actual request may not hit
+    private static boolean isTransient(final RuntimeException ex)
+    {
+        if (ex instanceof HttpException)
+        {
+            int code = ((HttpException) ex).getCode();
+            return code == 429 || code >= 500;
+        }
+        return ex.getCause() instanceof IOException;
+    }
+
+    private VirtualDatacenterDto remember(final VirtualDatacenterDto vdc)
+    {
+        RESTLink self = editLink(vdc);
+        if (self != null && vdc.getHypervisorType() != null)
+        {
+            hypervisorTypes.put(self.getHref(), vdc.getHypervisorType());
+        }
+        return vdc;
+    }
+
     public VolumeManagementDto getVolume(final VirtualDatacenterDto vdc, final String idVolume)
     {
-        return client.get(vdc.searchLink("volumes").getHref() + "/" + idVolume,
+        return client.get(searchLink(vdc, "volumes").getHref() + "/" + idVolume,
             VolumeManagementDto.MEDIA_TYPE, VolumeManagementDto.class);
     }
 
@@ -371,21 +434,22 @@ public class CloudApi
         VolumeManagementDto dto = new VolumeManagementDto();
         dto.setName(name);
         dto.setSizeInMB(sizeInMb);
-        dto.addLink(create("tier", tier.searchLink("self").getHref(), TierDto.SHORT_MEDIA_TYPE_JSON));
+        dto.addLink(create("tier", searchLink(tier, "self").getHref(),
+            TierDto.SHORT_MEDIA_TYPE_JSON));
 
-        return client.post(vdc.searchLink("volumes").getHref(), VolumeManagementDto.MEDIA_TYPE,
+        return client.post(searchLink(vdc, "volumes").getHref(), VolumeManagementDto.MEDIA_TYPE,
             VolumeManagementDto.MEDIA_TYPE, dto, VolumeManagementDto.class);
     }
 
     public TaskDto getTask(final VirtualMachineDto vm, final String idTask)
     {
-        return client.get(vm.searchLink("tasks").getHref() + "/" + idTask, TaskDto.MEDIA_TYPE,
+        return client.get(searchLink(vm, "tasks").getHref() + "/" + idTask, TaskDto.MEDIA_TYPE,
             TaskDto.class);
     }
 
     public Iterable<TierDto> listTiers(final VirtualDatacenterDto vdc)
     {
-        return client.list(vdc.searchLink("tiers").getHref(), TiersDto.MEDIA_TYPE, TiersDto.class);
+        return client.list(searchLink(vdc, "tiers").getHref(), TiersDto.MEDIA_TYPE, TiersDto.class);
     }
 
 }
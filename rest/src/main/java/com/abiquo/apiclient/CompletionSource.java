@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+/**
+ * Notifies the changes in the resources of the Abiquo API, so the client can stop waiting for
+ * asynchronous operations as soon as they finish instead of polling at a fixed interval.
+ * <p>
+ * When a source is configured, the waits for locked virtual machines and virtual appliances
+ * refresh the resource each time the source notifies a change on it, and only poll at the
+ * configured safety interval in case a notification is lost. The streaming client provides an
+ * implementation backed by the events of the Abiquo Streaming API.
+ * 
+ * @author Ignasi Barrera
+ */
+public interface CompletionSource
+{
+    /**
+     * Starts notifying the changes on the resource with the given path until the returned
+     * subscription is cancelled. The path is relative to the API endpoint, as in
+     * <code>/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1</code>.
+     * <p>
+     * Listeners must be fast and must not throw exceptions, as they are called in the threads that
+     * receive the notifications. Spurious notifications are harmless: they just cause an extra
+     * refresh of the resource.
+     */
+    public Subscription subscribe(String resourcePath, Runnable listener);
+
+    public static interface Subscription
+    {
+        public void cancel();
+    }
+}
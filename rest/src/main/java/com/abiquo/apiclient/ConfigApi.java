@@ -15,9 +15,13 @@
  */
 package com.abiquo.apiclient;
 
+import static com.abiquo.apiclient.cache.MetadataCache.ResourceType.HYPERVISOR_TYPES;
 import static com.abiquo.apiclient.domain.ApiPath.HYPERVISORTYPES_URL;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.concurrent.Callable;
+
+import com.abiquo.apiclient.cache.MetadataCache;
 import com.abiquo.server.core.cloud.HypervisorTypeDto;
 import com.abiquo.server.core.cloud.HypervisorTypesDto;
 
@@ -25,10 +29,13 @@ public class ConfigApi
 {
     private final RestClient client;
 
+    private final MetadataCache metadataCache;
+
     // Package private constructor to be used only by the ApiClient
-    ConfigApi(final RestClient client)
+    ConfigApi(final RestClient client, final MetadataCache metadataCache)
     {
         this.client = checkNotNull(client, "client cannot be null");
+        this.metadataCache = checkNotNull(metadataCache, "metadataCache cannot be null");
     }
 
     public HypervisorTypeDto getHypervisorType(final String type)
@@ -39,8 +46,16 @@ public class ConfigApi
 
     public Iterable<HypervisorTypeDto> getHypervisorTypes()
     {
-        return client.list(HYPERVISORTYPES_URL, HypervisorTypesDto.MEDIA_TYPE,
-            HypervisorTypesDto.class);
+        return metadataCache.list(HYPERVISOR_TYPES, HYPERVISORTYPES_URL,
+            new Callable<Iterable<HypervisorTypeDto>>()
+            {
+                @Override
+                public Iterable<HypervisorTypeDto> call() throws Exception
+                {
+                    return client.list(HYPERVISORTYPES_URL, HypervisorTypesDto.MEDIA_TYPE,
+                        HypervisorTypesDto.class);
+                }
+            });
     }
 
 }
@@ -15,17 +15,24 @@
  */
 package com.abiquo.apiclient;
 
+import static com.abiquo.apiclient.cache.MetadataCache.ResourceType.CURRENT_USER;
+import static com.abiquo.apiclient.cache.MetadataCache.ResourceType.ROLES;
 import static com.abiquo.apiclient.domain.ApiPath.ENTERPRISES_URL;
 import static com.abiquo.apiclient.domain.ApiPath.LOGIN_URL;
 import static com.abiquo.apiclient.domain.ApiPath.ROLES_URL;
+import static com.abiquo.apiclient.domain.LinkIndex.editLink;
+import static com.abiquo.apiclient.domain.LinkIndex.searchLink;
 import static com.abiquo.apiclient.domain.Links.create;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import com.abiquo.apiclient.cache.MetadataCache;
 import com.abiquo.apiclient.domain.options.EnterpriseListOptions;
 import com.abiquo.apiclient.domain.options.UserListOptions;
 import com.abiquo.model.enumerator.AuthType;
+import com.abiquo.model.rest.RESTLink;
 import com.abiquo.server.core.enterprise.EnterpriseDto;
 import com.abiquo.server.core.enterprise.EnterprisesDto;
 import com.abiquo.server.core.enterprise.RoleDto;
@@ -39,10 +46,13 @@ public class EnterpriseApi
 {
     private final RestClient client;
 
+    private final MetadataCache metadataCache;
+
     // Package private constructor to be used only by the ApiClient
-    EnterpriseApi(final RestClient client)
+    EnterpriseApi(final RestClient client, final MetadataCache metadataCache)
     {
         this.client = checkNotNull(client, "client cannot be null");
+        this.metadataCache = checkNotNull(metadataCache, "metadataCache cannot be null");
     }
 
     public EnterpriseDto createEnterprise(final String name)
@@ -100,32 +110,48 @@ public class EnterpriseApi
 
         user.setAvailableVirtualDatacenters(Joiner.on(",").skipNulls()
             .join(availableVirtualDatacentersIds));
-        user.addLink(create("role", role.getEditLink().getHref(), role.getEditLink().getType()));
+        RESTLink roleLink = editLink(role);
+        user.addLink(create("role", roleLink.getHref(), roleLink.getType()));
 
-        return client.post(enterprise.searchLink("users").getHref(), UserDto.MEDIA_TYPE,
+        return client.post(searchLink(enterprise, "users").getHref(), UserDto.MEDIA_TYPE,
             UserDto.MEDIA_TYPE, user, UserDto.class);
     }
 
     public UserDto getCurrentUser()
     {
-        return client.get(LOGIN_URL, UserDto.MEDIA_TYPE, UserDto.class);
+        return metadataCache.get(CURRENT_USER, LOGIN_URL, new Callable<UserDto>()
+        {
+            @Override
+            public UserDto call() throws Exception
+            {
+                return client.get(LOGIN_URL, UserDto.MEDIA_TYPE, UserDto.class);
+            }
+        });
     }
 
     public Iterable<UserDto> listUsers(final EnterpriseDto enterprise)
     {
-        return client.list(enterprise.searchLink("users").getHref(), enterprise.searchLink("users")
-            .getType(), UsersDto.class);
+        RESTLink users = searchLink(enterprise, "users");
+        return client.list(users.getHref(), users.getType(), UsersDto.class);
     }
 
     public Iterable<UserDto> listUsers(final EnterpriseDto enterprise, final UserListOptions options)
     {
-        return client.list(enterprise.searchLink("users").getHref(), options.queryParams(),
-            enterprise.searchLink("users").getType(), UsersDto.class);
+        RESTLink users = searchLink(enterprise, "users");
+        return client.list(users.getHref(), options.queryParams(), users.getType(),
+            UsersDto.class);
     }
 
     public Iterable<RoleDto> listRoles()
     {
-        return client.list(ROLES_URL, RolesDto.MEDIA_TYPE, RolesDto.class);
+        return metadataCache.list(ROLES, ROLES_URL, new Callable<Iterable<RoleDto>>()
+        {
+            @Override
+            public Iterable<RoleDto> call() throws Exception
+            {
+                return client.list(ROLES_URL, RolesDto.MEDIA_TYPE, RolesDto.class);
+            }
+        });
     }
 
 }
@@ -15,10 +15,15 @@
  */
 package com.abiquo.apiclient;
 
+import static com.abiquo.apiclient.cache.MetadataCache.ResourceType.DATACENTERS;
+import static com.abiquo.apiclient.cache.MetadataCache.ResourceType.NETWORK_SERVICE_TYPES;
+import static com.abiquo.apiclient.cache.MetadataCache.ResourceType.TIERS;
 import static com.abiquo.apiclient.domain.ApiPath.DATACENTERS_URL;
 import static com.abiquo.apiclient.domain.ApiPath.HYPERVISORTYPES_URL;
 import static com.abiquo.apiclient.domain.ApiPath.LOADLEVELRULES_URL;
 import static com.abiquo.apiclient.domain.ApiPath.PUBLIC_CLOUD_REGIONS_URL;
+import static com.abiquo.apiclient.domain.LinkIndex.editLink;
+import static com.abiquo.apiclient.domain.LinkIndex.searchLink;
 import static com.abiquo.apiclient.domain.Links.create;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Iterables.find;
@@ -26,7 +31,9 @@ import static com.google.common.collect.Iterables.find;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import com.abiquo.apiclient.cache.MetadataCache;
 import com.abiquo.apiclient.domain.options.DatacenterListOptions;
 import com.abiquo.apiclient.domain.options.PublicCloudRegionListOptions;
 import com.abiquo.model.enumerator.NetworkType;
@@ -61,15 +68,27 @@ public class InfrastructureApi
 {
     private final RestClient client;
 
+    private final MetadataCache metadataCache;
+
     // Package private constructor to be used only by the ApiClient
-    InfrastructureApi(final RestClient client)
+    InfrastructureApi(final RestClient client, final MetadataCache metadataCache)
     {
         this.client = checkNotNull(client, "client cannot be null");
+        this.metadataCache = checkNotNull(metadataCache, "metadataCache cannot be null");
     }
 
     public Iterable<DatacenterDto> listDatacenters()
     {
-        return client.list(DATACENTERS_URL, DatacentersDto.MEDIA_TYPE, DatacentersDto.class);
+        return metadataCache.list(DATACENTERS, DATACENTERS_URL,
+            new Callable<Iterable<DatacenterDto>>()
+            {
+                @Override
+                public Iterable<DatacenterDto> call() throws Exception
+                {
+                    return client.list(DATACENTERS_URL, DatacentersDto.MEDIA_TYPE,
+                        DatacentersDto.class);
+                }
+            });
     }
 
     public Iterable<DatacenterDto> listDatacenters(final DatacenterListOptions options)
@@ -80,13 +99,13 @@ public class InfrastructureApi
 
     public Iterable<RackDto> listRacks(final DatacenterDto datacenter)
     {
-        return client.list(datacenter.searchLink("racks").getHref(), RacksDto.MEDIA_TYPE,
+        return client.list(searchLink(datacenter, "racks").getHref(), RacksDto.MEDIA_TYPE,
             RacksDto.class);
     }
 
     public Iterable<DatacenterLimitsDto> listLimits(final EnterpriseDto enterprise)
     {
-        return client.list(enterprise.searchLink("limits"), DatacentersLimitsDto.class);
+        return client.list(searchLink(enterprise, "limits"), DatacentersLimitsDto.class);
     }
 
     public DatacenterLimitsDto getEnterpriseLimitsForDatacenter(final EnterpriseDto enterprise,
@@ -95,13 +114,13 @@ public class InfrastructureApi
         Map<String, Object> params = new HashMap<String, Object>();
         params.put("datacenter", datacenter.getId());
         return client
-            .get(enterprise.searchLink("limits").getHref(), params,
+            .get(searchLink(enterprise, "limits").getHref(), params,
                 DatacentersLimitsDto.MEDIA_TYPE, DatacentersLimitsDto.class).getCollection().get(0);
     }
 
     public Iterable<VLANNetworkDto> listExternalNetworks(final DatacenterLimitsDto limits)
     {
-        return client.list(limits.searchLink("externalnetworks").getHref(),
+        return client.list(searchLink(limits, "externalnetworks").getHref(),
             VLANNetworksDto.MEDIA_TYPE, VLANNetworksDto.class);
     }
 
@@ -138,14 +157,14 @@ public class InfrastructureApi
 
     public Iterable<RemoteServiceDto> listRemoteServices(final DatacenterDto datacenter)
     {
-        return client.list(datacenter.searchLink("remoteservices"), RemoteServicesDto.class);
+        return client.list(searchLink(datacenter, "remoteservices"), RemoteServicesDto.class);
     }
 
     public RackDto createRack(final DatacenterDto datacenter, final String name)
     {
         RackDto rack = new RackDto();
         rack.setName(name);
-        return client.post(datacenter.searchLink("racks").getHref(), RackDto.MEDIA_TYPE,
+        return client.post(searchLink(datacenter, "racks").getHref(), RackDto.MEDIA_TYPE,
             RackDto.MEDIA_TYPE, rack, RackDto.class);
     }
 
@@ -153,9 +172,9 @@ public class InfrastructureApi
         final DatacenterDto datacenter)
     {
         DatacenterLimitsDto limits = new DatacenterLimitsDto();
-        limits.addLink(create("location", datacenter.getEditLink().getHref(), datacenter
-            .getEditLink().getType()));
-        client.post(enterprise.searchLink("limits").getHref(), DatacenterLimitsDto.MEDIA_TYPE,
+        limits.addLink(create("location", editLink(datacenter).getHref(), editLink(datacenter)
+            .getType()));
+        client.post(searchLink(enterprise, "limits").getHref(), DatacenterLimitsDto.MEDIA_TYPE,
             DatacenterLimitsDto.MEDIA_TYPE, limits, DatacenterLimitsDto.class);
     }
 
@@ -168,27 +187,36 @@ public class InfrastructureApi
         queryParams.put("user", user);
         queryParams.put("password", password);
 
-        return client.get(datacenter.searchLink("discover").getHref(), queryParams,
+        return client.get(searchLink(datacenter, "discover").getHref(), queryParams,
             MachinesDto.MEDIA_TYPE, MachinesDto.class);
     }
 
     public MachineDto createMachine(final RackDto rack, final MachineDto machine)
     {
-        return client.post(rack.searchLink("machines").getHref(), MachineDto.MEDIA_TYPE,
+        return client.post(searchLink(rack, "machines").getHref(), MachineDto.MEDIA_TYPE,
             MachineDto.MEDIA_TYPE, machine, MachineDto.class);
     }
 
     public Iterable<NetworkServiceTypeDto> listNetworkServiceTypes(final DatacenterDto datacenter)
     {
-        return client.list(datacenter.searchLink("networkservicetypes").getHref(),
-            NetworkServiceTypesDto.MEDIA_TYPE, NetworkServiceTypesDto.class);
+        final String uri = searchLink(datacenter, "networkservicetypes").getHref();
+        return metadataCache.list(NETWORK_SERVICE_TYPES, uri,
+            new Callable<Iterable<NetworkServiceTypeDto>>()
+            {
+                @Override
+                public Iterable<NetworkServiceTypeDto> call() throws Exception
+                {
+                    return client.list(uri, NetworkServiceTypesDto.MEDIA_TYPE,
+                        NetworkServiceTypesDto.class);
+                }
+            });
     }
 
     public MachineLoadRuleDto createDatacenterLoadLevelRule(final DatacenterDto datacenter,
         final int cpuLoadPercentage, final int ramLoadPercentage)
     {
         return createLoadLevelRule(
-            create("datacenter", datacenter.getEditLink().getHref(), datacenter.getEditLink()
+            create("datacenter", editLink(datacenter).getHref(), editLink(datacenter)
                 .getType()), cpuLoadPercentage, ramLoadPercentage);
     }
 
@@ -196,7 +224,7 @@ public class InfrastructureApi
         final int cpuLoadPercentage, final int ramLoadPercentage)
     {
         return createLoadLevelRule(
-            create("rack", rack.getEditLink().getHref(), rack.getEditLink().getType()),
+            create("rack", editLink(rack).getHref(), editLink(rack).getType()),
             cpuLoadPercentage, ramLoadPercentage);
     }
 
@@ -204,7 +232,7 @@ public class InfrastructureApi
         final int cpuLoadPercentage, final int ramLoadPercentage)
     {
         return createLoadLevelRule(
-            create("machine", machine.getEditLink().getHref(), machine.getEditLink().getType()),
+            create("machine", editLink(machine).getHref(), editLink(machine).getType()),
             cpuLoadPercentage, ramLoadPercentage);
     }
 
@@ -222,13 +250,13 @@ public class InfrastructureApi
 
     public Iterable<StorageDeviceDto> listDevices(final DatacenterDto datacenter)
     {
-        return client.list(datacenter.searchLink("devices").getHref(),
+        return client.list(searchLink(datacenter, "devices").getHref(),
             StorageDevicesDto.MEDIA_TYPE, StorageDevicesDto.class);
     }
 
     public Iterable<StoragePoolDto> listPools(final StorageDeviceDto device)
     {
-        return client.list(device.searchLink("pools").getHref(), StoragePoolsDto.MEDIA_TYPE,
+        return client.list(searchLink(device, "pools").getHref(), StoragePoolsDto.MEDIA_TYPE,
             StoragePoolsDto.class);
     }
 
@@ -237,7 +265,7 @@ public class InfrastructureApi
         Map<String, Object> queryParams = new HashMap<String, Object>();
         queryParams.put("sync", true);
 
-        return client.list(device.searchLink("pools").getHref(), queryParams,
+        return client.list(searchLink(device, "pools").getHref(), queryParams,
             StoragePoolsDto.MEDIA_TYPE, StoragePoolsDto.class);
     }
 
@@ -246,8 +274,8 @@ public class InfrastructureApi
         final String serviceIp, final int servicePort, final String username, final String password)
     {
         StorageDeviceDto device = new StorageDeviceDto();
-        device.addLink(create("datacenter", datacenter.getEditLink().getHref(), datacenter
-            .getEditLink().getType()));
+        device.addLink(create("datacenter", editLink(datacenter).getHref(), editLink(datacenter)
+            .getType()));
         device.setName(name);
         device.setStorageTechnology(technology);
         device.setManagementIp(managementIp);
@@ -257,7 +285,7 @@ public class InfrastructureApi
         device.setUsername(username);
         device.setPassword(password);
 
-        return client.post(datacenter.searchLink("devices").getHref(), StorageDeviceDto.MEDIA_TYPE,
+        return client.post(searchLink(datacenter, "devices").getHref(), StorageDeviceDto.MEDIA_TYPE,
             StorageDeviceDto.MEDIA_TYPE, device, StorageDeviceDto.class);
     }
 
@@ -284,10 +312,10 @@ public class InfrastructureApi
         });
 
         storagePool.setEnabled(true);
-        storagePool.addLink(create("tier", tier.getEditLink().getHref(), tier.getEditLink()
+        storagePool.addLink(create("tier", editLink(tier).getHref(), editLink(tier)
             .getType()));
 
-        return client.post(storageDevice.searchLink("pools").getHref(), StoragePoolDto.MEDIA_TYPE,
+        return client.post(searchLink(storageDevice, "pools").getHref(), StoragePoolDto.MEDIA_TYPE,
             StoragePoolDto.MEDIA_TYPE, storagePool, StoragePoolDto.class);
     }
 
@@ -296,9 +324,9 @@ public class InfrastructureApi
         final String address, final String gateway, final int mask, final int tag)
     {
         VLANNetworkDto vlan = new VLANNetworkDto();
-        vlan.addLink(create("enterprise", enterprise.getEditLink().getHref(), enterprise
-            .getEditLink().getType()));
-        vlan.addLink(create("networkservicetype", nst.getEditLink().getHref(), nst.getEditLink()
+        vlan.addLink(create("enterprise", editLink(enterprise).getHref(), editLink(enterprise)
+            .getType()));
+        vlan.addLink(create("networkservicetype", editLink(nst).getHref(), editLink(nst)
             .getType()));
         vlan.setAddress(address);
         vlan.setName(name);
@@ -307,14 +335,21 @@ public class InfrastructureApi
         vlan.setTag(tag);
         vlan.setGateway(gateway);
 
-        return client.post(datacenter.searchLink("network").getHref(), VLANNetworkDto.MEDIA_TYPE,
+        return client.post(searchLink(datacenter, "network").getHref(), VLANNetworkDto.MEDIA_TYPE,
             VLANNetworkDto.MEDIA_TYPE, vlan, VLANNetworkDto.class);
     }
 
     public Iterable<TierDto> listTiers(final DatacenterDto datacenter)
     {
-        return client.list(datacenter.searchLink("tiers").getHref(), TiersDto.MEDIA_TYPE,
-            TiersDto.class);
+        final String uri = searchLink(datacenter, "tiers").getHref();
+        return metadataCache.list(TIERS, uri, new Callable<Iterable<TierDto>>()
+        {
+            @Override
+            public Iterable<TierDto> call() throws Exception
+            {
+                return client.list(uri, TiersDto.MEDIA_TYPE, TiersDto.class);
+            }
+        });
     }
 
     public Iterable<PublicCloudRegionDto> listPublicCloudRegions(
@@ -0,0 +1,374 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Schedules the delayed tasks used to poll the asynchronous operations of the Abiquo API, such as
+ * tasks and virtual machine state changes.
+ * <p>
+ * Tasks are kept in a hashed timer wheel advanced by a single timer thread, so thousands of
+ * outstanding polls do not need a thread each. Expired tasks are run in a small executor, and
+ * they should not block for long: the polls send their requests asynchronously and are resumed
+ * when the response arrives. Tasks are run at most one tick after their delay expires.
+ * <p>
+ * The timer thread is started when the first task is scheduled. The scheduler is owned by the
+ * {@link Transport} and closed with it.
+ * 
+ * @author Ignasi Barrera
+ */
+public class PollScheduler implements Closeable
+{
+    private static final int INIT = 0;
+
+    private static final int STARTED = 1;
+
+    private static final int CLOSED = 2;
+
+    // Maximum number of new timeouts added to the wheel in each tick
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final long tickNanos;
+
+    private final ExecutorService executor;
+
+    private final Thread timer;
+
+    private final long startTime = System.nanoTime();
+
+    private final AtomicInteger state = new AtomicInteger(INIT);
+
+    // New timeouts are added to the wheel by the timer thread
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+    // Only accessed from the timer thread
+
+    private final List<Queue<Timeout>> wheel;
+
+    private final int mask;
+
+    private long tick;
+
+    // Do not use directly. Use the builder.
+    private PollScheduler(final long tickNanos, final int ticksPerWheel,
+        final ExecutorService executor)
+    {
+        this.tickNanos = tickNanos;
+        this.executor = checkNotNull(executor, "executor cannot be null");
+        this.mask = ticksPerWheel - 1;
+        this.wheel = new ArrayList<Queue<Timeout>>(ticksPerWheel);
+        for (int i = 0; i < ticksPerWheel; i++)
+        {
+            wheel.add(new ArrayDeque<Timeout>());
+        }
+
+        timer = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("abiquo-poll-timer")
+            .build().newThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runTimer();
+                }
+            });
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private long tickNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+        private int ticksPerWheel = 512;
+
+        private int threads = 2;
+
+        private ExecutorService executorService;
+
+        /**
+         * The precision of the scheduler. Tasks are run at most one tick after their delay
+         * expires. Defaults to 10 milliseconds.
+         */
+        public Builder tickDuration(final long duration, final TimeUnit timeUnit)
+        {
+            checkArgument(duration > 0, "tickDuration must be > 0");
+            this.tickNanos = timeUnit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * The number of buckets in the wheel, rounded up to a power of two. Delays longer than a
+         * full turn of the wheel are supported, but the task is visited once in each turn.
+         */
+        public Builder ticksPerWheel(final int ticksPerWheel)
+        {
+            checkArgument(ticksPerWheel > 0 && ticksPerWheel <= 1 << 30,
+                "ticksPerWheel must be in the range (0, 2^30]");
+            this.ticksPerWheel = ticksPerWheel;
+            return this;
+        }
+
+        /**
+         * The number of threads used to run the expired tasks. Ignored if a custom executor is
+         * configured.
+         */
+        public Builder threads(final int threads)
+        {
+            checkArgument(threads > 0, "threads must be > 0");
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * The executor used to run the expired tasks. It will be shut down when the scheduler is
+         * closed.
+         */
+        public Builder executorService(final ExecutorService executorService)
+        {
+            this.executorService = executorService;
+            return this;
+        }
+
+        public PollScheduler build()
+        {
+            ExecutorService executor = executorService;
+            if (executor == null)
+            {
+                ThreadPoolExecutor pool =
+                    new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                            .setDaemon(true).setNameFormat("abiquo-poll-%d").build());
+                pool.allowCoreThreadTimeOut(true);
+                executor = pool;
+            }
+
+            int size = Integer.highestOneBit(ticksPerWheel);
+            return new PollScheduler(tickNanos, size < ticksPerWheel ? size << 1 : size,
+                executor);
+        }
+    }
+
+    /**
+     * Runs the given task once the given delay expires. Cancelling the returned future before the
+     * task starts prevents it from running. Once the task has started, cancelling the future has
+     * no effect and returns false.
+     */
+    public ListenableFuture<Void> schedule(final Runnable task, final long delay,
+        final TimeUnit timeUnit)
+    {
+        checkNotNull(task, "task cannot be null");
+        checkNotNull(timeUnit, "timeUnit cannot be null");
+        int current = state.get();
+        checkState(current != CLOSED, "The scheduler has been closed");
+        if (current == INIT && state.compareAndSet(INIT, STARTED))
+        {
+            timer.start();
+        }
+
+        long deadline = System.nanoTime() - startTime + timeUnit.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(task, deadline);
+        scheduled.add(timeout);
+
+        // The timer thread may have cancelled the pending timeouts before this one was added
+        if (state.get() == CLOSED && scheduled.remove(timeout))
+        {
+            timeout.cancel(false);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread and the executor. Pending tasks are cancelled and new tasks cannot
+     * be scheduled.
+     */
+    @Override
+    public void close()
+    {
+        if (state.getAndSet(CLOSED) == STARTED)
+        {
+            // The timer thread cancels the pending tasks before exiting
+            timer.interrupt();
+        }
+        executor.shutdown();
+    }
+
+    private void runTimer()
+    {
+        tick = (System.nanoTime() - startTime) / tickNanos;
+        while (state.get() != CLOSED)
+        {
+            long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException ex)
+                {
+                    // Only interrupted when the scheduler is closed
+                    continue;
+                }
+            }
+
+            transferScheduled();
+            expire(wheel.get((int) (tick & mask)));
+            tick++;
+        }
+
+        for (Queue<Timeout> bucket : wheel)
+        {
+            cancel(bucket);
+        }
+        cancel(scheduled);
+    }
+
+    private void transferScheduled()
+    {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++)
+        {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null)
+            {
+                break;
+            }
+            if (timeout.isCancelled())
+            {
+                continue;
+            }
+
+            // Timeouts that have already expired go to the current bucket
+            long expiration = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (expiration - tick) / wheel.size();
+            wheel.get((int) (expiration & mask)).add(timeout);
+        }
+    }
+
+    private void expire(final Queue<Timeout> bucket)
+    {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext())
+        {
+            Timeout timeout = it.next();
+            if (timeout.isCancelled())
+            {
+                it.remove();
+            }
+            else if (timeout.remainingRounds <= 0)
+            {
+                it.remove();
+                try
+                {
+                    executor.execute(timeout);
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    timeout.setException(ex);
+                }
+            }
+            else
+            {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    private static void cancel(final Queue<Timeout> timeouts)
+    {
+        Timeout timeout;
+        while ((timeout = timeouts.poll()) != null)
+        {
+            timeout.cancel(false);
+        }
+    }
+
+    private static class Timeout extends AbstractFuture<Void> implements Runnable
+    {
+        private final Runnable task;
+
+        // Nanoseconds since the scheduler was created
+        private final long deadline;
+
+        // Only accessed from the timer thread
+        private long remainingRounds;
+
+        // Set when the task starts running or the timeout is cancelled, whichever happens first
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        public Timeout(final Runnable task, final long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run()
+        {
+            if (!started.compareAndSet(false, true))
+            {
+                return;
+            }
+            try
+            {
+                task.run();
+                set(null);
+            }
+            catch (Throwable ex)
+            {
+                setException(ex);
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            // Tasks that have already started cannot be cancelled
+            return started.compareAndSet(false, true) && super.cancel(mayInterruptIfRunning);
+        }
+
+        // Visible to the scheduler, to fail the tasks that cannot be run
+        @Override
+        protected boolean setException(final Throwable ex)
+        {
+            return super.setException(ex);
+        }
+    }
+}
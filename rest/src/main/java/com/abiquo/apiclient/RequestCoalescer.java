@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.squareup.okhttp.Request;
+
+/**
+ * Shares a single in-flight request, and its decoded result, between all the concurrent callers
+ * that perform the same GET request.
+ * <p>
+ * Requests are identified by their absolute URL, the versioned media type in the
+ * <code>Accept</code> header and the expected result type. Requests are only coalesced within the
+ * same {@link RestClient}, so they are always performed with the same credentials.
+ * 
+ * @author Ignasi Barrera
+ */
+class RequestCoalescer
+{
+    private final ConcurrentMap<Key, ListenableFuture<Object>> inFlight =
+        new ConcurrentHashMap<Key, ListenableFuture<Object>>();
+
+    /**
+     * Performs the given call in the current thread, or waits for the result of an identical
+     * request that is already in flight.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(final Request request, final Type type, final Callable<T> call)
+        throws IOException
+    {
+        Key key = new Key(request, type);
+        SettableFuture<Object> leader = SettableFuture.create();
+        ListenableFuture<Object> existing = inFlight.putIfAbsent(key, leader);
+
+        if (existing != null)
+        {
+            try
+            {
+                return (T) Uninterruptibles.getUninterruptibly(existing);
+            }
+            catch (ExecutionException ex)
+            {
+                Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+
+        try
+        {
+            T result = call.call();
+            leader.set(result);
+            return result;
+        }
+        catch (Exception ex)
+        {
+            leader.setException(ex);
+            Throwables.propagateIfPossible(ex, IOException.class);
+            throw new RuntimeException(ex);
+        }
+        finally
+        {
+            inFlight.remove(key, leader);
+        }
+    }
+
+    /**
+     * Starts the given call, or returns the result of an identical request that is already in
+     * flight. Cancelling the returned future does not cancel the shared request.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ListenableFuture<T> executeAsync(final Request request, final Type type,
+        final Supplier<ListenableFuture<T>> call)
+    {
+        final Key key = new Key(request, type);
+        final SettableFuture<Object> leader = SettableFuture.create();
+        ListenableFuture<Object> existing = inFlight.putIfAbsent(key, leader);
+
+        if (existing != null)
+        {
+            return (ListenableFuture<T>) Futures.nonCancellationPropagating(existing);
+        }
+
+        Futures.addCallback(call.get(), new FutureCallback<T>()
+        {
+            @Override
+            public void onSuccess(final T result)
+            {
+                inFlight.remove(key, leader);
+                leader.set(result);
+            }
+
+            @Override
+            public void onFailure(final Throwable ex)
+            {
+                inFlight.remove(key, leader);
+                leader.setException(ex);
+            }
+        });
+
+        return (ListenableFuture<T>) Futures.nonCancellationPropagating(leader);
+    }
+
+    private static class Key
+    {
+        private final String url;
+
+        private final String accept;
+
+        private final Type type;
+
+        public Key(final Request request, final Type type)
+        {
+            this.url = request.urlString();
+            this.accept = request.header(HttpHeaders.ACCEPT);
+            this.type = checkNotNull(type, "type cannot be null");
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(url, accept, type);
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return url.equals(other.url) && Objects.equal(accept, other.accept)
+                && type.equals(other.type);
+        }
+    }
+}
@@ -15,27 +15,63 @@
  */
 package com.abiquo.apiclient;
 
+import static com.abiquo.apiclient.domain.LinkIndex.editLink;
+import static com.abiquo.apiclient.domain.LinkIndex.searchLink;
+import static com.abiquo.apiclient.domain.Links.editOrSelf;
 import static com.abiquo.apiclient.domain.PageIterator.flatten;
 import static com.abiquo.apiclient.domain.options.BaseOptions.urlEncode;
+import static com.abiquo.apiclient.util.LogUtils.isDebugEnabled;
 import static com.abiquo.apiclient.util.LogUtils.logRequest;
 import static com.abiquo.apiclient.util.LogUtils.logResponse;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.Maps.transformValues;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
 
 import com.abiquo.apiclient.ApiClient.SSLConfiguration;
+import com.abiquo.apiclient.CallEvent.Phase;
 import com.abiquo.apiclient.auth.Authentication;
+import com.abiquo.apiclient.cache.ResponseCache;
+import com.abiquo.apiclient.domain.CloseableIterable;
+import com.abiquo.apiclient.domain.CloseableIterator;
+import com.abiquo.apiclient.domain.Links;
 import com.abiquo.apiclient.domain.exception.AbiquoException;
 import com.abiquo.apiclient.domain.exception.AuthorizationException;
 import com.abiquo.apiclient.domain.exception.HttpException;
+import com.abiquo.apiclient.interceptors.AdaptiveLimitInterceptor;
+import com.abiquo.apiclient.interceptors.AdmissionInterceptor;
 import com.abiquo.apiclient.interceptors.AuthenticationInterceptor;
+import com.abiquo.apiclient.interceptors.CallEventInterceptor;
+import com.abiquo.apiclient.interceptors.MetricsInterceptor;
+import com.abiquo.apiclient.interceptors.RetryInterceptor;
 import com.abiquo.apiclient.json.Json;
+import com.abiquo.apiclient.json.JsonRequestBody;
+import com.abiquo.apiclient.json.PageParser;
+import com.abiquo.apiclient.json.Projection;
+import com.abiquo.apiclient.metrics.ClientMetrics;
+import com.abiquo.apiclient.polling.FixedIntervalPolling;
+import com.abiquo.apiclient.polling.Operation;
+import com.abiquo.apiclient.polling.PollingStrategy;
+import com.abiquo.apiclient.polling.PollingStrategy.Schedule;
 import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.AcceptedRequestDto;
 import com.abiquo.model.transport.SingleResourceTransportDto;
@@ -43,25 +79,42 @@ import com.abiquo.model.transport.WrapperDto;
 import com.abiquo.model.transport.error.ErrorsDto;
 import com.abiquo.server.core.cloud.VirtualApplianceDto;
 import com.abiquo.server.core.cloud.VirtualApplianceState;
+import com.abiquo.server.core.cloud.VirtualDatacenterDto;
 import com.abiquo.server.core.cloud.VirtualMachineDto;
 import com.abiquo.server.core.cloud.VirtualMachineState;
 import com.abiquo.server.core.task.TaskDto;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
-import com.google.common.base.Joiner;
+import com.google.common.base.Functions;
+import com.google.common.base.Predicate;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
+import com.google.common.base.Utf8;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Ordering;
 import com.google.common.net.HttpHeaders;
 import com.google.common.reflect.TypeToken;
-import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
 
 public class RestClient
 {
+    private static final int MAX_CACHED_MEDIA_TYPES = 256;
+
     private final OkHttpClient client;
 
     private final Json json;
@@ -70,17 +123,86 @@ public class RestClient
 
     private final String apiVersion;
 
+    private final Authentication authentication;
+
+    private final ResponseCache responseCache;
+
+    private final RequestCoalescer coalescer;
+
+    private final ConcurrentMap<String, String> versionedMediaTypes =
+        new ConcurrentHashMap<String, String>();
+
+    private final ConcurrentMap<String, MediaType> jsonMediaTypes =
+        new ConcurrentHashMap<String, MediaType>();
+
+    private final CallListener listener;
+
+    private final AtomicLong callIds = new AtomicLong();
+
+    private final PollScheduler pollScheduler;
+
+    private final CompletionSource completionSource;
+
+    private final long safetyPollNanos;
+
+    private final PollingStrategy pollingStrategy;
+
+    private final String pollingStrategyName;
+
+    private final ClientMetrics metrics;
+
+    private final RetryPolicy retryPolicy;
+
     // Package protected. To be used only by the ApiClient
     RestClient(final Authentication authentication, final String baseURL, final String apiVersion,
-        final SSLConfiguration sslConfiguration)
+        final SSLConfiguration sslConfiguration, final Transport transport,
+        final ResponseCache responseCache, final boolean coalesceRequests,
+        final RetryPolicy retryPolicy, final AdmissionControl admissionControl,
+        final AdaptiveConcurrencyLimit concurrencyLimit, final ClientMetrics metrics,
+        final CallListener listener, final CompletionSource completionSource,
+        final long safetyPollNanos, final PollingStrategy pollingStrategy, final Json json)
     {
-        this.json = new Json();
+        this.json = json == null ? new Json() : json;
         this.baseURL = checkNotNull(baseURL, "baseURL cannot be null");
         this.apiVersion = checkNotNull(apiVersion, "apiVersion cannot be null");
+        this.authentication = authentication;
+        this.responseCache = responseCache;
+        this.coalescer = coalesceRequests ? new RequestCoalescer() : null;
+        this.listener = listener;
+        this.completionSource = completionSource;
+        this.safetyPollNanos = safetyPollNanos;
+        this.pollingStrategy =
+            pollingStrategy == null ? new FixedIntervalPolling() : pollingStrategy;
+        this.pollingStrategyName = strategyName(this.pollingStrategy);
+        this.metrics = metrics;
+        this.retryPolicy = retryPolicy;
 
         client = new OkHttpClient();
-        client.setReadTimeout(0, TimeUnit.MILLISECONDS);
-        client.networkInterceptors().add(new AuthenticationInterceptor(authentication));
+        transport.configure(client);
+        pollScheduler = transport.getPollScheduler();
+        if (listener != null)
+        {
+            client.networkInterceptors().add(new CallEventInterceptor(listener));
+        }
+        client.networkInterceptors().add(new AuthenticationInterceptor(authentication, listener));
+        if (metrics != null)
+        {
+            // Added first so the recorded latencies include retries and client-side waits
+            client.interceptors().add(new MetricsInterceptor(metrics, basePath()));
+        }
+        if (retryPolicy != null)
+        {
+            client.interceptors().add(new RetryInterceptor(retryPolicy));
+        }
+        if (admissionControl != null)
+        {
+            // Added after the retry interceptor so each attempt has to be admitted
+            client.interceptors().add(new AdmissionInterceptor(admissionControl, basePath()));
+        }
+        if (concurrencyLimit != null)
+        {
+            client.interceptors().add(new AdaptiveLimitInterceptor(concurrencyLimit, basePath()));
+        }
 
         if (sslConfiguration != null)
         {
@@ -89,6 +211,24 @@ public class RestClient
         }
     }
 
+    // Package protected. To be used only by the APIs
+    PollingStrategy getPollingStrategy()
+    {
+        return pollingStrategy;
+    }
+
+    private static String strategyName(final PollingStrategy pollingStrategy)
+    {
+        String name = pollingStrategy.getClass().getSimpleName();
+        return name.isEmpty() ? pollingStrategy.getClass().getName() : name;
+    }
+
+    private String basePath()
+    {
+        String path = URI.create(baseURL).getPath();
+        return path == null ? "" : CharMatcher.is('/').trimTrailingFrom(path);
+    }
+
     /**
      * Changes made to the returned client will affect all the subsequent requests.
      * <p>
@@ -103,7 +243,7 @@ public class RestClient
     public <T extends SingleResourceTransportDto> T edit(final T dto)
     {
         RESTLink link =
-            checkNotNull(dto.getEditLink(), "The given object does not have an edit link");
+            checkNotNull(editLink(dto), "The given object does not have an edit link");
 
         @SuppressWarnings("unchecked")
         Class<T> clazz = (Class<T>) dto.getClass();
@@ -114,17 +254,13 @@ public class RestClient
     public void delete(final SingleResourceTransportDto dto)
     {
         RESTLink link =
-            checkNotNull(dto.getEditLink(), "The given object does not have an edit link");
+            checkNotNull(editLink(dto), "The given object does not have an edit link");
         delete(link.getHref());
     }
 
     public <T extends SingleResourceTransportDto> T refresh(final T dto)
     {
-        RESTLink link = dto.getEditLink();
-        if (link == null)
-        {
-            link = dto.searchLink("self");
-        }
+        RESTLink link = editOrSelf(dto);
 
         @SuppressWarnings("unchecked")
         Class<T> clazz = (Class<T>) dto.getClass();
@@ -165,19 +301,119 @@ public class RestClient
         return flatten(this, get(uri, queryParams, accept, returnType));
     }
 
+    /**
+     * Lists the elements of a paginated collection, decoding each element as soon as it is read
+     * from the response, instead of waiting for the entire page to be downloaded and bound.
+     * <p>
+     * Pages are fetched lazily as the elements are consumed. Streamed responses are neither
+     * cached nor coalesced, and each response is kept open while its elements are being read,
+     * so iterators that are not consumed to the end must be closed.
+     */
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> CloseableIterable<T> stream(
+        final RESTLink link, final Class<W> pageClass)
+    {
+        return stream(link.getHref(), link.getType(), pageClass);
+    }
+
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> CloseableIterable<T> stream(
+        final String uri, final String accept, final Class<W> pageClass)
+    {
+        return stream(getRequest(uri, accept), accept, pageClass, null);
+    }
+
+    /**
+     * Streams the elements of a paginated collection, decoding only the given fields of each
+     * element.
+     * 
+     * @see #stream(String, String, Class)
+     * @see Projection
+     */
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> CloseableIterable<T> stream(
+        final String uri, final String accept, final Class<W> pageClass,
+        final Projection projection)
+    {
+        checkNotNull(projection, "projection cannot be null");
+        return stream(getRequest(uri, accept), accept, pageClass, projection);
+    }
+
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> CloseableIterable<T> stream(
+        final String uri, final Map<String, Object> queryParams, final String accept,
+        final Class<W> pageClass)
+    {
+        return stream(getRequest(uri, queryParams, accept), accept, pageClass, null);
+    }
+
+    /**
+     * Streams the elements of a paginated collection, decoding only the given fields of each
+     * element.
+     * 
+     * @see #stream(String, String, Class)
+     * @see Projection
+     */
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> CloseableIterable<T> stream(
+        final String uri, final Map<String, Object> queryParams, final String accept,
+        final Class<W> pageClass, final Projection projection)
+    {
+        checkNotNull(projection, "projection cannot be null");
+        return stream(getRequest(uri, queryParams, accept), accept, pageClass, projection);
+    }
+
+    private <T extends SingleResourceTransportDto, W extends WrapperDto<T>> CloseableIterable<T> stream(
+        final Request request, final String accept, final Class<W> pageClass,
+        final Projection projection)
+    {
+        @SuppressWarnings("unchecked")
+        final Class<T> elementClass =
+            (Class<T>) TypeToken.of(pageClass)
+                .resolveType(WrapperDto.class.getTypeParameters()[0]).getRawType();
+
+        return new CloseableIterable<T>()
+        {
+            @Override
+            public CloseableIterator<T> iterator()
+            {
+                return new PageStream<T>(request, accept, elementClass, projection);
+            }
+        };
+    }
+
     public <T extends SingleResourceTransportDto> T get(final RESTLink link, final Class<T> clazz)
     {
         return get(link.getHref(), link.getType(), clazz);
     }
 
+    /**
+     * Gets the resource decoding only the given fields. The rest of the fields are skipped while
+     * parsing the response. Projected responses are neither cached nor coalesced.
+     * 
+     * @see Projection
+     */
+    public <T extends SingleResourceTransportDto> T get(final RESTLink link, final Class<T> clazz,
+        final Projection projection)
+    {
+        return get(link.getHref(), link.getType(), clazz, projection);
+    }
+
+    public <T extends SingleResourceTransportDto> T get(final String uri, final String accept,
+        final Class<T> returnClass, final Projection projection)
+    {
+        checkNotNull(projection, "projection cannot be null");
+        try
+        {
+            return sendProjected(getRequest(uri, accept), TypeToken.of(returnClass), projection);
+        }
+        catch (IOException ex)
+        {
+            throw Throwables.propagate(ex);
+        }
+    }
+
     public <T extends SingleResourceTransportDto> T get(final String uri, final String accept,
         final Class<T> returnClass)
     {
         try
         {
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).get().build();
+            Request request = getRequest(uri, accept);
 
             return execute(request, returnClass);
         }
@@ -192,9 +428,7 @@ public class RestClient
     {
         try
         {
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).get().build();
+            Request request = getRequest(uri, accept);
 
             return execute(request, returnType);
         }
@@ -204,14 +438,30 @@ public class RestClient
         }
     }
 
+    /**
+     * Gets the given resource and reports the size of its response body to the given listener,
+     * once it has been read. Requests with a size listener are never coalesced.
+     */
+    public <T extends SingleResourceTransportDto> T get(final String uri, final String accept,
+        final Class<T> returnClass, final BodySizeListener sizeListener)
+    {
+        checkNotNull(sizeListener, "sizeListener cannot be null");
+        try
+        {
+            return send(getRequest(uri, accept), TypeToken.of(returnClass), sizeListener);
+        }
+        catch (IOException ex)
+        {
+            throw Throwables.propagate(ex);
+        }
+    }
+
     public <T extends SingleResourceTransportDto> T get(final String uri,
         final Map<String, Object> queryParams, final String accept, final Class<T> returnClass)
     {
         try
         {
-            Request request =
-                new Request.Builder().url(absolute(uri) + "?" + queryLine(queryParams))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).get().build();
+            Request request = getRequest(uri, queryParams, accept);
 
             return execute(request, returnClass);
         }
@@ -226,9 +476,7 @@ public class RestClient
     {
         try
         {
-            Request request =
-                new Request.Builder().url(absolute(uri) + "?" + queryLine(queryParams))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).get().build();
+            Request request = getRequest(uri, queryParams, accept);
 
             return execute(request, returnType);
         }
@@ -242,7 +490,7 @@ public class RestClient
     {
         try
         {
-            Request request = new Request.Builder().url(absolute(uri)).delete().build();
+            Request request = deleteRequest(uri);
             execute(request, (Class< ? >) null);
         }
         catch (IOException ex)
@@ -256,11 +504,7 @@ public class RestClient
     {
         try
         {
-            RequestBody requestBody =
-                RequestBody.create(MediaType.parse(withVersion(contentType)), json.write(body));
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).post(requestBody).build();
+            Request request = postRequest(uri, accept, jsonBody(contentType, body));
 
             return execute(request, returnClass);
         }
@@ -276,11 +520,7 @@ public class RestClient
     {
         try
         {
-            RequestBody requestBody =
-                RequestBody.create(MediaType.parse(withVersion(contentType)), json.write(body));
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).post(requestBody).build();
+            Request request = postRequest(uri, accept, jsonBody(contentType, body));
 
             return execute(request, returnType);
         }
@@ -295,9 +535,7 @@ public class RestClient
     {
         try
         {
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).post(null).build();
+            Request request = postRequest(uri, accept, null);
 
             return execute(request, returnClass);
         }
@@ -312,11 +550,7 @@ public class RestClient
     {
         try
         {
-            RequestBody requestBody =
-                RequestBody.create(MediaType.parse(withVersion(contentType)), body);
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).post(requestBody).build();
+            Request request = postRequest(uri, accept, rawBody(contentType, body));
 
             return execute(request, returnClass);
         }
@@ -331,9 +565,7 @@ public class RestClient
     {
         try
         {
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).post(null).build();
+            Request request = postRequest(uri, accept, null);
 
             return execute(request, returnType);
         }
@@ -348,11 +580,7 @@ public class RestClient
     {
         try
         {
-            RequestBody requestBody =
-                RequestBody.create(MediaType.parse(withVersion(contentType)), json.write(body));
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).put(requestBody).build();
+            Request request = putRequest(uri, accept, jsonBody(contentType, body));
 
             return execute(request, returnClass);
         }
@@ -367,9 +595,7 @@ public class RestClient
     {
         try
         {
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).put(null).build();
+            Request request = putRequest(uri, accept, null);
 
             return execute(request, returnType);
         }
@@ -385,11 +611,7 @@ public class RestClient
     {
         try
         {
-            RequestBody requestBody =
-                RequestBody.create(MediaType.parse(withVersion(contentType)), json.write(body));
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).put(requestBody).build();
+            Request request = putRequest(uri, accept, jsonBody(contentType, body));
 
             return execute(request, returnType);
         }
@@ -404,12 +626,7 @@ public class RestClient
     {
         try
         {
-            String rawBody = json.write(body);
-            RequestBody requestBody =
-                RequestBody.create(MediaType.parse(withVersion(contentType)), rawBody);
-            Request request =
-                new Request.Builder().url(absolute(uri))
-                    .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).put(requestBody).build();
+            Request request = putRequest(uri, accept, jsonBody(contentType, body));
 
             execute(request, (Class< ? >) null);
         }
@@ -419,171 +636,1369 @@ public class RestClient
         }
     }
 
-    private String absolute(final String path)
+    // Asynchronous API. Requests are enqueued in the OkHttp dispatcher and the returned futures
+    // complete when the response has been received and processed, so no caller thread is blocked
+    // while the request is in flight.
+
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> editAsync(final T dto)
     {
-        try
-        {
-            new URL(path);
-        }
-        catch (MalformedURLException e)
-        {
-            return baseURL + (path.startsWith("/") ? path : "/" + path);
-        }
-        return path;
+        RESTLink link =
+            checkNotNull(editLink(dto), "The given object does not have an edit link");
+
+        @SuppressWarnings("unchecked")
+        Class<T> clazz = (Class<T>) dto.getClass();
+
+        return putAsync(link.getHref(), link.getType(), link.getType(), dto, clazz);
     }
 
-    private String withVersion(final String mediaType)
+    public ListenableFuture<Void> deleteAsync(final SingleResourceTransportDto dto)
     {
-        return mediaType.contains("version=") ? mediaType : mediaType + "; version=" + apiVersion;
+        RESTLink link =
+            checkNotNull(editLink(dto), "The given object does not have an edit link");
+        return deleteAsync(link.getHref());
     }
 
-    private String queryLine(final Map<String, Object> queryParams)
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> refreshAsync(final T dto)
     {
-        Map<String, Object> queryParamsSorted = new TreeMap<String, Object>(queryParams);
-        return Joiner.on('&').withKeyValueSeparator("=")
-            .join(transformValues(queryParamsSorted, new Function<Object, String>()
-            {
-                @Override
-                public String apply(final Object input)
-                {
-                    return urlEncode(input.toString());
-                }
-            }));
+        RESTLink link = editOrSelf(dto);
+
+        @SuppressWarnings("unchecked")
+        Class<T> clazz = (Class<T>) dto.getClass();
+
+        checkNotNull(link, "The given object does not have an edit/self link");
+        return getAsync(link.getHref(), link.getType(), clazz);
     }
 
-    public TaskDto waitForTask(final AcceptedRequestDto< ? > acceptedRequest,
-        final int pollInterval, final int maxWait, final TimeUnit timeUnit)
+    /**
+     * Lists the given collection asynchronously.
+     * <p>
+     * Only the first page is fetched asynchronously. The returned future completes when that page
+     * has been received, and the remaining pages are fetched when the returned iterable reaches
+     * them, blocking the thread that iterates it. The returned iterable is an
+     * {@link com.abiquo.apiclient.domain.PageIterator.AdvancingIterable}, and its
+     * <code>prefetch</code> and <code>parallel</code> views can be used to fetch the remaining
+     * pages in the background.
+     */
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> ListenableFuture<Iterable<T>> listAsync(
+        final RESTLink link, final Class<W> clazz)
     {
-        RESTLink status = acceptedRequest.getStatusLink();
+        return Futures.transform(getAsync(link, clazz), this.<T, W> flattenFunction());
+    }
 
-        return waitForTask(status, pollInterval, maxWait, timeUnit);
+    /**
+     * Lists the given collection asynchronously. Only the first page is fetched asynchronously,
+     * as explained in {@link #listAsync(RESTLink, Class)}.
+     */
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> ListenableFuture<Iterable<T>> listAsync(
+        final String uri, final String accept, final Class<W> returnClass)
+    {
+        return Futures.transform(getAsync(uri, accept, returnClass),
+            this.<T, W> flattenFunction());
     }
 
-    public TaskDto waitForTask(final TaskDto taskDto, final int pollInterval, final int maxWait,
-        final TimeUnit timeUnit)
+    /**
+     * Lists the given collection asynchronously. Only the first page is fetched asynchronously,
+     * as explained in {@link #listAsync(RESTLink, Class)}.
+     */
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> ListenableFuture<Iterable<T>> listAsync(
+        final String uri, final String accept, final TypeToken<W> returnType)
     {
-        return waitForTask(taskDto.searchLink("self"), pollInterval, maxWait, timeUnit);
+        return Futures.transform(getAsync(uri, accept, returnType), this.<T, W> flattenFunction());
     }
 
-    private TaskDto waitForTask(final RESTLink restLink, final int pollInterval, final int maxWait,
-        final TimeUnit timeUnit)
+    /**
+     * Lists the given collection asynchronously. Only the first page is fetched asynchronously,
+     * as explained in {@link #listAsync(RESTLink, Class)}.
+     */
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> ListenableFuture<Iterable<T>> listAsync(
+        final String uri, final Map<String, Object> queryParams, final String accept,
+        final Class<W> returnClass)
     {
-        final Stopwatch watch = Stopwatch.createStarted();
-        while (watch.elapsed(timeUnit) < maxWait)
-        {
-            TaskDto updatedTask = get(restLink.getHref(), TaskDto.MEDIA_TYPE, TaskDto.class);
-            switch (updatedTask.getState())
-            {
-                case FINISHED_SUCCESSFULLY:
-                case FINISHED_UNSUCCESSFULLY:
-                case ABORTED:
-                case ACK_ERROR:
-                case CANCELLED:
-                    return updatedTask;
-                case PENDING:
-                case QUEUEING:
-                case STARTED:
-                    // Do nothing and keep waiting
-                    break;
-            }
+        return Futures.transform(getAsync(uri, queryParams, accept, returnClass),
+            this.<T, W> flattenFunction());
+    }
 
-            Uninterruptibles.sleepUninterruptibly(pollInterval, timeUnit);
-        }
+    /**
+     * Lists the given collection asynchronously. Only the first page is fetched asynchronously,
+     * as explained in {@link #listAsync(RESTLink, Class)}.
+     */
+    public <T extends SingleResourceTransportDto, W extends WrapperDto<T>> ListenableFuture<Iterable<T>> listAsync(
+        final String uri, final Map<String, Object> queryParams, final String accept,
+        final TypeToken<W> returnType)
+    {
+        return Futures.transform(getAsync(uri, queryParams, accept, returnType),
+            this.<T, W> flattenFunction());
+    }
 
-        throw new RuntimeException("Task did not complete in the configured timeout");
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> getAsync(
+        final RESTLink link, final Class<T> clazz)
+    {
+        return getAsync(link.getHref(), link.getType(), clazz);
     }
 
-    public VirtualMachineDto waitUntilUnlocked(final VirtualMachineDto vm, final int pollInterval,
-        final int maxWait, final TimeUnit timeUnit)
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> getAsync(final String uri,
+        final String accept, final Class<T> returnClass)
     {
-        Stopwatch watch = Stopwatch.createStarted();
-        while (watch.elapsed(timeUnit) < maxWait)
-        {
-            VirtualMachineDto refreshed = refresh(vm);
-            if (!VirtualMachineState.LOCKED.equals(refreshed.getState()))
-            {
-                return refreshed;
-            }
+        return executeAsync(getRequest(uri, accept), returnClass);
+    }
 
-            Uninterruptibles.sleepUninterruptibly(pollInterval, timeUnit);
-        }
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> getAsync(final String uri,
+        final String accept, final TypeToken<T> returnType)
+    {
+        return executeAsync(getRequest(uri, accept), returnType);
+    }
 
-        throw new RuntimeException("Virtual machine did not reach the desired state in the configured timeout");
+    /**
+     * Gets the given resource asynchronously and reports the size of its response body to the
+     * given listener, before the returned future is completed. Requests with a size listener are
+     * never coalesced.
+     */
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> getAsync(final String uri,
+        final String accept, final Class<T> returnClass, final BodySizeListener sizeListener)
+    {
+        checkNotNull(sizeListener, "sizeListener cannot be null");
+        return sendAsync(getRequest(uri, accept), TypeToken.of(returnClass), sizeListener);
     }
 
-    public VirtualApplianceDto waitUntilUnlocked(final VirtualApplianceDto vapp,
-        final int pollInterval, final int maxWait, final TimeUnit timeUnit)
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> getAsync(final String uri,
+        final Map<String, Object> queryParams, final String accept, final Class<T> returnClass)
     {
-        Stopwatch watch = Stopwatch.createStarted();
-        while (watch.elapsed(timeUnit) < maxWait)
-        {
-            VirtualApplianceDto refreshed = refresh(vapp);
-            if (!VirtualApplianceState.LOCKED.equals(refreshed.getState()))
-            {
-                return refreshed;
-            }
+        return executeAsync(getRequest(uri, queryParams, accept), returnClass);
+    }
 
-            Uninterruptibles.sleepUninterruptibly(pollInterval, timeUnit);
-        }
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> getAsync(final String uri,
+        final Map<String, Object> queryParams, final String accept, final TypeToken<T> returnType)
+    {
+        return executeAsync(getRequest(uri, queryParams, accept), returnType);
+    }
 
-        throw new RuntimeException("Virtual appliance did not reach the desired state in the configured timeout");
+    public ListenableFuture<Void> deleteAsync(final String uri)
+    {
+        return executeAsync(deleteRequest(uri), (Class<Void>) null);
     }
 
-    private <T> T execute(final Request request, final Class<T> resultClass) throws IOException
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> postAsync(final String uri,
+        final String accept, final String contentType, final SingleResourceTransportDto body,
+        final Class<T> returnClass)
     {
-        logRequest(request);
+        return executeAsync(postRequest(uri, accept, jsonBody(contentType, body)), returnClass);
+    }
 
-        Response response = client.newCall(request).execute();
-        String responseBody = response.body().string();
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> postAsync(final String uri,
+        final String accept, final String contentType, final SingleResourceTransportDto body,
+        final TypeToken<T> returnType)
+    {
+        return executeAsync(postRequest(uri, accept, jsonBody(contentType, body)), returnType);
+    }
 
-        logResponse(response, responseBody);
-        checkResponse(request, response, responseBody);
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> postAsync(final String uri,
+        final String accept, final Class<T> returnClass)
+    {
+        return executeAsync(postRequest(uri, accept, null), returnClass);
+    }
 
-        return !Strings.isNullOrEmpty(responseBody) && resultClass != null ? json.read(
-            responseBody, resultClass) : null;
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> postAsync(final String uri,
+        final String accept, final String contentType, final String body,
+        final Class<T> returnClass)
+    {
+        return executeAsync(postRequest(uri, accept, rawBody(contentType, body)), returnClass);
     }
 
-    private <T> T execute(final Request request, final TypeToken<T> returnType) throws IOException
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> postAsync(final String uri,
+        final String accept, final TypeToken<T> returnType)
     {
-        logRequest(request);
+        return executeAsync(postRequest(uri, accept, null), returnType);
+    }
 
-        Response response = client.newCall(request).execute();
-        String responseBody = response.body().string();
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> putAsync(final String uri,
+        final String accept, final String contentType, final SingleResourceTransportDto body,
+        final Class<T> returnClass)
+    {
+        return executeAsync(putRequest(uri, accept, jsonBody(contentType, body)), returnClass);
+    }
 
-        logResponse(response, responseBody);
-        checkResponse(request, response, responseBody);
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> putAsync(final String uri,
+        final String accept, final TypeToken<T> returnType)
+    {
+        return executeAsync(putRequest(uri, accept, null), returnType);
+    }
 
-        return !Strings.isNullOrEmpty(responseBody) && returnType != null ? json.read(responseBody,
-            returnType) : null;
+    public <T extends SingleResourceTransportDto> ListenableFuture<T> putAsync(final String uri,
+        final String accept, final String contentType, final SingleResourceTransportDto body,
+        final TypeToken<T> returnType)
+    {
+        return executeAsync(putRequest(uri, accept, jsonBody(contentType, body)), returnType);
     }
 
-    private void checkResponse(final Request request, final Response response,
-        final String responseBody) throws IOException
+    public ListenableFuture<Void> putAsync(final String uri, final String accept,
+        final String contentType, final SingleResourceTransportDto body)
     {
-        int responseCode = response.code();
-        if (responseCode == 401 || responseCode == 403)
-        {
-            throw new AuthorizationException(responseCode, response.message());
-        }
-        else if (responseCode >= 400)
+        return executeAsync(putRequest(uri, accept, jsonBody(contentType, body)),
+            (Class<Void>) null);
+    }
+
+    private <T extends SingleResourceTransportDto, W extends WrapperDto<T>> Function<W, Iterable<T>> flattenFunction()
+    {
+        return new Function<W, Iterable<T>>()
         {
-            if (responseBody == null)
+            @Override
+            public Iterable<T> apply(final W input)
             {
-                throw new HttpException(responseCode, response.message());
+                return flatten(RestClient.this, input);
             }
+        };
+    }
 
-            try
-            {
-                ErrorsDto errors = json.read(responseBody, ErrorsDto.class);
-                throw new AbiquoException(responseCode, errors);
-            }
-            catch (Exception ex)
+    private Request getRequest(final String uri, final String accept)
+    {
+        return new Request.Builder().url(absolute(uri))
+            .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).get().build();
+    }
+
+    private Request getRequest(final String uri, final Map<String, Object> queryParams,
+        final String accept)
+    {
+        StringBuilder url = new StringBuilder(absolute(uri)).append('?');
+        appendQueryLine(url, queryParams);
+        return new Request.Builder().url(url.toString())
+            .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).get().build();
+    }
+
+    private Request postRequest(final String uri, final String accept, final RequestBody body)
+    {
+        return new Request.Builder().url(absolute(uri))
+            .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).post(body).build();
+    }
+
+    private Request putRequest(final String uri, final String accept, final RequestBody body)
+    {
+        return new Request.Builder().url(absolute(uri))
+            .addHeader(HttpHeaders.ACCEPT, withVersion(accept)).put(body).build();
+    }
+
+    private Request deleteRequest(final String uri)
+    {
+        return new Request.Builder().url(absolute(uri)).delete().build();
+    }
+
+    private RequestBody jsonBody(final String contentType, final SingleResourceTransportDto body)
+    {
+        MediaType mediaType = jsonMediaTypes.get(contentType);
+        if (mediaType == null)
+        {
+            mediaType = MediaType.parse(withVersion(contentType));
+            if (mediaType.charset() == null)
             {
-                Throwables.propagateIfInstanceOf(ex, AbiquoException.class);
-                throw new HttpException(responseCode, response.message() + ". Body: "
-                    + responseBody);
+                // Jackson always writes UTF-8
+                mediaType = MediaType.parse(mediaType + "; charset=utf-8");
             }
+            cache(jsonMediaTypes, contentType, mediaType);
+        }
+        return new JsonRequestBody(json, mediaType, body);
+    }
+
+    private RequestBody rawBody(final String contentType, final String body)
+    {
+        return RequestBody.create(MediaType.parse(withVersion(contentType)), body);
+    }
+
+    private String absolute(final String path)
+    {
+        if (path.regionMatches(true, 0, "http://", 0, 7)
+            || path.regionMatches(true, 0, "https://", 0, 8))
+        {
+            return path;
         }
+        return path.startsWith("/") ? baseURL + path : baseURL + "/" + path;
     }
 
+    private String withVersion(final String mediaType)
+    {
+        String versioned = versionedMediaTypes.get(mediaType);
+        if (versioned == null)
+        {
+            versioned =
+                mediaType.contains("version=") ? mediaType : mediaType + "; version="
+                    + apiVersion;
+            cache(versionedMediaTypes, mediaType, versioned);
+        }
+        return versioned;
+    }
+
+    private static <V> void cache(final ConcurrentMap<String, V> cache, final String key,
+        final V value)
+    {
+        // Media types are a small, fixed set. The limit just protects against unexpected inputs
+        if (cache.size() < MAX_CACHED_MEDIA_TYPES)
+        {
+            cache.putIfAbsent(key, value);
+        }
+    }
+
+    private static void appendQueryLine(final StringBuilder url,
+        final Map<String, Object> queryParams)
+    {
+        // Parameters are sorted to always generate the same URL for the same parameters
+        Map<String, Object> sorted =
+            queryParams instanceof SortedMap
+                && isNaturalOrder(((SortedMap<String, Object>) queryParams).comparator())
+                ? queryParams : new TreeMap<String, Object>(queryParams);
+
+        boolean first = true;
+        for (Map.Entry<String, Object> param : sorted.entrySet())
+        {
+            if (!first)
+            {
+                url.append('&');
+            }
+            url.append(param.getKey()).append('=').append(urlEncode(param.getValue().toString()));
+            first = false;
+        }
+    }
+
+    private static boolean isNaturalOrder(final Comparator< ? > comparator)
+    {
+        return comparator == null || Ordering.natural().equals(comparator);
+    }
+
+    // Waits for asynchronous operations. The polls are planned by the polling strategy and
+    // scheduled in the poll scheduler of the transport, so no thread is blocked between polls when
+    // using the asynchronous variants. The futures they return fail if the operation does not
+    // complete in the given time, and cancelling them stops the polling.
+
+    public TaskDto waitForTask(final AcceptedRequestDto< ? > acceptedRequest,
+        final int pollInterval, final int maxWait, final TimeUnit timeUnit)
+    {
+        return await(waitForTaskAsync(acceptedRequest, pollInterval, maxWait, timeUnit));
+    }
+
+    /**
+     * Waits for the task of a request performed in the given virtual datacenter. The polling
+     * strategy learns the duration of the task for the hypervisor type of the virtual datacenter.
+     */
+    public TaskDto waitForTask(final AcceptedRequestDto< ? > acceptedRequest,
+        final VirtualDatacenterDto vdc, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        return await(waitForTaskAsync(acceptedRequest, vdc, pollInterval, maxWait, timeUnit));
+    }
+
+    public TaskDto waitForTask(final TaskDto taskDto, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        return await(waitForTaskAsync(taskDto, pollInterval, maxWait, timeUnit));
+    }
+
+    public VirtualMachineDto waitUntilUnlocked(final VirtualMachineDto vm, final int pollInterval,
+        final int maxWait, final TimeUnit timeUnit)
+    {
+        return await(waitUntilUnlockedAsync(vm, pollInterval, maxWait, timeUnit));
+    }
+
+    /**
+     * Waits until the given virtual machine is unlocked after performing the given operation. The
+     * polling strategy learns the duration of each operation.
+     */
+    public VirtualMachineDto waitUntilUnlocked(final VirtualMachineDto vm,
+        final Operation operation, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        return await(waitUntilUnlockedAsync(vm, operation, pollInterval, maxWait, timeUnit));
+    }
+
+    public VirtualApplianceDto waitUntilUnlocked(final VirtualApplianceDto vapp,
+        final int pollInterval, final int maxWait, final TimeUnit timeUnit)
+    {
+        return await(waitUntilUnlockedAsync(vapp, pollInterval, maxWait, timeUnit));
+    }
+
+    /**
+     * Waits until the given virtual appliance is unlocked after performing the given operation.
+     * The polling strategy learns the duration of each operation.
+     */
+    public VirtualApplianceDto waitUntilUnlocked(final VirtualApplianceDto vapp,
+        final Operation operation, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        return await(waitUntilUnlockedAsync(vapp, operation, pollInterval, maxWait, timeUnit));
+    }
+
+    public ListenableFuture<TaskDto> waitForTaskAsync(final AcceptedRequestDto< ? > acceptedRequest,
+        final int pollInterval, final int maxWait, final TimeUnit timeUnit)
+    {
+        RESTLink status = acceptedRequest.getStatusLink();
+
+        return waitForTaskAsync(status, null, pollInterval, maxWait, timeUnit);
+    }
+
+    public ListenableFuture<TaskDto> waitForTaskAsync(final AcceptedRequestDto< ? > acceptedRequest,
+        final VirtualDatacenterDto vdc, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        RESTLink status = acceptedRequest.getStatusLink();
+
+        return waitForTaskAsync(status, vdc.getHypervisorType(), pollInterval, maxWait, timeUnit);
+    }
+
+    public ListenableFuture<TaskDto> waitForTaskAsync(final TaskDto taskDto,
+        final int pollInterval, final int maxWait, final TimeUnit timeUnit)
+    {
+        return waitForTaskAsync(searchLink(taskDto, "self"), null, pollInterval, maxWait,
+            timeUnit);
+    }
+
+    private ListenableFuture<TaskDto> waitForTaskAsync(final RESTLink restLink,
+        final String hypervisorType, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        return poll(new Supplier<ListenableFuture<TaskDto>>()
+        {
+            @Override
+            public ListenableFuture<TaskDto> get()
+            {
+                return getAsync(restLink.getHref(), TaskDto.MEDIA_TYPE, TaskDto.class);
+            }
+        }, new Predicate<TaskDto>()
+        {
+            @Override
+            public boolean apply(final TaskDto updatedTask)
+            {
+                switch (updatedTask.getState())
+                {
+                    case FINISHED_SUCCESSFULLY:
+                    case FINISHED_UNSUCCESSFULLY:
+                    case ABORTED:
+                    case ACK_ERROR:
+                    case CANCELLED:
+                        return true;
+                    default:
+                        // Keep waiting
+                        return false;
+                }
+            }
+        }, new Function<TaskDto, Operation>()
+        {
+            @Override
+            public Operation apply(final TaskDto task)
+            {
+                // The type of the task is only known once the first poll has been received
+                return Operation.of(String.valueOf(task.getType()), hypervisorType);
+            }
+        }, pollInterval, maxWait, timeUnit, "Task did not complete in the configured timeout",
+            null);
+    }
+
+    public ListenableFuture<VirtualMachineDto> waitUntilUnlockedAsync(final VirtualMachineDto vm,
+        final int pollInterval, final int maxWait, final TimeUnit timeUnit)
+    {
+        return waitUntilUnlockedAsync(vm, Operation.of("UNLOCK_VIRTUAL_MACHINE"), pollInterval,
+            maxWait, timeUnit);
+    }
+
+    public ListenableFuture<VirtualMachineDto> waitUntilUnlockedAsync(final VirtualMachineDto vm,
+        final Operation operation, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        return poll(new Supplier<ListenableFuture<VirtualMachineDto>>()
+        {
+            @Override
+            public ListenableFuture<VirtualMachineDto> get()
+            {
+                return refreshAsync(vm);
+            }
+        }, new Predicate<VirtualMachineDto>()
+        {
+            @Override
+            public boolean apply(final VirtualMachineDto refreshed)
+            {
+                return !VirtualMachineState.LOCKED.equals(refreshed.getState());
+            }
+        }, Functions.constant(operation), pollInterval, maxWait, timeUnit,
+            "Virtual machine did not reach the desired state in the configured timeout",
+            resourcePath(vm));
+    }
+
+    public ListenableFuture<VirtualApplianceDto> waitUntilUnlockedAsync(
+        final VirtualApplianceDto vapp, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        return waitUntilUnlockedAsync(vapp, Operation.of("UNLOCK_VIRTUAL_APPLIANCE"),
+            pollInterval, maxWait, timeUnit);
+    }
+
+    public ListenableFuture<VirtualApplianceDto> waitUntilUnlockedAsync(
+        final VirtualApplianceDto vapp, final Operation operation, final int pollInterval,
+        final int maxWait, final TimeUnit timeUnit)
+    {
+        return poll(new Supplier<ListenableFuture<VirtualApplianceDto>>()
+        {
+            @Override
+            public ListenableFuture<VirtualApplianceDto> get()
+            {
+                return refreshAsync(vapp);
+            }
+        }, new Predicate<VirtualApplianceDto>()
+        {
+            @Override
+            public boolean apply(final VirtualApplianceDto refreshed)
+            {
+                return !VirtualApplianceState.LOCKED.equals(refreshed.getState());
+            }
+        }, Functions.constant(operation), pollInterval, maxWait, timeUnit,
+            "Virtual appliance did not reach the desired state in the configured timeout",
+            resourcePath(vapp));
+    }
+
+    /**
+     * Polls until the response satisfies the given condition, planning the polls with the polling
+     * strategy. If a completion source is configured and the path of the polled resource is given,
+     * the resource is also polled each time the source notifies a change on it, and the planned
+     * delays are raised to the safety interval.
+     * <p>
+     * Package private. To be used only by the APIs that wait for asynchronous operations.
+     */
+    <T> ListenableFuture<T> poll(final Supplier<ListenableFuture<T>> request,
+        final Predicate< ? super T> done, final Function< ? super T, Operation> operation,
+        final int pollInterval, final int maxWait, final TimeUnit timeUnit,
+        final String timeoutMessage, final String resourcePath)
+    {
+        if (completionSource == null || resourcePath == null)
+        {
+            return new Poll<T>(request, done, operation, timeUnit.toNanos(pollInterval), 0,
+                maxWait, timeUnit, timeoutMessage).start();
+        }
+
+        final Poll<T> poll =
+            new Poll<T>(request, done, operation, timeUnit.toNanos(pollInterval),
+                safetyPollNanos, maxWait, timeUnit, timeoutMessage);
+        final CompletionSource.Subscription subscription =
+            completionSource.subscribe(resourcePath, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    poll.wakeUp();
+                }
+            });
+
+        ListenableFuture<T> result = poll.start();
+        result.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                subscription.cancel();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    // The path of the given resource relative to the API endpoint
+    private String resourcePath(final SingleResourceTransportDto dto)
+    {
+        RESTLink link = Links.editOrSelf(dto);
+        if (link == null)
+        {
+            return null;
+        }
+
+        String path = URI.create(absolute(link.getHref())).getPath();
+        String base = basePath();
+        return path.startsWith(base) ? path.substring(base.length()) : path;
+    }
+
+    // Package private. To be used only by the APIs that wait for asynchronous operations
+    static <T> T await(final ListenableFuture<T> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            // Stop polling if the waiting thread is interrupted
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            // Propagate the failure as the synchronous requests do
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    private <T> T execute(final Request request, final Class<T> resultClass) throws IOException
+    {
+        return execute(request, resultClass == null ? null : TypeToken.of(resultClass));
+    }
+
+    private <T> T execute(final Request request, final TypeToken<T> returnType) throws IOException
+    {
+        if (!coalesce(request, returnType))
+        {
+            return send(request, returnType, null);
+        }
+
+        return coalescer.execute(request, returnType.getType(), new Callable<T>()
+        {
+            @Override
+            public T call() throws IOException
+            {
+                return send(request, returnType, null);
+            }
+        });
+    }
+
+    private <T> T send(final Request request, final TypeToken<T> returnType,
+        final BodySizeListener sizeListener) throws IOException
+    {
+        ResponseCache.Entry cached = cached(request, returnType);
+        Request actual = tagged(cached == null ? request : cached.conditional(request));
+
+        logRequest(actual);
+        fire(Phase.REQUEST_BUILT, actual);
+
+        Response response;
+        try
+        {
+            response = client.newCall(actual).execute();
+        }
+        catch (IOException ex)
+        {
+            fire(Phase.FAILED, actual);
+            throw ex;
+        }
+        return readResponse(actual, response, returnType, cached, sizeListener);
+    }
+
+    private <T> ListenableFuture<T> executeAsync(final Request request, final Class<T> resultClass)
+    {
+        return executeAsync(request, resultClass == null ? null : TypeToken.of(resultClass));
+    }
+
+    private <T> ListenableFuture<T> executeAsync(final Request request,
+        final TypeToken<T> returnType)
+    {
+        if (!coalesce(request, returnType))
+        {
+            return sendAsync(request, returnType, null);
+        }
+
+        return coalescer.executeAsync(request, returnType.getType(),
+            new Supplier<ListenableFuture<T>>()
+            {
+                @Override
+                public ListenableFuture<T> get()
+                {
+                    return sendAsync(request, returnType, null);
+                }
+            });
+    }
+
+    private <T> ListenableFuture<T> sendAsync(final Request unconditional,
+        final TypeToken<T> returnType, final BodySizeListener sizeListener)
+    {
+        final SettableFuture<T> future = SettableFuture.create();
+        final ResponseCache.Entry cached = cached(unconditional, returnType);
+        final Request request =
+            tagged(cached == null ? unconditional : cached.conditional(unconditional));
+
+        try
+        {
+            logRequest(request);
+            fire(Phase.REQUEST_BUILT, request);
+        }
+        catch (IOException ex)
+        {
+            future.setException(ex);
+            return future;
+        }
+
+        final AsyncCall<T> call =
+            new AsyncCall<T>(request, returnType, cached, sizeListener, future);
+
+        // Propagate the cancellation of the future to the underlying HTTP call
+        future.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (future.isCancelled())
+                {
+                    call.cancel();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        call.run();
+        return future;
+    }
+
+    /**
+     * Sends a request asynchronously. If the request can be retried, the retries are scheduled in
+     * the poll scheduler instead of waiting for the backoff in the OkHttp dispatcher threads.
+     */
+    private class AsyncCall<T> implements Callback, Runnable
+    {
+        private final Request request;
+
+        private final Request sent;
+
+        private final TypeToken<T> returnType;
+
+        private final ResponseCache.Entry cached;
+
+        private final BodySizeListener sizeListener;
+
+        private final SettableFuture<T> future;
+
+        private final boolean retried;
+
+        private volatile int attempt = 1;
+
+        private volatile Call call;
+
+        private volatile Future< ? > retry;
+
+        public AsyncCall(final Request request, final TypeToken<T> returnType,
+            final ResponseCache.Entry cached, final BodySizeListener sizeListener,
+            final SettableFuture<T> future)
+        {
+            this.request = request;
+            this.returnType = returnType;
+            this.cached = cached;
+            this.sizeListener = sizeListener;
+            this.future = future;
+            this.retried = retryPolicy != null && retryPolicy.isRetryable(request);
+            if (retried)
+            {
+                retryPolicy.onRequest();
+            }
+            this.sent =
+                retried ? request.newBuilder().header(RetryInterceptor.RETRIED_BY_CALLER, "true")
+                    .build() : request;
+        }
+
+        @Override
+        public void run()
+        {
+            if (future.isDone())
+            {
+                return;
+            }
+            Call current = client.newCall(sent);
+            call = current;
+            current.enqueue(this);
+            // The future may have been cancelled before the call was set
+            if (future.isCancelled())
+            {
+                current.cancel();
+            }
+        }
+
+        public void cancel()
+        {
+            Future< ? > pending = retry;
+            if (pending != null)
+            {
+                pending.cancel(false);
+            }
+            Call current = call;
+            if (current != null)
+            {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void onFailure(final Request failed, final IOException ex)
+        {
+            if (future.isDone())
+            {
+                return;
+            }
+            if (retried && retryPolicy.isRetryable(ex) && retryPolicy.tryRetry(attempt))
+            {
+                retryAfter(retryPolicy.backoff(attempt++, null));
+                return;
+            }
+
+            fire(Phase.FAILED, request);
+            future.setException(ex);
+        }
+
+        @Override
+        public void onResponse(final Response response)
+        {
+            // Catch everything: OkHttp only handles IOExceptions thrown by callbacks, and the
+            // future must always be completed
+            try
+            {
+                if (retried && retryPolicy.isRetryable(response)
+                    && retryPolicy.tryRetry(attempt))
+                {
+                    long backoff = retryPolicy.backoff(attempt++, response);
+                    response.body().close();
+                    retryAfter(backoff);
+                    return;
+                }
+
+                future.set(readResponse(request, response, returnType, cached, sizeListener));
+            }
+            catch (Throwable ex)
+            {
+                future.setException(ex);
+            }
+        }
+
+        private void retryAfter(final long backoffMillis)
+        {
+            Future< ? > next;
+            try
+            {
+                next = pollScheduler.schedule(this, backoffMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RuntimeException ex)
+            {
+                // The transport has been closed
+                future.setException(ex);
+                return;
+            }
+            retry = next;
+            // The future may have been cancelled before the retry was scheduled
+            if (future.isCancelled())
+            {
+                next.cancel(false);
+            }
+        }
+    }
+
+    private Request tagged(final Request request)
+    {
+        // Requests are only tagged if there is someone listening to their events
+        return listener == null ? request : request.newBuilder()
+            .tag(CallEvent.newCallTag(callIds.incrementAndGet())).build();
+    }
+
+    private void fire(final Phase phase, final Request request)
+    {
+        if (listener != null)
+        {
+            listener.onEvent(new CallEvent(phase, CallEvent.callId(request), request));
+        }
+    }
+
+    private boolean coalesce(final Request request, final TypeToken< ? > returnType)
+    {
+        return coalescer != null && returnType != null && "GET".equals(request.method());
+    }
+
+    private ResponseCache.Entry cached(final Request request, final TypeToken< ? > returnType)
+    {
+        return cacheable(request, returnType) ? responseCache.lookup(authentication, request)
+            : null;
+    }
+
+    private boolean cacheable(final Request request, final TypeToken< ? > returnType)
+    {
+        return responseCache != null && returnType != null && "GET".equals(request.method());
+    }
+
+    private void cache(final Request request, final TypeToken< ? > returnType,
+        final Response response, final byte[] body)
+    {
+        if (cacheable(request, returnType))
+        {
+            responseCache.store(authentication, request, response, body);
+        }
+    }
+
+    private <T> T sendProjected(final Request request, final TypeToken<T> returnType,
+        final Projection projection) throws IOException
+    {
+        Request actual = tagged(request);
+        InputStream in = openStream(actual);
+        try
+        {
+            T result = json.read(in, returnType, projection);
+            fire(Phase.JSON_DECODED, actual);
+            return result;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // Sends the request and returns the body of the successful response as a stream
+    private InputStream openStream(final Request request) throws IOException
+    {
+        logRequest(request);
+        fire(Phase.REQUEST_BUILT, request);
+
+        Response response;
+        try
+        {
+            response = client.newCall(request).execute();
+        }
+        catch (IOException ex)
+        {
+            fire(Phase.FAILED, request);
+            throw ex;
+        }
+
+        if (response.code() < 400 && !isDebugEnabled())
+        {
+            fire(Phase.RESPONSE_CHECKED, request);
+            return response.body().byteStream();
+        }
+
+        String responseBody = response.body().string();
+        fire(Phase.BODY_READ, request);
+
+        logResponse(response, responseBody);
+        checkResponse(request, response, responseBody);
+        fire(Phase.RESPONSE_CHECKED, request);
+        return new ByteArrayInputStream(responseBody.getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Iterates the elements of a paginated collection reading each page as a stream. Only the
+     * response of the page being read is kept open.
+     */
+    private class PageStream<T> extends AbstractIterator<T> implements CloseableIterator<T>
+    {
+        private final String accept;
+
+        private final Class<T> elementClass;
+
+        private final Projection projection;
+
+        private Request nextPage;
+
+        private Request currentPage;
+
+        private PageParser<T> parser;
+
+        public PageStream(final Request firstPage, final String accept,
+            final Class<T> elementClass, final Projection projection)
+        {
+            this.nextPage = firstPage;
+            this.accept = accept;
+            this.elementClass = elementClass;
+            this.projection = projection;
+        }
+
+        @Override
+        protected T computeNext()
+        {
+            try
+            {
+                while (true)
+                {
+                    if (parser == null)
+                    {
+                        if (nextPage == null)
+                        {
+                            return endOfData();
+                        }
+                        currentPage = tagged(nextPage);
+                        parser =
+                            json.readPage(openStream(currentPage), elementClass, projection);
+                    }
+
+                    if (parser.hasNext())
+                    {
+                        return parser.next();
+                    }
+
+                    // The links come after the elements, so they are read once the page ends
+                    RESTLink next = parser.searchLink("next");
+                    fire(Phase.JSON_DECODED, currentPage);
+                    close();
+                    nextPage = next == null ? null : getRequest(next.getHref(), accept);
+                }
+            }
+            catch (IOException ex)
+            {
+                closeQuietly();
+                throw Throwables.propagate(ex);
+            }
+            catch (RuntimeException ex)
+            {
+                closeQuietly();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (parser != null)
+            {
+                PageParser<T> current = parser;
+                parser = null;
+                current.close();
+            }
+        }
+
+        private void closeQuietly()
+        {
+            try
+            {
+                close();
+            }
+            catch (IOException ex)
+            {
+                // The original failure is more relevant
+            }
+        }
+    }
+
+    private <T> T readResponse(final Request request, final Response response,
+        final TypeToken<T> returnType, final ResponseCache.Entry cached,
+        final BodySizeListener sizeListener) throws IOException
+    {
+        if (cached != null)
+        {
+            if (response.code() == 304)
+            {
+                response.body().close();
+                logResponse(response, null);
+                // Each caller gets its own copy of the cached resource
+                return json.read(new ByteArrayInputStream(responseCache.hit(cached)), returnType);
+            }
+            responseCache.miss(cached);
+        }
+
+        // Successful responses are decoded straight from the response stream. The body is only
+        // materialized when it has to be cached, logged or parsed as an error
+        if (returnType != null && response.code() < 400 && !isDebugEnabled())
+        {
+            fire(Phase.RESPONSE_CHECKED, request);
+            ResponseBody body = response.body();
+            try
+            {
+                CountingSource counting = sizeListener == null ? null : new CountingSource(body);
+                BufferedSource source = counting == null ? body.source() : Okio.buffer(counting);
+                T result;
+                byte[] bytes = null;
+                if (cacheable(request, returnType) && ResponseCache.isCacheable(response))
+                {
+                    bytes = source.readByteArray();
+                    result =
+                        bytes.length == 0 ? null : json.read(new ByteArrayInputStream(bytes),
+                            returnType);
+                }
+                else
+                {
+                    result =
+                        source.exhausted() ? null : json.read(source.inputStream(), returnType);
+                }
+                if (counting != null)
+                {
+                    sizeListener.onBodyRead(counting.getCount());
+                }
+                fire(Phase.BODY_READ, request);
+                fire(Phase.JSON_DECODED, request);
+                cache(request, returnType, response, bytes);
+                return result;
+            }
+            finally
+            {
+                body.close();
+            }
+        }
+
+        String responseBody = response.body().string();
+        if (sizeListener != null)
+        {
+            sizeListener.onBodyRead(Utf8.encodedLength(responseBody));
+        }
+        fire(Phase.BODY_READ, request);
+
+        logResponse(response, responseBody);
+        checkResponse(request, response, responseBody);
+        fire(Phase.RESPONSE_CHECKED, request);
+
+        T result =
+            !Strings.isNullOrEmpty(responseBody) && returnType != null ? json.read(responseBody,
+                returnType) : null;
+        fire(Phase.JSON_DECODED, request);
+        cache(request, returnType, response, responseBody.getBytes(Charsets.UTF_8));
+        return result;
+    }
+
+    // Counts the bytes read from a response body
+    private static class CountingSource extends ForwardingSource
+    {
+        private long count;
+
+        public CountingSource(final ResponseBody body)
+        {
+            super(body.source());
+        }
+
+        @Override
+        public long read(final Buffer sink, final long byteCount) throws IOException
+        {
+            long read = super.read(sink, byteCount);
+            if (read > 0)
+            {
+                count += read;
+            }
+            return read;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+    }
+
+    private void checkResponse(final Request request, final Response response,
+        final String responseBody) throws IOException
+    {
+        int responseCode = response.code();
+        if (responseCode == 401 || responseCode == 403)
+        {
+            throw new AuthorizationException(responseCode, response.message());
+        }
+        else if (responseCode >= 400)
+        {
+            if (responseBody == null)
+            {
+                throw new HttpException(responseCode, response.message());
+            }
+
+            try
+            {
+                ErrorsDto errors = json.read(responseBody, ErrorsDto.class);
+                throw new AbiquoException(responseCode, errors);
+            }
+            catch (Exception ex)
+            {
+                Throwables.propagateIfInstanceOf(ex, AbiquoException.class);
+                throw new HttpException(responseCode, response.message() + ". Body: "
+                    + responseBody);
+            }
+        }
+    }
+
+    /**
+     * Sends a request until its response satisfies the given condition, waiting the delays planned
+     * by the polling strategy between requests in the poll scheduler.
+     * <p>
+     * There is at most one request in flight. Wake ups received while a request is in flight do
+     * not send another one, but make the poll send the next request as soon as the current one
+     * completes.
+     */
+    private class Poll<T> implements FutureCallback<T>, Runnable
+    {
+        private final SettableFuture<T> result = SettableFuture.create();
+
+        private final Stopwatch watch = Stopwatch.createStarted();
+
+        private final Supplier<ListenableFuture<T>> request;
+
+        private final Predicate< ? super T> done;
+
+        private final Function< ? super T, Operation> operation;
+
+        private final long pollIntervalNanos;
+
+        private final long minDelayNanos;
+
+        private final long maxWaitNanos;
+
+        private final String timeoutMessage;
+
+        // Set when the resource must be polled again as soon as the current request completes
+        private final AtomicBoolean woken = new AtomicBoolean();
+
+        // Set while a request is being sent or waiting for its response
+        private final AtomicBoolean inFlight = new AtomicBoolean();
+
+        // The request in flight or the scheduled wait for the next one
+        private volatile Future< ? > pending;
+
+        // The scheduled wait for the next request, if any
+        private volatile Future< ? > wait;
+
+        // Created when the first response tells the operation being waited for
+        private volatile Schedule schedule;
+
+        // The number of requests sent and the times they were sent, relative to the start. Only
+        // accessed by the thread that holds the in-flight flag
+        private int polls;
+
+        private long lastPollNanos;
+
+        private long previousPollNanos;
+
+        public Poll(final Supplier<ListenableFuture<T>> request, final Predicate< ? super T> done,
+            final Function< ? super T, Operation> operation, final long pollIntervalNanos,
+            final long minDelayNanos, final int maxWait, final TimeUnit timeUnit,
+            final String timeoutMessage)
+        {
+            this.request = checkNotNull(request, "request cannot be null");
+            this.done = checkNotNull(done, "done cannot be null");
+            this.operation = checkNotNull(operation, "operation cannot be null");
+            this.pollIntervalNanos = pollIntervalNanos;
+            this.minDelayNanos = minDelayNanos;
+            this.maxWaitNanos = checkNotNull(timeUnit, "timeUnit cannot be null").toNanos(maxWait);
+            this.timeoutMessage = timeoutMessage;
+        }
+
+        public ListenableFuture<T> start()
+        {
+            // Propagate the cancellation of the poll to the pending request or wait
+            result.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Future< ? > current = pending;
+                    if (result.isCancelled() && current != null)
+                    {
+                        current.cancel(true);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+
+            run();
+            return result;
+        }
+
+        /**
+         * Polls the resource now if the poll is waiting for the next interval, or as soon as the
+         * request in flight completes.
+         */
+        public void wakeUp()
+        {
+            woken.set(true);
+            resumeWait(wait);
+        }
+
+        @Override
+        public void run()
+        {
+            if (result.isDone())
+            {
+                return;
+            }
+            if (!inFlight.compareAndSet(false, true))
+            {
+                // Poll again when the request in flight completes
+                woken.set(true);
+                return;
+            }
+            if (watch.elapsed(TimeUnit.NANOSECONDS) >= maxWaitNanos)
+            {
+                result.setException(new RuntimeException(timeoutMessage));
+                return;
+            }
+
+            try
+            {
+                previousPollNanos = lastPollNanos;
+                lastPollNanos = watch.elapsed(TimeUnit.NANOSECONDS);
+                polls++;
+
+                ListenableFuture<T> response = request.get();
+                setPending(response);
+                Futures.addCallback(response, this);
+            }
+            catch (RuntimeException ex)
+            {
+                result.setException(ex);
+            }
+        }
+
+        @Override
+        public void onSuccess(final T response)
+        {
+            try
+            {
+                if (schedule == null)
+                {
+                    schedule =
+                        pollingStrategy.schedule(operation.apply(response), pollIntervalNanos);
+                }
+
+                if (done.apply(response))
+                {
+                    finished();
+                    result.set(response);
+                }
+                else if (woken.getAndSet(false))
+                {
+                    inFlight.set(false);
+                    run();
+                }
+                else
+                {
+                    long elapsed = watch.elapsed(TimeUnit.NANOSECONDS);
+                    long delay =
+                        Math.max(schedule.nextDelayNanos(polls, elapsed), minDelayNanos);
+                    // Do not wait past the timeout, so it is reported on time
+                    delay = Math.min(delay, Math.max(maxWaitNanos - elapsed, 0));
+                    // Released before scheduling, as the wait may expire right away
+                    inFlight.set(false);
+                    Future< ? > next =
+                        pollScheduler.schedule(this, delay, TimeUnit.NANOSECONDS);
+                    wait = next;
+                    setPending(next);
+                    // Do not miss the wake ups received while scheduling the wait
+                    if (woken.get())
+                    {
+                        resumeWait(next);
+                    }
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                result.setException(ex);
+            }
+        }
+
+        @Override
+        public void onFailure(final Throwable ex)
+        {
+            result.setException(ex);
+        }
+
+        private void finished()
+        {
+            // The operation finished at some point between the last two requests
+            long overshootNanos = polls > 1 ? lastPollNanos - previousPollNanos : 0;
+            schedule.finished(polls, lastPollNanos, overshootNanos);
+            if (metrics != null)
+            {
+                metrics.recordWait(pollingStrategyName, polls, overshootNanos);
+            }
+        }
+
+        private void resumeWait(final Future< ? > current)
+        {
+            // Only the thread that cancels the wait polls again. Once the wait has expired it
+            // cannot be cancelled, and the poll it runs sees the wake up when it completes
+            if (current != null && current.cancel(false))
+            {
+                woken.set(false);
+                run();
+            }
+        }
+
+        private void setPending(final Future< ? > future)
+        {
+            pending = future;
+            // The poll may have been cancelled before the future was set
+            if (result.isCancelled())
+            {
+                future.cancel(true);
+            }
+        }
+    }
 }
@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.abiquo.apiclient.domain.exception.RequestRejectedException;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HttpHeaders;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * Decides which failed requests are retried and how long to wait before each attempt.
+ * <p>
+ * Failed requests are retried using an exponential backoff with jitter, honoring the
+ * <code>Retry-After</code> header sent by the server. Only idempotent requests (GET, HEAD, PUT
+ * and DELETE) are retried by default.
+ * <p>
+ * Synchronous requests wait for the backoff in the calling thread. The retries of asynchronous
+ * requests are scheduled in the poll scheduler of the transport, so the backoff does not hold an
+ * OkHttp dispatcher thread nor count against the limits of concurrent requests.
+ * <p>
+ * To prevent retries from overloading a server that is already failing, the policy keeps a retry
+ * budget: each request adds a fraction of a token to the budget and each retry consumes a full
+ * token. When the budget is exhausted, failed requests are not retried. Policies can be shared by
+ * several clients, and in that case all of them share the same budget.
+ * 
+ * @author Ignasi Barrera
+ */
+public class RetryPolicy
+{
+    private static final Set<String> IDEMPOTENT_METHODS = ImmutableSet.of("GET", "HEAD", "PUT",
+        "DELETE");
+
+    // Budget tokens are stored as thousandths of a token
+    private static final long TOKEN = 1000;
+
+    private final int maxRetries;
+
+    private final long initialBackoff;
+
+    private final long maxBackoff;
+
+    private final double jitter;
+
+    private final boolean retryPosts;
+
+    private final Set<Integer> retryableStatusCodes;
+
+    private final long maxBudget;
+
+    private final long budgetPerRequest;
+
+    private final AtomicLong budget;
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private final AtomicLong giveUpCount = new AtomicLong();
+
+    private final Random random = new Random();
+
+    // Do not use directly. Use the builder.
+    private RetryPolicy(final int maxRetries, final long initialBackoff, final long maxBackoff,
+        final double jitter, final boolean retryPosts, final Set<Integer> retryableStatusCodes,
+        final int maxBudget, final double budgetRatio)
+    {
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.jitter = jitter;
+        this.retryPosts = retryPosts;
+        this.retryableStatusCodes = ImmutableSet.copyOf(retryableStatusCodes);
+        this.maxBudget = maxBudget * TOKEN;
+        this.budgetPerRequest = (long) (budgetRatio * TOKEN);
+        this.budget = new AtomicLong(this.maxBudget);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private int maxRetries = 3;
+
+        private long initialBackoff = 100;
+
+        private long maxBackoff = TimeUnit.SECONDS.toMillis(10);
+
+        private double jitter = 0.5;
+
+        private boolean retryPosts = false;
+
+        private Set<Integer> retryableStatusCodes = ImmutableSet.of(429, 502, 503, 504);
+
+        private int maxBudget = 10;
+
+        private double budgetRatio = 0.1;
+
+        public Builder maxRetries(final int maxRetries)
+        {
+            checkArgument(maxRetries >= 0, "maxRetries must be >= 0");
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * The time to wait before the first retry. It is doubled on each subsequent retry, up to
+         * the configured maximum backoff.
+         */
+        public Builder initialBackoff(final long backoff, final TimeUnit timeUnit)
+        {
+            checkArgument(backoff >= 0, "initialBackoff must be >= 0");
+            this.initialBackoff = timeUnit.toMillis(backoff);
+            return this;
+        }
+
+        /**
+         * The maximum time to wait before a retry. It also limits the delays requested by the
+         * server in the <code>Retry-After</code> header.
+         */
+        public Builder maxBackoff(final long backoff, final TimeUnit timeUnit)
+        {
+            checkArgument(backoff >= 0, "maxBackoff must be >= 0");
+            this.maxBackoff = timeUnit.toMillis(backoff);
+            return this;
+        }
+
+        /**
+         * The fraction of each backoff delay that is randomized, between 0 (no jitter) and 1
+         * (the delay is a random value between zero and the computed backoff).
+         */
+        public Builder jitter(final double jitter)
+        {
+            checkArgument(jitter >= 0 && jitter <= 1, "jitter must be between 0 and 1");
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Allows POST requests to be retried. Only enable this if the POST requests performed by
+         * the client can be safely repeated.
+         */
+        public Builder retryPosts(final boolean retryPosts)
+        {
+            this.retryPosts = retryPosts;
+            return this;
+        }
+
+        public Builder retryOnStatusCodes(final Integer... statusCodes)
+        {
+            this.retryableStatusCodes = ImmutableSet.copyOf(statusCodes);
+            return this;
+        }
+
+        /**
+         * Configures the retry budget. Each request adds the given ratio of a token to the budget
+         * (up to the given maximum) and each retry consumes a token.
+         */
+        public Builder retryBudget(final int maxBudget, final double budgetRatio)
+        {
+            checkArgument(maxBudget >= 0, "maxBudget must be >= 0");
+            checkArgument(budgetRatio >= 0, "budgetRatio must be >= 0");
+            this.maxBudget = maxBudget;
+            this.budgetRatio = budgetRatio;
+            return this;
+        }
+
+        public RetryPolicy build()
+        {
+            return new RetryPolicy(maxRetries, initialBackoff, maxBackoff, jitter, retryPosts,
+                retryableStatusCodes, maxBudget, budgetRatio);
+        }
+    }
+
+    /**
+     * Records a new request in the retry budget.
+     */
+    public void onRequest()
+    {
+        long current;
+        do
+        {
+            current = budget.get();
+        }
+        while (current < maxBudget
+            && !budget.compareAndSet(current, Math.min(maxBudget, current + budgetPerRequest)));
+    }
+
+    /**
+     * Checks if the given request can be retried if it fails.
+     */
+    public boolean isRetryable(final Request request)
+    {
+        return IDEMPOTENT_METHODS.contains(request.method()) || retryPosts
+            && "POST".equals(request.method());
+    }
+
+    /**
+     * Checks if the given response is a transient failure that should be retried.
+     */
+    public boolean isRetryable(final Response response)
+    {
+        return retryableStatusCodes.contains(response.code());
+    }
+
+    /**
+     * Checks if the given transport failure should be retried. Interrupted requests and requests
+     * rejected by the client-side limits are not retried, but socket timeouts are.
+     */
+    public boolean isRetryable(final IOException failure)
+    {
+        boolean interrupted =
+            failure instanceof InterruptedIOException
+                && !(failure instanceof SocketTimeoutException);
+        return !interrupted && !(failure instanceof RequestRejectedException);
+    }
+
+    /**
+     * Consumes a retry for the given attempt (starting at 1), and returns false if the maximum
+     * number of retries has been reached or if the retry budget is exhausted.
+     */
+    public boolean tryRetry(final int attempt)
+    {
+        if (attempt <= maxRetries && tryConsumeBudget())
+        {
+            retryCount.incrementAndGet();
+            return true;
+        }
+
+        giveUpCount.incrementAndGet();
+        return false;
+    }
+
+    private boolean tryConsumeBudget()
+    {
+        long current;
+        do
+        {
+            current = budget.get();
+            if (current < TOKEN)
+            {
+                return false;
+            }
+        }
+        while (!budget.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    /**
+     * Returns the time, in milliseconds, to wait before the given attempt (starting at 1). If the
+     * failed response asked the client to wait with the <code>Retry-After</code> header, the
+     * requested delay is honored.
+     */
+    public long backoff(final int attempt, final Response failed)
+    {
+        Long retryAfter = failed == null ? null : retryAfter(failed);
+        if (retryAfter != null)
+        {
+            return Math.min(retryAfter, maxBackoff);
+        }
+
+        long delay = Math.min(maxBackoff, initialBackoff << Math.min(attempt - 1, 30));
+        return delay - (long) (delay * jitter * random.nextDouble());
+    }
+
+    private static Long retryAfter(final Response response)
+    {
+        String header = response.header(HttpHeaders.RETRY_AFTER);
+        if (header == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(header.trim())));
+        }
+        catch (NumberFormatException ex)
+        {
+            // Not a number of seconds. Try with an HTTP date
+        }
+
+        try
+        {
+            SimpleDateFormat format =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            Date date = format.parse(header.trim());
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+        catch (ParseException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The number of retries performed.
+     */
+    public long getRetryCount()
+    {
+        return retryCount.get();
+    }
+
+    /**
+     * The number of failed requests that could have been retried, but were not because the
+     * maximum number of retries was reached or the retry budget was exhausted.
+     */
+    public long getGiveUpCount()
+    {
+        return giveUpCount.get();
+    }
+}
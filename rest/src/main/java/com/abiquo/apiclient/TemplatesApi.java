@@ -16,7 +16,10 @@
 package com.abiquo.apiclient;
 
 import static com.abiquo.apiclient.domain.ApiPath.ENTERPRISES_URL;
+import static com.abiquo.apiclient.domain.LinkIndex.editLink;
+import static com.abiquo.apiclient.domain.LinkIndex.searchLink;
 import static com.abiquo.apiclient.domain.Links.create;
+import static com.abiquo.apiclient.domain.Types.ACCEPTED_REQUEST;
 import static com.abiquo.server.core.task.TaskState.FINISHED_SUCCESSFULLY;
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -26,7 +29,9 @@ import javax.ws.rs.core.MediaType;
 
 import com.abiquo.apiclient.domain.Links;
 import com.abiquo.apiclient.domain.options.TemplateListOptions;
+import com.abiquo.apiclient.polling.Operation;
 import com.abiquo.model.enumerator.VMTemplateState;
+import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.AcceptedRequestDto;
 import com.abiquo.server.core.appslibrary.ConversionDto;
 import com.abiquo.server.core.appslibrary.ConversionsDto;
@@ -45,9 +50,10 @@ import com.abiquo.server.core.infrastructure.DatacenterDto;
 import com.abiquo.server.core.infrastructure.storage.TierDto;
 import com.abiquo.server.core.task.TaskDto;
 import com.abiquo.server.core.task.TasksDto;
-import com.google.common.base.Stopwatch;
-import com.google.common.reflect.TypeToken;
-import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.common.base.Functions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class TemplatesApi
 {
@@ -61,28 +67,28 @@ public class TemplatesApi
 
     public Iterable<VirtualMachineTemplateDto> listTemplates(final VirtualDatacenterDto vdc)
     {
-        return client.list(vdc.searchLink("templates").getHref(),
+        return client.list(searchLink(vdc, "templates").getHref(),
             VirtualMachineTemplatesDto.MEDIA_TYPE, VirtualMachineTemplatesDto.class);
     }
 
     public Iterable<VirtualMachineTemplateDto> listTemplates(final VirtualDatacenterDto vdc,
         final TemplateListOptions options)
     {
-        return client.list(vdc.searchLink("templates").getHref(), options.queryParams(),
+        return client.list(searchLink(vdc, "templates").getHref(), options.queryParams(),
             VirtualMachineTemplatesDto.MEDIA_TYPE, VirtualMachineTemplatesDto.class);
     }
 
     public Iterable<VirtualMachineTemplateDto> listTemplates(
         final DatacenterRepositoryDto repository)
     {
-        return client.list(repository.searchLink("virtualmachinetemplates").getHref(),
+        return client.list(searchLink(repository, "virtualmachinetemplates").getHref(),
             VirtualMachineTemplatesDto.MEDIA_TYPE, VirtualMachineTemplatesDto.class);
     }
 
     public Iterable<VirtualMachineTemplateDto> listTemplates(
         final DatacenterRepositoryDto repository, final TemplateListOptions options)
     {
-        return client.list(repository.searchLink("virtualmachinetemplates").getHref(),
+        return client.list(searchLink(repository, "virtualmachinetemplates").getHref(),
             options.queryParams(), VirtualMachineTemplatesDto.MEDIA_TYPE,
             VirtualMachineTemplatesDto.class);
     }
@@ -94,12 +100,8 @@ public class TemplatesApi
         VirtualMachineInstanceDto instance = new VirtualMachineInstanceDto();
         instance.setInstanceName(snapshotName);
         AcceptedRequestDto<String> acceptedRequest =
-            client.post(vm.searchLink("instance").getHref(), AcceptedRequestDto.MEDIA_TYPE,
-                VirtualMachineInstanceDto.MEDIA_TYPE, instance,
-                new TypeToken<AcceptedRequestDto<String>>()
-                {
-                    private static final long serialVersionUID = -6348281615419377868L;
-                });
+            client.post(searchLink(vm, "instance").getHref(), AcceptedRequestDto.MEDIA_TYPE,
+                VirtualMachineInstanceDto.MEDIA_TYPE, instance, ACCEPTED_REQUEST);
 
         TaskDto task = client.waitForTask(acceptedRequest, pollInterval, maxWait, timeUnit);
         if (FINISHED_SUCCESSFULLY != task.getState())
@@ -107,7 +109,7 @@ public class TemplatesApi
             throw new RuntimeException("Virtual machine instance operation failed");
         }
 
-        return client.get(task.searchLink("result").getHref(),
+        return client.get(searchLink(task, "result").getHref(),
             VirtualMachineTemplateDto.MEDIA_TYPE, VirtualMachineTemplateDto.class);
     }
 
@@ -116,17 +118,13 @@ public class TemplatesApi
         final TimeUnit timeUnit)
     {
         VirtualMachineTemplateRequestDto promote = new VirtualMachineTemplateRequestDto();
-        promote.addLink(create("virtualmachinetemplate", template.getEditLink().getHref(),
+        promote.addLink(create("virtualmachinetemplate", editLink(template).getHref(),
             VirtualMachineTemplateDto.SHORT_MEDIA_TYPE_JSON));
         promote.setPromotedName(promotedName);
         AcceptedRequestDto<String> acceptedRequest =
-            client.post(template.searchLink("datacenterrepository").getHref()
+            client.post(searchLink(template, "datacenterrepository").getHref()
                 + "/virtualmachinetemplates", AcceptedRequestDto.MEDIA_TYPE,
-                VirtualMachineTemplateRequestDto.MEDIA_TYPE, promote,
-                new TypeToken<AcceptedRequestDto<String>>()
-                {
-                    private static final long serialVersionUID = -6348281615419377868L;
-                });
+                VirtualMachineTemplateRequestDto.MEDIA_TYPE, promote, ACCEPTED_REQUEST);
 
         TaskDto task = client.waitForTask(acceptedRequest, pollInterval, maxWait, timeUnit);
         if (FINISHED_SUCCESSFULLY != task.getState())
@@ -134,7 +132,7 @@ public class TemplatesApi
             throw new RuntimeException("Promote instance operation failed");
         }
 
-        return client.get(task.searchLink("result").getHref(),
+        return client.get(searchLink(task, "result").getHref(),
             VirtualMachineTemplateDto.MEDIA_TYPE, VirtualMachineTemplateDto.class);
     }
 
@@ -144,11 +142,8 @@ public class TemplatesApi
         AcceptedRequestDto<String> acceptedRequest =
             client.put(
                 String.format("%s/%s/actions/refresh",
-                    enterprise.searchLink("datacenterrepositories").getHref(), datacenter.getId()),
-                AcceptedRequestDto.MEDIA_TYPE, new TypeToken<AcceptedRequestDto<String>>()
-                {
-                    private static final long serialVersionUID = -6348281615419377868L;
-                });
+                    searchLink(enterprise, "datacenterrepositories").getHref(), datacenter.getId()),
+                AcceptedRequestDto.MEDIA_TYPE, ACCEPTED_REQUEST);
 
         TaskDto task = client.waitForTask(acceptedRequest, pollInterval, maxWait, timeUnit);
         if (FINISHED_SUCCESSFULLY != task.getState())
@@ -162,7 +157,7 @@ public class TemplatesApi
     {
         return client
             .get(
-                enterprise.searchLink("datacenterrepositories").getHref() + "/"
+                searchLink(enterprise, "datacenterrepositories").getHref() + "/"
                     + datacenter.getId(), DatacenterRepositoryDto.MEDIA_TYPE,
                 DatacenterRepositoryDto.class);
     }
@@ -176,35 +171,32 @@ public class TemplatesApi
         persistentTemplateDto.setPersistentTemplateName(persistentTemplateName);
         persistentTemplateDto.setPersistentVolumeName(persistentTemplateDto
             .getPersistentTemplateName());
-        persistentTemplateDto.addLink(create("tier", tier.searchLink("self").getHref(), tier
-            .searchLink("self").getType()));
-        persistentTemplateDto.addLink(create("virtualdatacenter", vdc.getEditLink().getHref(), vdc
-            .getEditLink().getType()));
-        persistentTemplateDto.addLink(create("virtualmachinetemplate", vmt.getEditLink().getHref(),
-            vmt.getEditLink().getType()));
+        RESTLink tierLink = searchLink(tier, "self");
+        persistentTemplateDto.addLink(create("tier", tierLink.getHref(), tierLink.getType()));
+        persistentTemplateDto.addLink(create("virtualdatacenter", editLink(vdc).getHref(),
+            editLink(vdc).getType()));
+        persistentTemplateDto.addLink(create("virtualmachinetemplate", editLink(vmt).getHref(),
+            editLink(vmt).getType()));
 
         AcceptedRequestDto<String> acceptedRequest =
-            client.post(vmt.searchLink("datacenterrepository").getHref()
+            client.post(searchLink(vmt, "datacenterrepository").getHref()
                 + "/virtualmachinetemplates", AcceptedRequestDto.MEDIA_TYPE,
                 VirtualMachineTemplatePersistentDto.MEDIA_TYPE, persistentTemplateDto,
-                new TypeToken<AcceptedRequestDto<String>>()
-                {
-                    private static final long serialVersionUID = -6348281615419377868L;
-                });
+                ACCEPTED_REQUEST);
 
-        TaskDto task = client.waitForTask(acceptedRequest, pollInterval, maxWait, unit);
+        TaskDto task = client.waitForTask(acceptedRequest, vdc, pollInterval, maxWait, unit);
         if (FINISHED_SUCCESSFULLY != task.getState())
         {
             throw new RuntimeException("Persistent operation failed");
         }
 
-        return client.get(task.searchLink("result").getHref(),
+        return client.get(searchLink(task, "result").getHref(),
             VirtualMachineTemplateDto.MEDIA_TYPE, VirtualMachineTemplateDto.class);
     }
 
     public Iterable<TaskDto> getVirtualMachineTemplateTasks(final VirtualMachineTemplateDto vmt)
     {
-        return client.list(vmt.searchLink("tasks").getHref(), TasksDto.MEDIA_TYPE, TasksDto.class);
+        return client.list(searchLink(vmt, "tasks").getHref(), TasksDto.MEDIA_TYPE, TasksDto.class);
     }
 
     public AcceptedRequestDto<String> createConversion(final VirtualMachineTemplateDto template,
@@ -215,21 +207,14 @@ public class TemplatesApi
 
         return client.put(
             String.format("%s/conversions/%s", Links.editOrSelf(template).getHref(), targetFormat),
-            AcceptedRequestDto.MEDIA_TYPE, ConversionDto.MEDIA_TYPE, conversion,
-            new TypeToken<AcceptedRequestDto<String>>()
-            {
-                private static final long serialVersionUID = -6348281615419377868L;
-            });
+            AcceptedRequestDto.MEDIA_TYPE, ConversionDto.MEDIA_TYPE, conversion, ACCEPTED_REQUEST);
     }
 
     public AcceptedRequestDto<String> restartConversion(final ConversionDto conversion)
     {
 
         return client.put(Links.editOrSelf(conversion).getHref(), AcceptedRequestDto.MEDIA_TYPE,
-            ConversionDto.MEDIA_TYPE, conversion, new TypeToken<AcceptedRequestDto<String>>()
-            {
-                private static final long serialVersionUID = -6348281615419377868L;
-            });
+            ConversionDto.MEDIA_TYPE, conversion, ACCEPTED_REQUEST);
     }
 
     public TemplateDefinitionListDto createTemplateDefinitionList(final EnterpriseDto enterprise,
@@ -248,17 +233,12 @@ public class TemplatesApi
         VirtualMachineTemplateRequestDto templateDefinitionReq =
             new VirtualMachineTemplateRequestDto();
         templateDefinitionReq.addLink(Links.withRel("templateDefinition",
-            templateDefinition.getEditLink()));
+            editLink(templateDefinition)));
 
         AcceptedRequestDto<String> acceptedDto =
-            client.post(repository.searchLink("virtualmachinetemplates").getHref(),
+            client.post(searchLink(repository, "virtualmachinetemplates").getHref(),
                 AcceptedRequestDto.MEDIA_TYPE, VirtualMachineTemplateRequestDto.MEDIA_TYPE,
-                templateDefinitionReq,
-
-                new TypeToken<AcceptedRequestDto<String>>()
-                {
-                    private static final long serialVersionUID = -6348281615419377868L;
-                });
+                templateDefinitionReq, ACCEPTED_REQUEST);
 
         TaskDto task = client.waitForTask(acceptedDto, polling, timeout, time);
         if (FINISHED_SUCCESSFULLY != task.getState())
@@ -266,43 +246,55 @@ public class TemplatesApi
             throw new RuntimeException("Download template operation failed");
         }
 
-        return client.get(task.searchLink("result"), VirtualMachineTemplateDto.class);
+        return client.get(searchLink(task, "result"), VirtualMachineTemplateDto.class);
     }
 
     public ConversionDto getConversion(final VirtualMachineTemplateDto vmt,
         final String diskFormatType)
     {
         return client.get(
-            String.format("%s/%s", vmt.searchLink("conversions").getHref(), diskFormatType),
+            String.format("%s/%s", searchLink(vmt, "conversions").getHref(), diskFormatType),
             ConversionDto.MEDIA_TYPE, ConversionDto.class);
     }
 
     public Iterable<TaskDto> listConversionTasks(final ConversionDto conversion)
     {
-        return client.list(conversion.searchLink("tasks"), TasksDto.class);
+        return client.list(searchLink(conversion, "tasks"), TasksDto.class);
     }
 
     public Iterable<ConversionDto> listConversions(final VirtualMachineTemplateDto vmt)
     {
-        return client.list(vmt.searchLink("conversions").getHref(), ConversionsDto.MEDIA_TYPE,
+        return client.list(searchLink(vmt, "conversions").getHref(), ConversionsDto.MEDIA_TYPE,
             ConversionsDto.class);
     }
 
     public VirtualMachineTemplateDto waitWhileInProgress(final VirtualMachineTemplateDto vmt,
         final int pollInterval, final int maxWait, final TimeUnit timeUnit)
     {
-        Stopwatch watch = Stopwatch.createStarted();
-        while (watch.elapsed(timeUnit) < maxWait)
+        return RestClient.await(waitWhileInProgressAsync(vmt, pollInterval, maxWait, timeUnit));
+    }
+
+    public ListenableFuture<VirtualMachineTemplateDto> waitWhileInProgressAsync(
+        final VirtualMachineTemplateDto vmt, final int pollInterval, final int maxWait,
+        final TimeUnit timeUnit)
+    {
+        return client.poll(new Supplier<ListenableFuture<VirtualMachineTemplateDto>>()
         {
-            VirtualMachineTemplateDto refreshed = client.refresh(vmt);
-            if (!VMTemplateState.IN_PROGRESS.equals(refreshed.getState()))
+            @Override
+            public ListenableFuture<VirtualMachineTemplateDto> get()
             {
-                return refreshed;
+                return client.refreshAsync(vmt);
             }
-
-            Uninterruptibles.sleepUninterruptibly(pollInterval, timeUnit);
-        }
-
-        throw new RuntimeException("Virtual machine template did not reach the desired state in the configured timeout");
+        }, new Predicate<VirtualMachineTemplateDto>()
+        {
+            @Override
+            public boolean apply(final VirtualMachineTemplateDto refreshed)
+            {
+                return !VMTemplateState.IN_PROGRESS.equals(refreshed.getState());
+            }
+        }, Functions.constant(Operation.of("TEMPLATE_IN_PROGRESS")), pollInterval, maxWait,
+            timeUnit,
+            "Virtual machine template did not reach the desired state in the configured timeout",
+            null);
     }
 }
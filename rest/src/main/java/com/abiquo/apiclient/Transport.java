@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * The HTTP resources used to talk to the Abiquo API: the connection pool, the dispatcher used to
+ * run asynchronous requests, the scheduler used to poll asynchronous operations and the socket
+ * timeouts.
+ * <p>
+ * A single transport can be shared by several {@link ApiClient} instances (for example, one per
+ * set of credentials) so they all reuse the same pooled connections and threads. The transport
+ * must be closed by its owner once none of the clients that use it are needed anymore.
+ * 
+ * @author Ignasi Barrera
+ */
+public class Transport implements Closeable
+{
+    private final ConnectionPool connectionPool;
+
+    private final Dispatcher dispatcher;
+
+    private final PollScheduler pollScheduler;
+
+    private final long connectTimeout;
+
+    private final long readTimeout;
+
+    private final long writeTimeout;
+
+    // Do not use directly. Use the builder.
+    private Transport(final ConnectionPool connectionPool, final Dispatcher dispatcher,
+        final PollScheduler pollScheduler, final long connectTimeout, final long readTimeout,
+        final long writeTimeout)
+    {
+        this.connectionPool = checkNotNull(connectionPool, "connectionPool cannot be null");
+        this.dispatcher = checkNotNull(dispatcher, "dispatcher cannot be null");
+        this.pollScheduler = checkNotNull(pollScheduler, "pollScheduler cannot be null");
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private int maxIdleConnections = 5;
+
+        private long keepAliveDuration = TimeUnit.MINUTES.toMillis(5);
+
+        private int maxRequests = 64;
+
+        private int maxRequestsPerHost = 5;
+
+        private ExecutorService executorService;
+
+        private PollScheduler pollScheduler;
+
+        // Zero means no timeout
+        private long connectTimeout = 0;
+
+        private long readTimeout = 0;
+
+        private long writeTimeout = 0;
+
+        public Builder maxIdleConnections(final int maxIdleConnections)
+        {
+            checkArgument(maxIdleConnections >= 0, "maxIdleConnections must be >= 0");
+            this.maxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        public Builder keepAlive(final long duration, final TimeUnit timeUnit)
+        {
+            checkArgument(duration >= 0, "keepAlive duration must be >= 0");
+            this.keepAliveDuration = timeUnit.toMillis(duration);
+            return this;
+        }
+
+        public Builder maxRequests(final int maxRequests)
+        {
+            checkArgument(maxRequests > 0, "maxRequests must be > 0");
+            this.maxRequests = maxRequests;
+            return this;
+        }
+
+        public Builder maxRequestsPerHost(final int maxRequestsPerHost)
+        {
+            checkArgument(maxRequestsPerHost > 0, "maxRequestsPerHost must be > 0");
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * The executor used to run the asynchronous requests. It will be shut down when the
+         * transport is closed.
+         */
+        public Builder executorService(final ExecutorService executorService)
+        {
+            this.executorService = executorService;
+            return this;
+        }
+
+        /**
+         * The scheduler used to wait for tasks and state changes without blocking a thread per
+         * wait. It will be closed when the transport is closed.
+         */
+        public Builder pollScheduler(final PollScheduler pollScheduler)
+        {
+            this.pollScheduler = pollScheduler;
+            return this;
+        }
+
+        public Builder connectTimeout(final long timeout, final TimeUnit timeUnit)
+        {
+            this.connectTimeout = timeUnit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder readTimeout(final long timeout, final TimeUnit timeUnit)
+        {
+            this.readTimeout = timeUnit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder writeTimeout(final long timeout, final TimeUnit timeUnit)
+        {
+            this.writeTimeout = timeUnit.toMillis(timeout);
+            return this;
+        }
+
+        public Transport build()
+        {
+            Dispatcher dispatcher =
+                executorService == null ? new Dispatcher() : new Dispatcher(executorService);
+            dispatcher.setMaxRequests(maxRequests);
+            dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+            return new Transport(new ConnectionPool(maxIdleConnections, keepAliveDuration),
+                dispatcher, pollScheduler == null ? PollScheduler.builder().build()
+                    : pollScheduler, connectTimeout, readTimeout, writeTimeout);
+        }
+    }
+
+    // Package private. To be used only by the RestClient
+    void configure(final OkHttpClient client)
+    {
+        client.setConnectionPool(connectionPool);
+        client.setDispatcher(dispatcher);
+        client.setConnectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(readTimeout, TimeUnit.MILLISECONDS);
+        client.setWriteTimeout(writeTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    public ConnectionPool getConnectionPool()
+    {
+        return connectionPool;
+    }
+
+    public Dispatcher getDispatcher()
+    {
+        return dispatcher;
+    }
+
+    public PollScheduler getPollScheduler()
+    {
+        return pollScheduler;
+    }
+
+    /**
+     * Releases the idle pooled connections and stops the threads used to run asynchronous
+     * requests and polls. Clients using this transport should not be used after closing it.
+     */
+    @Override
+    public void close()
+    {
+        dispatcher.getExecutorService().shutdown();
+        pollScheduler.close();
+        connectionPool.evictAll();
+    }
+}
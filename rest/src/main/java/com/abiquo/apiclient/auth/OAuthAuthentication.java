@@ -26,8 +26,8 @@ import java.util.Map;
 import oauth.signpost.AbstractOAuthConsumer;
 import oauth.signpost.OAuthConsumer;
 import oauth.signpost.http.HttpRequest;
-import okio.Buffer;
 
+import com.abiquo.apiclient.json.JsonRequestBody;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
@@ -149,9 +149,8 @@ public class OAuthAuthentication implements Authentication
             {
                 return null;
             }
-            Buffer buf = new Buffer();
-            body.writeTo(buf);
-            return buf.inputStream();
+            // Serialized only once and reused when the request is sent
+            return JsonRequestBody.bufferOf(body).inputStream();
         }
 
         @Override
@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Keeps in memory the resources that rarely change, such as the hypervisor types, the roles or
+ * the datacenters, so repeated lookups do not hit the API.
+ * <p>
+ * Each resource type has its own time to live and maximum size. Cached objects are shared between
+ * all the callers that get them from the cache, so they must not be modified.
+ * 
+ * @author Ignasi Barrera
+ */
+public class MetadataCache
+{
+    public static enum ResourceType
+    {
+        HYPERVISOR_TYPES, ROLES, DATACENTERS, TIERS, NETWORK_SERVICE_TYPES, CURRENT_USER
+    }
+
+    private static final MetadataCache DISABLED = new MetadataCache(
+        new EnumMap<ResourceType, Cache<String, Object>>(ResourceType.class));
+
+    private final Map<ResourceType, Cache<String, Object>> caches;
+
+    // Do not use directly. Use the builder.
+    private MetadataCache(final Map<ResourceType, Cache<String, Object>> caches)
+    {
+        this.caches = checkNotNull(caches, "caches cannot be null");
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * A cache that does not cache anything and always loads the requested resources.
+     */
+    public static MetadataCache disabled()
+    {
+        return DISABLED;
+    }
+
+    public static class Builder
+    {
+        private long defaultTtl = TimeUnit.MINUTES.toMillis(10);
+
+        private long maximumSize = 100;
+
+        private final Map<ResourceType, Long> ttls = new EnumMap<ResourceType, Long>(
+            ResourceType.class);
+
+        /**
+         * The time to live for all the resource types that do not have a specific one. A zero
+         * time to live disables the cache for those types.
+         */
+        public Builder defaultTtl(final long duration, final TimeUnit timeUnit)
+        {
+            checkArgument(duration >= 0, "duration must be >= 0");
+            this.defaultTtl = timeUnit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * The time to live for the given resource type. A zero time to live disables the cache
+         * for the type.
+         */
+        public Builder ttl(final ResourceType type, final long duration, final TimeUnit timeUnit)
+        {
+            checkArgument(duration >= 0, "duration must be >= 0");
+            ttls.put(checkNotNull(type, "type cannot be null"), timeUnit.toMillis(duration));
+            return this;
+        }
+
+        /**
+         * The maximum number of cached entries for each resource type.
+         */
+        public Builder maximumSize(final long maximumSize)
+        {
+            checkArgument(maximumSize > 0, "maximumSize must be > 0");
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public MetadataCache build()
+        {
+            Map<ResourceType, Cache<String, Object>> caches =
+                new EnumMap<ResourceType, Cache<String, Object>>(ResourceType.class);
+            for (ResourceType type : ResourceType.values())
+            {
+                Long ttl = ttls.containsKey(type) ? ttls.get(type) : defaultTtl;
+                if (ttl > 0)
+                {
+                    caches.put(type, CacheBuilder.newBuilder() //
+                        .expireAfterWrite(ttl, TimeUnit.MILLISECONDS) //
+                        .maximumSize(maximumSize) //
+                        .recordStats() //
+                        .<String, Object> build());
+                }
+            }
+            return new MetadataCache(caches);
+        }
+    }
+
+    /**
+     * Returns the cached object or loads it if it is not present or has expired.
+     */
+    public <T> T get(final ResourceType type, final String key, final Callable<T> loader)
+    {
+        Cache<String, Object> cache = caches.get(type);
+        if (cache == null)
+        {
+            return call(loader);
+        }
+
+        try
+        {
+            @SuppressWarnings("unchecked")
+            T value = (T) cache.get(key, loader);
+            return value;
+        }
+        catch (ExecutionException ex)
+        {
+            throw Throwables.propagate(ex.getCause());
+        }
+        catch (UncheckedExecutionException ex)
+        {
+            // Propagate the original exception (AbiquoException, etc)
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the cached collection or loads it if it is not present or has expired. Collections
+     * are fully read before being cached. If the cache is disabled for the given type, the
+     * collection returned by the loader is returned as-is.
+     */
+    public <T> Iterable<T> list(final ResourceType type, final String key,
+        final Callable<Iterable<T>> loader)
+    {
+        if (!caches.containsKey(type))
+        {
+            return call(loader);
+        }
+
+        return get(type, key, new Callable<Iterable<T>>()
+        {
+            @Override
+            public Iterable<T> call() throws Exception
+            {
+                return ImmutableList.copyOf(loader.call());
+            }
+        });
+    }
+
+    public void invalidate(final ResourceType type, final String key)
+    {
+        Cache<String, Object> cache = caches.get(type);
+        if (cache != null)
+        {
+            cache.invalidate(key);
+        }
+    }
+
+    public void invalidate(final ResourceType type)
+    {
+        Cache<String, Object> cache = caches.get(type);
+        if (cache != null)
+        {
+            cache.invalidateAll();
+        }
+    }
+
+    public void invalidateAll()
+    {
+        for (Cache<String, Object> cache : caches.values())
+        {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the hit and miss statistics for the given resource type.
+     */
+    public CacheStats stats(final ResourceType type)
+    {
+        Cache<String, Object> cache = caches.get(type);
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    private static <T> T call(final Callable<T> loader)
+    {
+        try
+        {
+            return loader.call();
+        }
+        catch (Exception ex)
+        {
+            throw Throwables.propagate(ex);
+        }
+    }
+}
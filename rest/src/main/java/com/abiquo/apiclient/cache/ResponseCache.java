@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.abiquo.apiclient.auth.Authentication;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.HttpHeaders;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * Caches the responses of GET requests that provide an <code>ETag</code> or a
+ * <code>Last-Modified</code> header, and uses those validators to perform conditional requests.
+ * When the server replies with a <code>304 Not Modified</code> the cached body is used instead of
+ * transferring it again.
+ * <p>
+ * The cache stores the bodies of the responses, and each caller gets its own object decoded from
+ * them, so callers can modify the returned objects. Responses are cached per authentication, so
+ * a cache can be shared between clients that use different credentials, and a client only gets
+ * the responses received with its own {@link Authentication} instance.
+ * 
+ * @author Ignasi Barrera
+ */
+public class ResponseCache
+{
+    private final Cache<Key, Entry> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    // Use the factory method
+    private ResponseCache(final long maxEntries)
+    {
+        checkArgument(maxEntries > 0, "maxEntries must be > 0");
+        entries = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    public static ResponseCache create(final long maxEntries)
+    {
+        return new ResponseCache(maxEntries);
+    }
+
+    /**
+     * Returns the cache entry for the given request sent with the given authentication, if any.
+     */
+    public Entry lookup(final Authentication authentication, final Request request)
+    {
+        return entries.getIfPresent(new Key(authentication, request));
+    }
+
+    /**
+     * Returns whether the given response has validators that can be used to revalidate it.
+     */
+    public static boolean isCacheable(final Response response)
+    {
+        return response.header(HttpHeaders.ETAG) != null
+            || response.header(HttpHeaders.LAST_MODIFIED) != null;
+    }
+
+    /**
+     * Stores the body of the given response, if it has validators that can be used to revalidate
+     * it. Otherwise, removes the response previously cached for the request.
+     * 
+     * @param body The body of the response, or <code>null</code> if it has not been read.
+     */
+    public void store(final Authentication authentication, final Request request,
+        final Response response, final byte[] body)
+    {
+        Key key = new Key(authentication, request);
+        if (body != null && body.length > 0 && isCacheable(response))
+        {
+            entries.put(key, new Entry(response.header(HttpHeaders.ETAG),
+                response.header(HttpHeaders.LAST_MODIFIED), body));
+        }
+        else
+        {
+            entries.invalidate(key);
+        }
+    }
+
+    /**
+     * Returns the body of the given entry, once the server has confirmed it is still valid.
+     */
+    public byte[] hit(final Entry entry)
+    {
+        hitCount.incrementAndGet();
+        return entry.body;
+    }
+
+    /**
+     * Records that the server returned a full response when the given entry was revalidated.
+     */
+    public void miss(final Entry entry)
+    {
+        missCount.incrementAndGet();
+    }
+
+    public void invalidateAll()
+    {
+        entries.invalidateAll();
+    }
+
+    public long size()
+    {
+        return entries.size();
+    }
+
+    /** The number of revalidations that confirmed the cached response was still valid. */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * The number of revalidations that returned a full response. Requests that had nothing to
+     * revalidate are not counted.
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    public static class Entry
+    {
+        private final String etag;
+
+        private final String lastModified;
+
+        private final byte[] body;
+
+        private Entry(final String etag, final String lastModified, final byte[] body)
+        {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = checkNotNull(body, "body cannot be null");
+        }
+
+        /**
+         * Adds the validators of this entry to the given request.
+         */
+        public Request conditional(final Request request)
+        {
+            Request.Builder builder = request.newBuilder();
+            if (etag != null)
+            {
+                builder.header(HttpHeaders.IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null)
+            {
+                builder.header(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+            return builder.build();
+        }
+
+    }
+
+    private static class Key
+    {
+        // Compared by identity, as authentications do not define equality
+        private final Authentication authentication;
+
+        private final String url;
+
+        private final String accept;
+
+        public Key(final Authentication authentication, final Request request)
+        {
+            this.authentication = checkNotNull(authentication, "authentication cannot be null");
+            this.url = request.urlString();
+            this.accept = request.header(HttpHeaders.ACCEPT);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(System.identityHashCode(authentication), url, accept);
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return authentication == other.authentication && url.equals(other.url)
+                && Objects.equal(accept, other.accept);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.domain;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+
+import com.abiquo.model.transport.WrapperDto;
+
+/**
+ * Adjusts the size of the pages requested while iterating a paginated collection.
+ * <p>
+ * After each page is received, the time spent fetching each element and the size of each element
+ * are estimated, and the <code>limit</code> of the next page is chosen to get as close as
+ * possible to the target page time without exceeding the maximum page size in bytes. To avoid
+ * big jumps caused by a single slow or fast page, the limit can only be doubled or halved from
+ * one page to the next.
+ * <p>
+ * The size of the elements is measured from the response body of each fetched page. The first
+ * page of the collection has already been fetched when the iteration starts, so it is not
+ * measured.
+ * 
+ * @author Ignasi Barrera
+ */
+public class AdaptivePageSize
+{
+    private final long targetPageTime;
+
+    private final long maxPageBytes;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final Listener listener;
+
+    // Do not use directly. Use the builder.
+    private AdaptivePageSize(final long targetPageTime, final long maxPageBytes,
+        final int minLimit, final int maxLimit, final Listener listener)
+    {
+        this.targetPageTime = targetPageTime;
+        this.maxPageBytes = maxPageBytes;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.listener = listener;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private long targetPageTime = TimeUnit.SECONDS.toNanos(1);
+
+        private long maxPageBytes = 4 * 1024 * 1024;
+
+        private int minLimit = 10;
+
+        private int maxLimit = 1000;
+
+        private Listener listener;
+
+        /**
+         * The time it should take to fetch and decode each page.
+         */
+        public Builder targetPageTime(final long time, final TimeUnit timeUnit)
+        {
+            checkArgument(time > 0, "targetPageTime must be > 0");
+            this.targetPageTime = timeUnit.toNanos(time);
+            return this;
+        }
+
+        /**
+         * The maximum size of the response body of each page, in bytes.
+         */
+        public Builder maxPageBytes(final long maxPageBytes)
+        {
+            checkArgument(maxPageBytes > 0, "maxPageBytes must be > 0");
+            this.maxPageBytes = maxPageBytes;
+            return this;
+        }
+
+        public Builder limits(final int minLimit, final int maxLimit)
+        {
+            checkArgument(minLimit > 0, "minLimit must be > 0");
+            checkArgument(maxLimit >= minLimit, "maxLimit must be >= minLimit");
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * Configures a listener to be notified of the page sizes chosen.
+         */
+        public Builder listener(final Listener listener)
+        {
+            this.listener = listener;
+            return this;
+        }
+
+        public AdaptivePageSize build()
+        {
+            return new AdaptivePageSize(targetPageTime, maxPageBytes, minLimit, maxLimit, listener);
+        }
+    }
+
+    public long getTargetPageTime(final TimeUnit timeUnit)
+    {
+        return timeUnit.convert(targetPageTime, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxPageBytes()
+    {
+        return maxPageBytes;
+    }
+
+    public int getMinLimit()
+    {
+        return minLimit;
+    }
+
+    public int getMaxLimit()
+    {
+        return maxLimit;
+    }
+
+    /**
+     * Creates the sizing state for a single iteration of a collection.
+     */
+    Sizer newSizer()
+    {
+        return new Sizer();
+    }
+
+    /**
+     * Notified each time a page is received and the size of the next page is chosen.
+     * 
+     * @author Ignasi Barrera
+     */
+    public static interface Listener
+    {
+        /**
+         * @param limit The limit chosen for the next page.
+         * @param elements The number of elements in the page that has been received.
+         * @param latencyNanos The time it took to fetch and decode the page.
+         * @param bytes The size of the response body of the page, or -1 if it is unknown.
+         */
+        public void onPageSize(int limit, int elements, long latencyNanos, long bytes);
+    }
+
+    /**
+     * Keeps the measurements of the pages of a single iteration. Pages may be received in
+     * background threads when they are prefetched.
+     */
+    class Sizer
+    {
+        private double elementBytes;
+
+        private double elementNanos;
+
+        private int limit;
+
+        /**
+         * Returns the limit to use for the next page, or zero if it has not been computed yet.
+         */
+        public synchronized int nextLimit()
+        {
+            return limit;
+        }
+
+        /**
+         * @param bytes The size of the response body of the page, or -1 if it is unknown, for
+         *            example when the page has been served from the cache.
+         */
+        public void record(final WrapperDto< ? > page, final long latencyNanos, final long bytes)
+        {
+            int elements = page.getCollection().size();
+            if (elements == 0)
+            {
+                return;
+            }
+
+            int chosen;
+            synchronized (this)
+            {
+                double nanos = (double) latencyNanos / elements;
+                // Smooth the measurements so a single slow page does not shrink the pages too much
+                elementNanos = elementNanos == 0 ? nanos : (elementNanos + nanos) / 2;
+                if (bytes > 0)
+                {
+                    double perElement = (double) bytes / elements;
+                    elementBytes =
+                        elementBytes == 0 ? perElement : (elementBytes + perElement) / 2;
+                }
+
+                double byTime = targetPageTime / elementNanos;
+                double byMemory = elementBytes == 0 ? maxLimit : maxPageBytes / elementBytes;
+                int target = (int) Math.min(Math.min(byTime, byMemory), maxLimit);
+                int current = limit == 0 ? elements : limit;
+
+                chosen = Math.max(minLimit, Math.min(Math.max(target, current / 2), current * 2));
+                chosen = Math.min(chosen, maxLimit);
+                limit = chosen;
+            }
+
+            if (listener != null)
+            {
+                listener.onPageSize(chosen, elements, latencyNanos, bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.domain;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.model.transport.SingleResourceTransportDto;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Searches the links of a DTO by their rel attribute.
+ * <p>
+ * The links of DTOs with many links are indexed by rel the first time a link is searched in
+ * them, and the index is kept while the DTO is reachable, so each DTO is indexed once. The links
+ * of the rest of the DTOs are scanned, as the DTOs do, because it is cheaper than looking up the
+ * index.
+ * <p>
+ * Each link found in the index is checked to still be in the same position of the links of the
+ * DTO and to have the same rel, so the index is rebuilt when the links change. Links that are not
+ * in the index are searched in the links of the DTO, in case they have been added or renamed
+ * after the index was built.
+ * 
+ * @author Ignasi Barrera
+ */
+public final class LinkIndex
+{
+    // Below this number of links, scanning them is cheaper than looking up the index
+    private static final int MIN_INDEXED_LINKS = 16;
+
+    // Weak keys are compared by identity, so each DTO instance has its own index
+    private static final Cache<SingleResourceTransportDto, LinkIndex> INDEXES = CacheBuilder
+        .newBuilder().weakKeys().build();
+
+    private final List<RESTLink> links;
+
+    // The links of the DTO when the index was built
+    private final RESTLink[] indexedLinks;
+
+    private final Map<String, Integer> positions;
+
+    private LinkIndex(final List<RESTLink> links)
+    {
+        this.links = links;
+        indexedLinks = links.toArray(new RESTLink[links.size()]);
+        positions = new HashMap<String, Integer>(indexedLinks.length * 4 / 3 + 1);
+        for (int i = 0; i < indexedLinks.length; i++)
+        {
+            String rel = indexedLinks[i].getRel();
+            // Keep the first link with a given rel, as the DTOs do
+            if (rel != null && !positions.containsKey(rel))
+            {
+                positions.put(rel, i);
+            }
+        }
+    }
+
+    /**
+     * Returns the link of the given DTO with the given rel, or <code>null</code> if there is no
+     * such link. Equivalent to {@link SingleResourceTransportDto#searchLink(String)}.
+     */
+    public static RESTLink searchLink(final SingleResourceTransportDto dto, final String rel)
+    {
+        checkNotNull(dto, "dto cannot be null");
+        checkNotNull(rel, "rel cannot be null");
+        List<RESTLink> links = dto.getLinks();
+        if (links == null || links.size() < MIN_INDEXED_LINKS)
+        {
+            return links == null ? null : scan(links, rel);
+        }
+
+        LinkIndex index = INDEXES.getIfPresent(dto);
+        if (index != null && index.links == links && index.indexedLinks.length == links.size())
+        {
+            Integer position = index.positions.get(rel);
+            if (position == null)
+            {
+                return scan(links, rel);
+            }
+            RESTLink link = links.get(position);
+            if (link == index.indexedLinks[position] && rel.equals(link.getRel()))
+            {
+                return link;
+            }
+        }
+
+        index = new LinkIndex(links);
+        INDEXES.put(dto, index);
+        Integer position = index.positions.get(rel);
+        return position == null ? null : index.indexedLinks[position];
+    }
+
+    /**
+     * Returns the edit link of the given DTO, or <code>null</code> if there is no such link.
+     * Equivalent to {@link SingleResourceTransportDto#getEditLink()}.
+     */
+    public static RESTLink editLink(final SingleResourceTransportDto dto)
+    {
+        return searchLink(dto, "edit");
+    }
+
+    private static RESTLink scan(final List<RESTLink> links, final String rel)
+    {
+        for (RESTLink link : links)
+        {
+            if (rel.equals(link.getRel()))
+            {
+                return link;
+            }
+        }
+        return null;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.abiquo.apiclient.domain;
 
+import static com.abiquo.apiclient.domain.options.BaseOptions.urlEncode;
+
 import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.SingleResourceTransportDto;
 
@@ -36,14 +38,83 @@ public final class Links
 
     public static RESTLink editOrSelf(final SingleResourceTransportDto dto)
     {
-        RESTLink link = dto.getEditLink();
-        if (link == null)
+        RESTLink link = LinkIndex.editLink(dto);
+        return link != null ? link : LinkIndex.searchLink(dto, "self");
+    }
+
+    /**
+     * Returns a copy of the given link with the given query parameter. If the link already has
+     * the parameter, its value is replaced.
+     */
+    public static RESTLink withQueryParam(final RESTLink source, final String name,
+        final Object value)
+    {
+        String href = source.getHref();
+        int query = href.indexOf('?');
+        String param = name + "=" + urlEncode(value.toString());
+
+        StringBuilder newHref = new StringBuilder(href.length() + param.length() + 1);
+        newHref.append(query < 0 ? href : href.substring(0, query)).append('?');
+
+        boolean replaced = false;
+        if (query >= 0)
+        {
+            for (String current : href.substring(query + 1).split("&"))
+            {
+                if (current.isEmpty())
+                {
+                    continue;
+                }
+                if (!replaced && isParam(current, name))
+                {
+                    current = param;
+                    replaced = true;
+                }
+                newHref.append(current).append('&');
+            }
+        }
+        if (replaced)
+        {
+            newHref.setLength(newHref.length() - 1);
+        }
+        else
         {
-            link = dto.searchLink("self");
+            newHref.append(param);
         }
+
+        RESTLink link = create(source.getRel(), newHref.toString(), source.getType());
+        link.setTitle(source.getTitle());
         return link;
     }
 
+    /**
+     * Returns the value of the given query parameter in the link, or <code>null</code> if the
+     * link does not have it. The returned value is not decoded.
+     */
+    public static String getQueryParam(final RESTLink link, final String name)
+    {
+        String href = link.getHref();
+        int query = href.indexOf('?');
+        if (query >= 0)
+        {
+            for (String current : href.substring(query + 1).split("&"))
+            {
+                if (isParam(current, name))
+                {
+                    return current.length() == name.length() ? "" : current.substring(name
+                        .length() + 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isParam(final String param, final String name)
+    {
+        return param.startsWith(name)
+            && (param.length() == name.length() || param.charAt(name.length()) == '=');
+    }
+
     private Links()
     {
         throw new AssertionError("Constant class. Clients shouldn't instantiate it directly.");
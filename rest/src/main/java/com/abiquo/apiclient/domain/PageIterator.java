@@ -15,17 +15,38 @@
  */
 package com.abiquo.apiclient.domain;
 
+import static com.abiquo.apiclient.domain.Links.getQueryParam;
+import static com.abiquo.apiclient.domain.Links.withQueryParam;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import com.abiquo.apiclient.ApiClient;
+import com.abiquo.apiclient.BodySizeListener;
 import com.abiquo.apiclient.RestClient;
 import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.SingleResourceTransportDto;
 import com.abiquo.model.transport.WrapperDto;
+import com.google.common.base.Function;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * An {@link Iterator} that is capable of advancing between the pages of a paginated collection.
@@ -39,15 +60,25 @@ public class PageIterator<T extends WrapperDto< ? extends SingleResourceTranspor
 {
     private final RestClient api;
 
+    private final int prefetchDepth;
+
+    private final AdaptivePageSize.Sizer sizer;
+
+    // Pages being fetched in the background, in order
+    private final Deque<ListenableFuture<T>> prefetched = new ArrayDeque<ListenableFuture<T>>();
+
     private T currentPage;
 
     private boolean unread;
 
     /* For internal use only. Use the factory methods. */
-    private PageIterator(final RestClient api, final T initialPage)
+    private PageIterator(final RestClient api, final T initialPage, final int prefetchDepth,
+        final AdaptivePageSize pageSize)
     {
         this.api = checkNotNull(api, "api cannot be null");
         this.currentPage = checkNotNull(initialPage, "initialPage cannot be null");
+        this.prefetchDepth = prefetchDepth;
+        this.sizer = pageSize == null ? null : pageSize.newSizer();
         // First iteration has to return the initial page without fetching a new one
         this.unread = true;
     }
@@ -66,8 +97,20 @@ public class PageIterator<T extends WrapperDto< ? extends SingleResourceTranspor
             {
                 // Set this in a finally block to only set it after the value has been returned
                 unread = false;
+                prefetch();
             }
         }
+        else if (prefetchDepth > 0)
+        {
+            ListenableFuture<T> nextPage = prefetched.poll();
+            currentPage = nextPage == null ? null : getPage(nextPage);
+            if (currentPage == null)
+            {
+                return endOfData();
+            }
+            prefetch();
+            return currentPage;
+        }
         else
         {
             RESTLink next = currentPage.searchLink("next");
@@ -77,14 +120,120 @@ public class PageIterator<T extends WrapperDto< ? extends SingleResourceTranspor
             }
             else
             {
+                if (sizer == null)
+                {
+                    currentPage =
+                        api.get(pageHref(next), currentPage.getMediaType(),
+                            (Class<T>) currentPage.getClass());
+                    return currentPage;
+                }
+
+                BodySize size = new BodySize();
+                long start = System.nanoTime();
                 currentPage =
-                    api.get(next.getHref(), currentPage.getMediaType(),
-                        (Class<T>) currentPage.getClass());
+                    api.get(pageHref(next), currentPage.getMediaType(),
+                        (Class<T>) currentPage.getClass(), size);
+                sizer.record(currentPage, System.nanoTime() - start, size.bytes);
                 return currentPage;
             }
         }
     }
 
+    /**
+     * Starts fetching the pages that follow the last handed out one, until there are as many
+     * pages being fetched as the configured depth. Each page is requested as soon as the link to
+     * it is known, that is, when the previous page has been received.
+     */
+    private void prefetch()
+    {
+        while (prefetched.size() < prefetchDepth)
+        {
+            ListenableFuture<T> last =
+                prefetched.isEmpty() ? Futures.immediateFuture(currentPage) : prefetched.getLast();
+            if (isLastPage(last))
+            {
+                break;
+            }
+            prefetched.add(Futures.transform(last, new AsyncFunction<T, T>()
+            {
+                @Override
+                public ListenableFuture<T> apply(final T page)
+                {
+                    return fetchNext(page);
+                }
+            }));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ListenableFuture<T> fetchNext(final T page)
+    {
+        RESTLink next = page == null ? null : page.searchLink("next");
+        if (next == null)
+        {
+            return Futures.immediateFuture(null);
+        }
+
+        if (sizer == null)
+        {
+            return api.getAsync(pageHref(next), page.getMediaType(), (Class<T>) page.getClass());
+        }
+
+        final BodySize size = new BodySize();
+        final long start = System.nanoTime();
+        ListenableFuture<T> nextPage =
+            api.getAsync(pageHref(next), page.getMediaType(), (Class<T>) page.getClass(), size);
+
+        // Record the page before the following one is requested, so its size can be adjusted
+        return Futures.transform(nextPage, new Function<T, T>()
+        {
+            @Override
+            public T apply(final T received)
+            {
+                sizer.record(received, System.nanoTime() - start, size.bytes);
+                return received;
+            }
+        });
+    }
+
+    // The size of the response body of a page, reported once it has been read
+    private static class BodySize implements BodySizeListener
+    {
+        private volatile long bytes = -1;
+
+        @Override
+        public void onBodyRead(final long bytes)
+        {
+            this.bytes = bytes;
+        }
+    }
+
+    // Applies the page size chosen by the adaptive sizing, if enabled
+    private String pageHref(final RESTLink next)
+    {
+        int limit = sizer == null ? 0 : sizer.nextLimit();
+        return limit == 0 ? next.getHref() : withQueryParam(next, "limit", limit).getHref();
+    }
+
+    // Returns true if it is already known that there are no pages after the given one
+    private static boolean isLastPage(final ListenableFuture< ? extends WrapperDto< ? >> page)
+    {
+        if (!page.isDone())
+        {
+            return false;
+        }
+        try
+        {
+            WrapperDto< ? > dto = Uninterruptibles.getUninterruptibly(page);
+            return dto == null || dto.searchLink("next") == null;
+        }
+        catch (ExecutionException ex)
+        {
+            // The failure will be propagated when the page is read
+            return true;
+        }
+    }
+
     /**
      * Creates an iterator capable of advancing over the elements of a paginated collection, and
      * lazily fetch new pages as they are needed.
@@ -111,11 +260,23 @@ public class PageIterator<T extends WrapperDto< ? extends SingleResourceTranspor
 
         private final W initialPage;
 
+        private final int prefetchDepth;
+
+        private final AdaptivePageSize pageSize;
+
         // For internal use only.
         private AdvancingIterable(final RestClient api, final W initialPage)
+        {
+            this(api, initialPage, 0, null);
+        }
+
+        private AdvancingIterable(final RestClient api, final W initialPage,
+            final int prefetchDepth, final AdaptivePageSize pageSize)
         {
             this.api = checkNotNull(api, "api cannot be null");
             this.initialPage = checkNotNull(initialPage, "initialPage cannot be null");
+            this.prefetchDepth = prefetchDepth;
+            this.pageSize = pageSize;
         }
 
         public int size()
@@ -123,10 +284,99 @@ public class PageIterator<T extends WrapperDto< ? extends SingleResourceTranspor
             return initialPage.getTotalSize();
         }
 
+        /**
+         * Returns a view of this iterable that fetches the following pages in the background.
+         * <p>
+         * When a page is handed out, its iterators start fetching up to <code>depth</code> pages
+         * ahead asynchronously, so the network requests and the decoding of the pages overlap
+         * with the processing of the current one. Pages that have been prefetched are kept in
+         * memory until they are consumed, and iterators that are abandoned before reaching the
+         * end may have requested pages that will never be read.
+         * 
+         * @param depth The maximum number of pages to fetch ahead. Zero disables prefetching.
+         */
+        public AdvancingIterable<T, W> prefetch(final int depth)
+        {
+            checkArgument(depth >= 0, "depth must be greater than or equal to zero");
+            return new AdvancingIterable<T, W>(api, initialPage, depth, pageSize);
+        }
+
+        /**
+         * Returns a view of this iterable that adjusts the <code>limit</code> of the pages it
+         * requests, according to the given configuration. The size of the first page is the one
+         * requested when the collection was listed.
+         * <p>
+         * Adaptive page sizing does not apply to the {@link #parallel(int, boolean)} view, as it
+         * computes the offsets of all the pages from the size of the first one.
+         */
+        public AdvancingIterable<T, W> adaptivePageSize(final AdaptivePageSize pageSize)
+        {
+            checkNotNull(pageSize, "pageSize cannot be null");
+            return new AdvancingIterable<T, W>(api, initialPage, prefetchDepth, pageSize);
+        }
+
+        /**
+         * Returns the pages of the collection, fetched as configured in this iterable.
+         * <p>
+         * Pages can be used as independent units of work, for example by submitting each one to
+         * an executor to process its elements in parallel while the following pages are fetched.
+         */
+        public Iterable<W> pages()
+        {
+            return new Iterable<W>()
+            {
+                @Override
+                public Iterator<W> iterator()
+                {
+                    return new PageIterator<W>(api, initialPage, prefetchDepth, pageSize);
+                }
+            };
+        }
+
+        /**
+         * Returns a view of this iterable that fetches the remaining pages concurrently.
+         * <p>
+         * The offsets of the remaining pages are computed from the total size of the collection
+         * and the size of the first page, and up to <code>maxConcurrency</code> pages are fetched
+         * at the same time, turning the serial crawl of the collection into a few round trips.
+         * If the pages can be fetched in any order, pages are handed out as soon as they are
+         * received. Otherwise they are handed out in the order of the collection.
+         * <p>
+         * If the offsets of the pages cannot be computed, the returned iterable fetches the pages
+         * sequentially.
+         * 
+         * @param maxConcurrency The maximum number of pages to fetch at the same time.
+         * @param ordered Whether the elements must be returned in the order of the collection.
+         */
+        public Iterable<T> parallel(final int maxConcurrency, final boolean ordered)
+        {
+            checkArgument(maxConcurrency > 0, "maxConcurrency must be greater than zero");
+            final List<RESTLink> pages = remainingPages(initialPage);
+            if (pages == null)
+            {
+                return this;
+            }
+
+            return new Iterable<T>()
+            {
+                @Override
+                public Iterator<T> iterator()
+                {
+                    return flattenPages(Iterators.concat(
+                        Iterators.singletonIterator(initialPage), new PartitionedPageIterator<W>(
+                            api, initialPage, pages, maxConcurrency, ordered)));
+                }
+            };
+        }
+
         @Override
         public Iterator<T> iterator()
         {
-            final PageIterator<W> pageIterator = new PageIterator<W>(api, initialPage);
+            return flattenPages(new PageIterator<W>(api, initialPage, prefetchDepth, pageSize));
+        }
+
+        private Iterator<T> flattenPages(final Iterator<W> pageIterator)
+        {
             return Iterators.concat(new AbstractIterator<Iterator<T>>()
             {
                 @Override
@@ -139,4 +389,129 @@ public class PageIterator<T extends WrapperDto< ? extends SingleResourceTranspor
         }
 
     }
+
+    /**
+     * Computes the links to the pages that follow the given one, or returns <code>null</code> if
+     * they cannot be inferred from its <code>next</code> link.
+     */
+    private static List<RESTLink> remainingPages(final WrapperDto< ? > page)
+    {
+        RESTLink next = page.searchLink("next");
+        if (next == null)
+        {
+            return Collections.emptyList();
+        }
+
+        Integer totalSize = page.getTotalSize();
+        Integer start = Ints.tryParse(Strings.nullToEmpty(getQueryParam(next, "startwith")));
+        int pageSize = page.getCollection().size();
+        if (totalSize == null || start == null || pageSize == 0)
+        {
+            return null;
+        }
+
+        List<RESTLink> pages = new ArrayList<RESTLink>();
+        for (int offset = start; offset < totalSize; offset += pageSize)
+        {
+            pages.add(withQueryParam(next, "startwith", offset));
+        }
+        return pages;
+    }
+
+    /**
+     * Fetches a known list of pages concurrently. To bound the memory used by the pages that have
+     * not been consumed yet, and the requests made by iterators that are not consumed to the end,
+     * no more than <code>maxConcurrency</code> pages are requested ahead of the consumer.
+     */
+    private static class PartitionedPageIterator<W extends WrapperDto< ? >> extends
+        AbstractIterator<W>
+    {
+        private final RestClient api;
+
+        private final List<RESTLink> pages;
+
+        private final String mediaType;
+
+        private final Class<W> pageClass;
+
+        private final int maxConcurrency;
+
+        private final boolean ordered;
+
+        // Requested pages not consumed yet, in the order of the collection. Only used if ordered
+        private final Deque<ListenableFuture<W>> requested = new ArrayDeque<ListenableFuture<W>>();
+
+        // Requested pages not consumed yet, in the order they are received. Only used if unordered
+        private final BlockingQueue<ListenableFuture<W>> received =
+            new LinkedBlockingQueue<ListenableFuture<W>>();
+
+        private int sent;
+
+        private int consumed;
+
+        @SuppressWarnings("unchecked")
+        public PartitionedPageIterator(final RestClient api, final W initialPage,
+            final List<RESTLink> pages, final int maxConcurrency, final boolean ordered)
+        {
+            this.api = api;
+            this.pages = pages;
+            this.mediaType = initialPage.getMediaType();
+            this.pageClass = (Class<W>) initialPage.getClass();
+            this.maxConcurrency = maxConcurrency;
+            this.ordered = ordered;
+        }
+
+        @Override
+        protected W computeNext()
+        {
+            fetchMore();
+            if (consumed == pages.size())
+            {
+                return endOfData();
+            }
+
+            // Consumed pages are not referenced anymore, so they can be collected
+            ListenableFuture<W> page =
+                ordered ? requested.poll() : Uninterruptibles.takeUninterruptibly(received);
+            consumed++;
+            return getPage(page);
+        }
+
+        private void fetchMore()
+        {
+            while (sent < pages.size() && sent - consumed < maxConcurrency)
+            {
+                final ListenableFuture<W> page =
+                    api.getAsync(pages.get(sent++).getHref(), mediaType, pageClass);
+                if (ordered)
+                {
+                    requested.add(page);
+                }
+                else
+                {
+                    page.addListener(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            received.add(page);
+                        }
+                    }, MoreExecutors.sameThreadExecutor());
+                }
+            }
+        }
+    }
+
+    private static <T> T getPage(final ListenableFuture<T> page)
+    {
+        try
+        {
+            return Uninterruptibles.getUninterruptibly(page);
+        }
+        catch (ExecutionException ex)
+        {
+            // Propagate the failure as the synchronous requests do
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
 }
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.domain;
+
+import com.abiquo.model.transport.AcceptedRequestDto;
+import com.google.common.reflect.TypeToken;
+
+/**
+ * Generic types used to deserialize the responses of the API.
+ * <p>
+ * Type tokens are immutable, so they are defined once to avoid creating a new one on each call.
+ */
+public final class Types
+{
+    public static final TypeToken<AcceptedRequestDto<String>> ACCEPTED_REQUEST =
+        new TypeToken<AcceptedRequestDto<String>>()
+        {
+            private static final long serialVersionUID = -6348281615419377868L;
+        };
+
+    private Types()
+    {
+        throw new AssertionError("Constant class. Clients shouldn't instantiate it directly.");
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.domain.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is not sent because the client-side limits do not admit it in time.
+ * <p>
+ * It is an {@link IOException} so it can be thrown from the HTTP interceptors and is reported
+ * like any other transport failure, but rejected requests are never retried.
+ */
+public class RequestRejectedException extends IOException
+{
+    private static final long serialVersionUID = -2466283407232963052L;
+
+    public RequestRejectedException(final String message)
+    {
+        super(message);
+    }
+
+}
@@ -20,16 +20,12 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import com.google.common.base.Throwables;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 
 public abstract class BaseOptions
 {
-    private static final Pattern URL_ENCODED_PATTERN = Pattern
-        .compile(".*%[a-fA-F0-9][a-fA-F0-9].*");
-
     private final Map<String, Object> queryParams;
 
     public Map<String, Object> queryParams()
@@ -39,8 +35,9 @@ public abstract class BaseOptions
 
     protected BaseOptions(final Map<String, Object> queryParams)
     {
+        // Sorted, so the client can build the query string without sorting them again
         this.queryParams =
-            ImmutableMap.copyOf(checkNotNull(queryParams, "queryParams cannot be null"));
+            ImmutableSortedMap.copyOf(checkNotNull(queryParams, "queryParams cannot be null"));
     }
 
     protected static void putIfPresent(final String key, final Object value,
@@ -54,13 +51,27 @@ public abstract class BaseOptions
 
     public static boolean isUrlEncoded(final String in)
     {
-        return URL_ENCODED_PATTERN.matcher(in).matches();
+        boolean escaped = false;
+        for (int i = 0; i < in.length(); i++)
+        {
+            char c = in.charAt(i);
+            if (isLineTerminator(c))
+            {
+                return false;
+            }
+            if (c == '%' && i + 2 < in.length() && isHexDigit(in.charAt(i + 1))
+                && isHexDigit(in.charAt(i + 2)))
+            {
+                escaped = true;
+            }
+        }
+        return escaped;
     }
 
     public static String urlEncode(final String value)
     {
-        // Do not double encode
-        if (isUrlEncoded(value))
+        // Do not encode values that do not need it, and do not double encode
+        if (isUrlSafe(value) || isUrlEncoded(value))
         {
             return value;
         }
@@ -80,4 +91,31 @@ public abstract class BaseOptions
             throw Throwables.propagate(ex);
         }
     }
+
+    // Characters that are never changed by the URL encoding
+    private static boolean isUrlSafe(final String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-'
+                || c == '_' || c == '.'))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHexDigit(final char c)
+    {
+        return c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+    }
+
+    // The encoded values used to be detected with a regular expression that did not match
+    // multi-line strings
+    private static boolean isLineTerminator(final char c)
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
 }
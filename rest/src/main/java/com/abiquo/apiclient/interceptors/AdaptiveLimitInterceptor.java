@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.interceptors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import com.abiquo.apiclient.AdaptiveConcurrencyLimit;
+import com.abiquo.apiclient.metrics.ClientMetrics;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * Sends the requests within the bounds of the configured {@link AdaptiveConcurrencyLimit}, and
+ * feeds it with the latency and the outcome of each request.
+ * <p>
+ * The latency of a request is measured until its response headers are received, so the time
+ * spent by the caller reading the body is not taken for server latency, and compared with the
+ * latency of the requests to the same route. The slot of the request is released when its
+ * response body is closed. Connection failures and responses with a 429 or 5xx status code are
+ * considered a sign of server overload.
+ * 
+ * @author Ignasi Barrera
+ */
+public class AdaptiveLimitInterceptor implements Interceptor
+{
+    private final AdaptiveConcurrencyLimit limit;
+
+    private final String basePath;
+
+    /**
+     * @param basePath The path of the API endpoint. It is removed from the request paths to build
+     *            the route names.
+     */
+    public AdaptiveLimitInterceptor(final AdaptiveConcurrencyLimit limit, final String basePath)
+    {
+        this.limit = checkNotNull(limit, "limit cannot be null");
+        this.basePath = checkNotNull(basePath, "basePath cannot be null");
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException
+    {
+        Request request = chain.request();
+        final String route = ClientMetrics.route(request.method(), relativePath(request), null);
+        limit.acquire();
+        long start = System.nanoTime();
+
+        final Response response;
+        try
+        {
+            response = chain.proceed(request);
+        }
+        catch (IOException ex)
+        {
+            limit.release(route, System.nanoTime() - start, true);
+            throw ex;
+        }
+        catch (RuntimeException ex)
+        {
+            limit.release(route, System.nanoTime() - start, true);
+            throw ex;
+        }
+
+        final long rttNanos = System.nanoTime() - start;
+        final boolean overloaded = response.code() == 429 || response.code() >= 500;
+        return ResponseBodies.onClose(response, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                limit.release(route, rttNanos, overloaded);
+            }
+        });
+    }
+
+    private String relativePath(final Request request)
+    {
+        String path = request.url().getPath();
+        return path.startsWith(basePath) ? path.substring(basePath.length()) : path;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.interceptors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import com.abiquo.apiclient.AdmissionControl;
+import com.abiquo.apiclient.AdmissionControl.Permit;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * Sends the requests only when they are admitted by the configured {@link AdmissionControl}.
+ * <p>
+ * Admissions are released when the response body is closed, so requests are considered in flight
+ * until their responses have been completely read.
+ * 
+ * @author Ignasi Barrera
+ */
+public class AdmissionInterceptor implements Interceptor
+{
+    private final AdmissionControl admissionControl;
+
+    private final String basePath;
+
+    /**
+     * @param basePath The path of the API endpoint. It is removed from the request paths before
+     *            matching them against the configured routes.
+     */
+    public AdmissionInterceptor(final AdmissionControl admissionControl, final String basePath)
+    {
+        this.admissionControl = checkNotNull(admissionControl, "admissionControl cannot be null");
+        this.basePath = checkNotNull(basePath, "basePath cannot be null");
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException
+    {
+        Request request = chain.request();
+        final Permit permit = admissionControl.acquire(relativePath(request));
+
+        Response response;
+        try
+        {
+            response = chain.proceed(request);
+        }
+        catch (IOException ex)
+        {
+            permit.release();
+            throw ex;
+        }
+        catch (RuntimeException ex)
+        {
+            permit.release();
+            throw ex;
+        }
+
+        return ResponseBodies.onClose(response, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                permit.release();
+            }
+        });
+    }
+
+    private String relativePath(final Request request)
+    {
+        String path = request.url().getPath();
+        return path.startsWith(basePath) ? path.substring(basePath.length()) : path;
+    }
+}
@@ -15,10 +15,14 @@
  */
 package com.abiquo.apiclient.interceptors;
 
+import static com.abiquo.apiclient.CallEvent.callId;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
 
+import com.abiquo.apiclient.CallEvent;
+import com.abiquo.apiclient.CallEvent.Phase;
+import com.abiquo.apiclient.CallListener;
 import com.abiquo.apiclient.auth.Authentication;
 import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.Request;
@@ -33,15 +37,33 @@ public class AuthenticationInterceptor implements Interceptor
 {
     private final Authentication authentication;
 
+    private final CallListener listener;
+
     public AuthenticationInterceptor(final Authentication authentication)
+    {
+        this(authentication, null);
+    }
+
+    /**
+     * @param listener The listener to notify when the requests have been authenticated. May be
+     *            null.
+     */
+    public AuthenticationInterceptor(final Authentication authentication,
+        final CallListener listener)
     {
         this.authentication = checkNotNull(authentication, "authentication cannot be null");
+        this.listener = listener;
     }
 
     @Override
     public Response intercept(final Chain chain) throws IOException
     {
         Request authenticated = authentication.authenticate(chain.request());
+        if (listener != null)
+        {
+            listener.onEvent(new CallEvent(Phase.AUTHENTICATED, callId(authenticated),
+                authenticated));
+        }
         return chain.proceed(authenticated);
     }
 
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.interceptors;
+
+import static com.abiquo.apiclient.CallEvent.callId;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import com.abiquo.apiclient.CallEvent;
+import com.abiquo.apiclient.CallEvent.Phase;
+import com.abiquo.apiclient.CallListener;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * Notifies the {@link CallListener} when a connection has been acquired for a request and when
+ * its response headers are received.
+ * <p>
+ * This interceptor must be registered as the first network interceptor. Network interceptors run
+ * once the connection has been established, so the connection event includes the time spent in
+ * the DNS resolution, the TCP connection and the TLS handshake.
+ * 
+ * @author Ignasi Barrera
+ */
+public class CallEventInterceptor implements Interceptor
+{
+    private final CallListener listener;
+
+    public CallEventInterceptor(final CallListener listener)
+    {
+        this.listener = checkNotNull(listener, "listener cannot be null");
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException
+    {
+        Request request = chain.request();
+        long callId = callId(request);
+
+        listener.onEvent(new CallEvent(Phase.CONNECTION_ACQUIRED, callId, request));
+        Response response = chain.proceed(request);
+        listener.onEvent(new CallEvent(Phase.HEADERS_RECEIVED, callId, request));
+
+        return response;
+    }
+}
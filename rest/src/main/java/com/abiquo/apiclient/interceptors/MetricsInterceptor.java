@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.interceptors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import com.abiquo.apiclient.interceptors.ResponseBodies.CloseListener;
+import com.abiquo.apiclient.json.JsonRequestBody;
+import com.abiquo.apiclient.metrics.ClientMetrics;
+import com.google.common.net.HttpHeaders;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+/**
+ * Records the metrics of each request in the configured {@link ClientMetrics}.
+ * <p>
+ * The latency of a request is measured until its response body is closed, and includes the time
+ * spent in the interceptors registered after this one, such as retries or client-side limits.
+ * 
+ * @author Ignasi Barrera
+ */
+public class MetricsInterceptor implements Interceptor
+{
+    private final ClientMetrics metrics;
+
+    private final String basePath;
+
+    /**
+     * @param basePath The path of the API endpoint. It is removed from the request paths to build
+     *            the route names.
+     */
+    public MetricsInterceptor(final ClientMetrics metrics, final String basePath)
+    {
+        this.metrics = checkNotNull(metrics, "metrics cannot be null");
+        this.basePath = checkNotNull(basePath, "basePath cannot be null");
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException
+    {
+        final Request request = chain.request();
+        final long start = System.nanoTime();
+
+        final Response response;
+        try
+        {
+            response = chain.proceed(request);
+        }
+        catch (IOException ex)
+        {
+            record(request, 0, start, 0);
+            throw ex;
+        }
+
+        return ResponseBodies.onClose(response, new CloseListener()
+        {
+            @Override
+            public void onClose(final long bytesRead)
+            {
+                record(request, response.code(), start, bytesRead);
+            }
+        });
+    }
+
+    private void record(final Request request, final int statusCode, final long start,
+        final long bytesReceived)
+    {
+        metrics.record(request.method(), relativePath(request), mediaType(request), statusCode,
+            System.nanoTime() - start, bytesSent(request.body()), bytesReceived);
+    }
+
+    private String relativePath(final Request request)
+    {
+        String path = request.url().getPath();
+        return path.startsWith(basePath) ? path.substring(basePath.length()) : path;
+    }
+
+    private static String mediaType(final Request request)
+    {
+        String accept = request.header(HttpHeaders.ACCEPT);
+        if (accept == null)
+        {
+            return null;
+        }
+        int params = accept.indexOf(';');
+        return (params < 0 ? accept : accept.substring(0, params)).trim();
+    }
+
+    private static long bytesSent(final RequestBody body)
+    {
+        if (body == null)
+        {
+            return 0;
+        }
+        if (body instanceof JsonRequestBody)
+        {
+            return ((JsonRequestBody) body).getBytesWritten();
+        }
+
+        try
+        {
+            return body.contentLength();
+        }
+        catch (IOException ex)
+        {
+            // The size is unknown
+            return -1;
+        }
+    }
+}
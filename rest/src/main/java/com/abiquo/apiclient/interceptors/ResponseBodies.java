@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.interceptors;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+/**
+ * Utility methods to track the lifecycle of response bodies.
+ * 
+ * @author Ignasi Barrera
+ */
+final class ResponseBodies
+{
+    /**
+     * Notified when a response body is closed.
+     */
+    public static interface CloseListener
+    {
+        /**
+         * @param bytesRead The number of bytes read from the response body.
+         */
+        public void onClose(long bytesRead);
+    }
+
+    /**
+     * Returns a response that runs the given callback exactly once, when its body is closed. A
+     * request is not complete until its response body has been read, so resources held for the
+     * request should be released when the body is closed instead of when the response is
+     * returned.
+     */
+    public static Response onClose(final Response response, final Runnable callback)
+    {
+        return onClose(response, new CloseListener()
+        {
+            @Override
+            public void onClose(final long bytesRead)
+            {
+                callback.run();
+            }
+        });
+    }
+
+    /**
+     * Returns a response that notifies the given listener exactly once, when its body is closed.
+     */
+    public static Response onClose(final Response response, final CloseListener listener)
+    {
+        ResponseBody body = response.body();
+        if (body == null)
+        {
+            listener.onClose(0);
+            return response;
+        }
+
+        final AtomicBoolean closed = new AtomicBoolean();
+        ForwardingSource source = new ForwardingSource(body.source())
+        {
+            private long bytesRead;
+
+            @Override
+            public long read(final Buffer sink, final long byteCount) throws IOException
+            {
+                long read = super.read(sink, byteCount);
+                if (read > 0)
+                {
+                    bytesRead += read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    if (closed.compareAndSet(false, true))
+                    {
+                        listener.onClose(bytesRead);
+                    }
+                }
+            }
+        };
+
+        ResponseBody tracked =
+            ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(source));
+        return response.newBuilder().body(tracked).build();
+    }
+
+    private ResponseBodies()
+    {
+        throw new AssertionError("Utility class. Clients shouldn't instantiate it directly.");
+    }
+}
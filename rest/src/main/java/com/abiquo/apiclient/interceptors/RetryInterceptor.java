@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.interceptors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import com.abiquo.apiclient.RetryPolicy;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * Retries the failed requests according to the configured {@link RetryPolicy}.
+ * <p>
+ * This interceptor must be registered as an application interceptor, so each retry goes through
+ * the network interceptors and is authenticated again.
+ * <p>
+ * The backoff is waited in the thread that runs the interceptor. Requests marked with the
+ * {@link #RETRIED_BY_CALLER} header are sent only once, so their caller can retry them without
+ * blocking the OkHttp dispatcher threads. The header is removed before sending the request.
+ * 
+ * @author Ignasi Barrera
+ */
+public class RetryInterceptor implements Interceptor
+{
+    public static final String RETRIED_BY_CALLER = "X-Abiquo-Client-Retried-By-Caller";
+
+    private final RetryPolicy policy;
+
+    public RetryInterceptor(final RetryPolicy policy)
+    {
+        this.policy = checkNotNull(policy, "policy cannot be null");
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException
+    {
+        Request request = chain.request();
+        if (request.header(RETRIED_BY_CALLER) != null)
+        {
+            return chain.proceed(request.newBuilder().removeHeader(RETRIED_BY_CALLER).build());
+        }
+
+        policy.onRequest();
+
+        if (!policy.isRetryable(request))
+        {
+            return chain.proceed(request);
+        }
+
+        for (int attempt = 1;; attempt++)
+        {
+            Response response;
+            try
+            {
+                response = chain.proceed(request);
+            }
+            catch (IOException ex)
+            {
+                if (!policy.isRetryable(ex) || !policy.tryRetry(attempt))
+                {
+                    throw ex;
+                }
+                sleep(policy.backoff(attempt, null));
+                continue;
+            }
+
+            if (!policy.isRetryable(response) || !policy.tryRetry(attempt))
+            {
+                return response;
+            }
+
+            long backoff = policy.backoff(attempt, response);
+            response.body().close();
+            sleep(backoff);
+        }
+    }
+
+    private static void sleep(final long millis) throws InterruptedIOException
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the request");
+        }
+    }
+}
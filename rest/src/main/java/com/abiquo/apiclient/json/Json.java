@@ -16,19 +16,59 @@
 package com.abiquo.apiclient.json;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.model.transport.WrapperDto;
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.reflect.TypeToken;
 
+/**
+ * Serializes and deserializes the Abiquo API objects.
+ * <p>
+ * The readers and writers for each type are resolved the first time they are used and reused in
+ * subsequent calls, so instances of this class should be reused too.
+ * 
+ * @author Ignasi Barrera
+ */
 public class Json
 {
+    private static final String AFTERBURNER_MODULE =
+        "com.fasterxml.jackson.module.afterburner.AfterburnerModule";
+
+    private static final Type LINKS_TYPE = new TypeToken<List<RESTLink>>()
+    {
+        private static final long serialVersionUID = 4517729346195840417L;
+    }.getType();
+
     private final ObjectMapper mapper;
 
+    private final ConcurrentMap<Type, ObjectReader> readers =
+        new ConcurrentHashMap<Type, ObjectReader>();
+
+    private final ConcurrentMap<Class< ? >, ObjectWriter> writers =
+        new ConcurrentHashMap<Class< ? >, ObjectWriter>();
+
     public Json()
+    {
+        this(false);
+    }
+
+    private Json(final boolean afterburner)
     {
         mapper = new ObjectMapper();
         mapper.setVisibilityChecker(mapper.getVisibilityChecker().withFieldVisibility(
@@ -36,20 +76,161 @@ public class Json
         mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        // Streams are owned by the caller (request and response bodies)
+        mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+        if (afterburner)
+        {
+            mapper.registerModule(afterburnerModule());
+        }
+    }
+
+    /**
+     * Creates a {@link Json} that uses the Jackson Afterburner module to replace reflection with
+     * generated bytecode when reading and writing objects. This speeds up the processing of large
+     * objects and collections.
+     * <p>
+     * The <code>jackson-module-afterburner</code> library is an optional dependency and must be
+     * added to the classpath to use this method.
+     * 
+     * @throws IllegalStateException If the Afterburner module is not in the classpath.
+     */
+    public static Json withAfterburner()
+    {
+        return new Json(true);
+    }
+
+    private static Module afterburnerModule()
+    {
+        try
+        {
+            return (Module) Class.forName(AFTERBURNER_MODULE).newInstance();
+        }
+        catch (ClassNotFoundException ex)
+        {
+            throw new IllegalStateException("The jackson-module-afterburner library must be in "
+                + "the classpath to use the Afterburner module", ex);
+        }
+        catch (Exception ex)
+        {
+            throw new IllegalStateException("Could not load the Afterburner module", ex);
+        }
     }
 
     public <T> T read(final String str, final Class<T> clazz) throws IOException
     {
-        return mapper.readValue(str, mapper.constructType(clazz));
+        return reader(clazz).readValue(str);
     }
 
     public <T> T read(final String str, final TypeToken<T> type) throws IOException
     {
-        return mapper.readValue(str, mapper.constructType(type.getType()));
+        return reader(type.getType()).readValue(str);
+    }
+
+    public <T> T read(final InputStream in, final Class<T> clazz) throws IOException
+    {
+        return reader(clazz).readValue(in);
+    }
+
+    public <T> T read(final InputStream in, final TypeToken<T> type) throws IOException
+    {
+        return reader(type.getType()).readValue(in);
+    }
+
+    /**
+     * Reads only the given fields of the object. If the object is a collection, the projection
+     * applies to each one of its elements.
+     */
+    public <T> T read(final InputStream in, final Class<T> clazz, final Projection projection)
+        throws IOException
+    {
+        return read(in, TypeToken.of(clazz), projection);
+    }
+
+    /**
+     * Reads only the given fields of the object. If the object is a collection, the projection
+     * applies to each one of its elements.
+     */
+    public <T> T read(final InputStream in, final TypeToken<T> type, final Projection projection)
+        throws IOException
+    {
+        boolean collection = WrapperDto.class.isAssignableFrom(type.getRawType());
+        JsonParser parser =
+            new ProjectingParser(mapper.getFactory().createParser(in), projection, collection);
+        try
+        {
+            return reader(type.getType()).readValue(parser);
+        }
+        finally
+        {
+            parser.close();
+        }
+    }
+
+    /**
+     * Creates a parser that reads the elements of a page of a collection one at a time. The
+     * stream is closed when the returned parser is closed.
+     */
+    public <T> PageParser<T> readPage(final InputStream in, final Class<T> elementClass)
+        throws IOException
+    {
+        return readPage(in, elementClass, null);
+    }
+
+    /**
+     * Creates a parser that reads the given fields of the elements of a page of a collection one
+     * at a time. The stream is closed when the returned parser is closed.
+     */
+    public <T> PageParser<T> readPage(final InputStream in, final Class<T> elementClass,
+        final Projection projection) throws IOException
+    {
+        JsonParser parser = mapper.getFactory().createParser(in);
+        return new PageParser<T>(projection == null ? parser : new ProjectingParser(parser,
+            projection, true), reader(elementClass), reader(LINKS_TYPE));
     }
 
     public String write(final Object object) throws IOException
     {
-        return mapper.writeValueAsString(object);
+        return writer(object).writeValueAsString(object);
+    }
+
+    public void write(final OutputStream out, final Object object) throws IOException
+    {
+        writer(object).writeValue(out, object);
+    }
+
+    private ObjectReader reader(final Type type)
+    {
+        ObjectReader reader = readers.get(type);
+        if (reader == null)
+        {
+            reader = mapper.reader(mapper.constructType(type));
+            ObjectReader existing = readers.putIfAbsent(type, reader);
+            if (existing != null)
+            {
+                reader = existing;
+            }
+        }
+        return reader;
+    }
+
+    private ObjectWriter writer(final Object object)
+    {
+        if (object == null)
+        {
+            return mapper.writer();
+        }
+
+        ObjectWriter writer = writers.get(object.getClass());
+        if (writer == null)
+        {
+            writer = mapper.writerWithType(object.getClass());
+            ObjectWriter existing = writers.putIfAbsent(object.getClass(), writer);
+            if (existing != null)
+            {
+                writer = existing;
+            }
+        }
+        return writer;
     }
 }
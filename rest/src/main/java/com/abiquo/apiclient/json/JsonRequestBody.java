@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.json;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.BufferedSink;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+/**
+ * A {@link RequestBody} that serializes the given object with Jackson without building an
+ * intermediate String.
+ * <p>
+ * The object is serialized only once, into an Okio {@link Buffer} backed by pooled segments, when
+ * the length of the body is computed, so requests are sent with a <code>Content-Length</code>
+ * header. That serialized form is reused when the body is written to the connection and by the
+ * callers that need to read the payload before it is sent (request logging, signing, etc) through
+ * the {@link #bufferOf(RequestBody)} method.
+ * 
+ * @author Ignasi Barrera
+ */
+public class JsonRequestBody extends RequestBody
+{
+    private final Json json;
+
+    private final MediaType contentType;
+
+    private final Object body;
+
+    // Populated the first time the payload or its length are requested
+    private Buffer buffered;
+
+    private volatile long bytesWritten = -1;
+
+    public JsonRequestBody(final Json json, final MediaType contentType, final Object body)
+    {
+        this.json = checkNotNull(json, "json cannot be null");
+        this.contentType = checkNotNull(contentType, "contentType cannot be null");
+        this.body = checkNotNull(body, "body cannot be null");
+    }
+
+    @Override
+    public MediaType contentType()
+    {
+        return contentType;
+    }
+
+    @Override
+    public synchronized long contentLength() throws IOException
+    {
+        return serialized().size();
+    }
+
+    @Override
+    public void writeTo(final BufferedSink sink) throws IOException
+    {
+        Buffer serialized = buffer();
+        bytesWritten = serialized.size();
+        sink.write(serialized, serialized.size());
+    }
+
+    /**
+     * Returns the number of bytes written the last time the body was sent, or -1 if it has not
+     * been sent yet.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * Serializes the payload only once and returns a copy of the serialized bytes that the caller
+     * can freely consume.
+     */
+    public synchronized Buffer buffer() throws IOException
+    {
+        return serialized().clone();
+    }
+
+    private synchronized Buffer serialized() throws IOException
+    {
+        if (buffered == null)
+        {
+            Buffer serialized = new Buffer();
+            json.write(serialized.outputStream(), body);
+            buffered = serialized;
+        }
+        return buffered;
+    }
+
+    /**
+     * Returns the payload of the given request body. If it is a {@link JsonRequestBody} the
+     * serialized form is cached, so it will not be serialized again when the request is sent.
+     */
+    public static Buffer bufferOf(final RequestBody body) throws IOException
+    {
+        if (body instanceof JsonRequestBody)
+        {
+            return ((JsonRequestBody) body).buffer();
+        }
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import com.abiquo.model.rest.RESTLink;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Reads the elements of a page of a collection one at a time, as they are parsed from the
+ * underlying stream, instead of binding the entire page at once.
+ * <p>
+ * The links and the total size of the collection are captured as they are found. As they may
+ * come after the elements, they are only guaranteed to be available once all the elements have
+ * been read.
+ * <p>
+ * To create instances of this class use the {@link Json#readPage(java.io.InputStream, Class)}
+ * method.
+ * 
+ * @author Ignasi Barrera
+ */
+public class PageParser<T> extends AbstractIterator<T> implements Closeable
+{
+    private final JsonParser parser;
+
+    private final ObjectReader elementReader;
+
+    private final ObjectReader linksReader;
+
+    private List<RESTLink> links = Collections.emptyList();
+
+    private Integer totalSize;
+
+    private boolean inCollection;
+
+    // Package-private. Use the factory method in the Json class.
+    PageParser(final JsonParser parser, final ObjectReader elementReader,
+        final ObjectReader linksReader) throws IOException
+    {
+        this.parser = parser;
+        this.elementReader = elementReader;
+        this.linksReader = linksReader;
+
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+        {
+            throw new JsonParseException("A JSON object was expected",
+                parser.getCurrentLocation());
+        }
+    }
+
+    @Override
+    protected T computeNext()
+    {
+        try
+        {
+            if (inCollection)
+            {
+                if (parser.nextToken() != JsonToken.END_ARRAY)
+                {
+                    return elementReader.readValue(parser);
+                }
+                inCollection = false;
+            }
+
+            // Read the fields of the page until the collection starts or the page ends
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if ("collection".equals(field) && value == JsonToken.START_ARRAY)
+                {
+                    inCollection = true;
+                    return computeNext();
+                }
+                else if ("links".equals(field) && value == JsonToken.START_ARRAY)
+                {
+                    links = linksReader.readValue(parser);
+                }
+                else if ("totalSize".equals(field) && value == JsonToken.VALUE_NUMBER_INT)
+                {
+                    totalSize = parser.getIntValue();
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
+            }
+
+            return endOfData();
+        }
+        catch (IOException ex)
+        {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    /**
+     * The links of the page. They may not be available until all the elements have been read.
+     */
+    public List<RESTLink> getLinks()
+    {
+        return links;
+    }
+
+    /**
+     * Returns the link with the given relation, or <code>null</code> if the page does not have
+     * it. Links may not be available until all the elements have been read.
+     */
+    public RESTLink searchLink(final String rel)
+    {
+        for (RESTLink link : links)
+        {
+            if (rel.equals(link.getRel()))
+            {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The total size of the collection. It may not be available until all the elements have been
+     * read.
+     */
+    public Integer getTotalSize()
+    {
+        return totalSize;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        parser.close();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.json;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+
+/**
+ * Skips the fields of the projected objects that are not part of the projection, so they are
+ * never seen by the deserializers.
+ * <p>
+ * The projected objects are the root object or, when reading a collection, the elements of its
+ * <code>collection</code> array.
+ * 
+ * @author Ignasi Barrera
+ */
+class ProjectingParser extends JsonParserDelegate
+{
+    private final Projection projection;
+
+    private final boolean collection;
+
+    public ProjectingParser(final JsonParser parser, final Projection projection,
+        final boolean collection)
+    {
+        super(parser);
+        this.projection = projection;
+        this.collection = collection;
+    }
+
+    @Override
+    public JsonToken nextToken() throws IOException
+    {
+        JsonToken token = delegate.nextToken();
+        while (token == JsonToken.FIELD_NAME && isProjected(delegate.getParsingContext())
+            && !projection.includes(delegate.getCurrentName()))
+        {
+            // Move to the value and skip it entirely
+            delegate.nextToken();
+            delegate.skipChildren();
+            token = delegate.nextToken();
+        }
+        return token;
+    }
+
+    @Override
+    public JsonToken nextValue() throws IOException
+    {
+        JsonToken token = nextToken();
+        return token == JsonToken.FIELD_NAME ? nextToken() : token;
+    }
+
+    private boolean isProjected(final JsonStreamContext object)
+    {
+        JsonStreamContext parent = object.getParent();
+        if (!collection)
+        {
+            return parent.inRoot();
+        }
+
+        // An element of the "collection" array of the root object
+        JsonStreamContext page = parent.inArray() ? parent.getParent() : null;
+        return page != null && page.inObject() && page.getParent().inRoot()
+            && "collection".equals(page.getCurrentName());
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.json;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The set of fields to decode from a resource. The rest of the fields are skipped while parsing,
+ * without binding them, which saves the processing and allocation of the parts of the resources
+ * that are not needed.
+ * <p>
+ * When a collection is read, the projection applies to each one of its elements. The links of
+ * the resources are skipped too, unless the <code>links</code> field is part of the projection.
+ * 
+ * @author Ignasi Barrera
+ */
+public final class Projection
+{
+    private final Set<String> fields;
+
+    private Projection(final Set<String> fields)
+    {
+        this.fields = fields;
+    }
+
+    public static Projection of(final String... fields)
+    {
+        return of(Arrays.asList(checkNotNull(fields, "fields cannot be null")));
+    }
+
+    public static Projection of(final Iterable<String> fields)
+    {
+        Set<String> projected = ImmutableSet.copyOf(checkNotNull(fields, "fields cannot be null"));
+        checkArgument(!projected.isEmpty(), "at least one field must be projected");
+        return new Projection(projected);
+    }
+
+    public Set<String> getFields()
+    {
+        return fields;
+    }
+
+    public boolean includes(final String field)
+    {
+        return fields.contains(field);
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        return obj instanceof Projection && fields.equals(((Projection) obj).fields);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return fields.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Projection" + fields;
+    }
+}
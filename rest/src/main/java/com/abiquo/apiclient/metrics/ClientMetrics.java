@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Collects request counts, status code classes, latency percentiles and payload sizes for each
+ * route of the API, and the polls sent by each polling strategy.
+ * <p>
+ * Recording is lock-free, so the same metrics can be shared by several clients and threads. The
+ * collected metrics can be read with the {@link #getRoutes()} method or exposed through JMX with
+ * {@link #registerMBean(String)}.
+ * 
+ * @author Ignasi Barrera
+ */
+public class ClientMetrics implements ClientMetricsMXBean
+{
+    // Route used once the maximum number of routes is reached, to bound the memory used
+    static final String OTHER_ROUTES = "OTHER";
+
+    private static final int MAX_ROUTES = 1000;
+
+    private static final String UUID =
+        "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}";
+
+    // Numeric and UUID path segments are replaced by a placeholder to build the route templates
+    private static final Pattern ID_SEGMENT = Pattern.compile("/(\\d+|" + UUID + ")(?=/|$)");
+
+    private final ConcurrentMap<String, RouteMetrics> routes =
+        new ConcurrentHashMap<String, RouteMetrics>();
+
+    private final ConcurrentMap<String, PollingMetrics> polling =
+        new ConcurrentHashMap<String, PollingMetrics>();
+
+    public static ClientMetrics create()
+    {
+        return new ClientMetrics();
+    }
+
+    private ClientMetrics()
+    {
+        // Use the factory method
+    }
+
+    /**
+     * Records a completed request.
+     * 
+     * @param method The HTTP method of the request.
+     * @param path The path of the request, relative to the API endpoint.
+     * @param mediaType The requested media type, without parameters. May be null.
+     * @param statusCode The status code of the response, or 0 if no response was received.
+     * @param latencyNanos The time it took to complete the request.
+     * @param bytesSent The size of the request body.
+     * @param bytesReceived The size of the response body.
+     */
+    public void record(final String method, final String path, final String mediaType,
+        final int statusCode, final long latencyNanos, final long bytesSent,
+        final long bytesReceived)
+    {
+        metrics(route(method, path, mediaType)).record(statusCode, latencyNanos, bytesSent,
+            bytesReceived);
+    }
+
+    /**
+     * Records a wait that saw its operation finish.
+     * 
+     * @param strategy The name of the polling strategy that planned the polls.
+     * @param polls The number of polls sent.
+     * @param overshootNanos The time between the last two polls.
+     */
+    public void recordWait(final String strategy, final int polls, final long overshootNanos)
+    {
+        PollingMetrics metrics = polling.get(strategy);
+        if (metrics == null)
+        {
+            PollingMetrics created = new PollingMetrics(strategy);
+            metrics = polling.putIfAbsent(strategy, created);
+            if (metrics == null)
+            {
+                metrics = created;
+            }
+        }
+        metrics.record(polls, overshootNanos);
+    }
+
+    private RouteMetrics metrics(final String route)
+    {
+        RouteMetrics metrics = routes.get(route);
+        if (metrics == null)
+        {
+            String key = routes.size() < MAX_ROUTES ? route : OTHER_ROUTES;
+            RouteMetrics created = new RouteMetrics(key);
+            metrics = routes.putIfAbsent(key, created);
+            if (metrics == null)
+            {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the route of a request: its method and its path with the identifiers replaced by a
+     * placeholder, followed by the media type if it is not null.
+     */
+    public static String route(final String method, final String path, final String mediaType)
+    {
+        String template = ID_SEGMENT.matcher(path).replaceAll("/{id}");
+        return mediaType == null ? method + " " + template : method + " " + template + " "
+            + mediaType;
+    }
+
+    /**
+     * Returns the metrics of the given route, or null if no request has been recorded for it.
+     */
+    public RouteMetrics getRoute(final String route)
+    {
+        return routes.get(checkNotNull(route, "route cannot be null"));
+    }
+
+    @Override
+    public List<RouteMetrics> getRoutes()
+    {
+        return ImmutableList.copyOf(routes.values());
+    }
+
+    /**
+     * Returns the metrics of the given polling strategy, or null if no wait has been recorded for
+     * it.
+     */
+    public PollingMetrics getPollingStrategy(final String strategy)
+    {
+        return polling.get(checkNotNull(strategy, "strategy cannot be null"));
+    }
+
+    @Override
+    public List<PollingMetrics> getPollingStrategies()
+    {
+        return ImmutableList.copyOf(polling.values());
+    }
+
+    @Override
+    public void reset()
+    {
+        routes.clear();
+        polling.clear();
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server with the given name.
+     * 
+     * @return The object name used to register the metrics.
+     */
+    public ObjectName registerMBean(final String name) throws JMException
+    {
+        ObjectName objectName =
+            new ObjectName("com.abiquo.apiclient:type=ClientMetrics,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+}
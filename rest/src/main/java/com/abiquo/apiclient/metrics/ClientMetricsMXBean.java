@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.metrics;
+
+import java.util.List;
+
+/**
+ * JMX view of the {@link ClientMetrics}.
+ * 
+ * @author Ignasi Barrera
+ */
+public interface ClientMetricsMXBean
+{
+    public List<RouteMetrics> getRoutes();
+
+    public List<PollingMetrics> getPollingStrategies();
+
+    public void reset();
+}
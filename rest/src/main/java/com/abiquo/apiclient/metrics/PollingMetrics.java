@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics collected for the waits planned by a polling strategy: the number of polls sent
+ * for each wait and the overshoot of the waits, that is, the time between the last poll that saw
+ * the operation in progress and the one that saw it finished.
+ * 
+ * @author Ignasi Barrera
+ */
+public class PollingMetrics
+{
+    private final String strategy;
+
+    private final AtomicLong polls = new AtomicLong();
+
+    private final LatencyHistogram overshoot = new LatencyHistogram();
+
+    PollingMetrics(final String strategy)
+    {
+        this.strategy = strategy;
+    }
+
+    void record(final int pollCount, final long overshootNanos)
+    {
+        polls.addAndGet(pollCount);
+        overshoot.record(TimeUnit.NANOSECONDS.toMicros(overshootNanos));
+    }
+
+    public String getStrategy()
+    {
+        return strategy;
+    }
+
+    /** The number of waits that saw their operation finish. */
+    public long getWaitCount()
+    {
+        return overshoot.getCount();
+    }
+
+    public long getPollCount()
+    {
+        return polls.get();
+    }
+
+    public double getPollsPerWait()
+    {
+        long waits = overshoot.getCount();
+        return waits == 0 ? 0 : (double) polls.get() / waits;
+    }
+
+    /**
+     * Returns the overshoot below which the given percentage of the waits completed.
+     */
+    public long getOvershoot(final double percentile, final TimeUnit timeUnit)
+    {
+        return timeUnit.convert(overshoot.getPercentile(percentile), TimeUnit.MICROSECONDS);
+    }
+
+    public double getOvershootMeanMillis()
+    {
+        return overshoot.getMean() / 1000;
+    }
+
+    public double getOvershootP50Millis()
+    {
+        return overshoot.getPercentile(50) / 1000.0;
+    }
+
+    public double getOvershootP90Millis()
+    {
+        return overshoot.getPercentile(90) / 1000.0;
+    }
+
+    public double getOvershootMaxMillis()
+    {
+        return overshoot.getMax() / 1000.0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: waits=%d, polls/wait=%.2f, overshoot p50=%.2fms, p90=%.2fms",
+            strategy, getWaitCount(), getPollsPerWait(), getOvershootP50Millis(),
+            getOvershootP90Millis());
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metrics collected for the requests performed to a route of the API.
+ * <p>
+ * A route is identified by the HTTP method, the path with the identifiers replaced by a
+ * <code>{id}</code> placeholder, and the requested media type. For example:
+ * <code>GET /cloud/virtualdatacenters/{id} application/vnd.abiquo.virtualdatacenter+json</code>.
+ * 
+ * @author Ignasi Barrera
+ */
+public class RouteMetrics
+{
+    private final String route;
+
+    // Indexed by the status code class. Index 0 is used for requests that got no response.
+    private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    RouteMetrics(final String route)
+    {
+        this.route = route;
+    }
+
+    void record(final int statusCode, final long latencyNanos, final long sent,
+        final long received)
+    {
+        int statusClass = statusCode / 100;
+        statusClasses.incrementAndGet(statusClass > 0 && statusClass < 6 ? statusClass : 0);
+        latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        if (sent > 0)
+        {
+            bytesSent.addAndGet(sent);
+        }
+        if (received > 0)
+        {
+            bytesReceived.addAndGet(received);
+        }
+    }
+
+    public String getRoute()
+    {
+        return route;
+    }
+
+    public long getRequestCount()
+    {
+        return latency.getCount();
+    }
+
+    /** The number of requests that failed without getting a response. */
+    public long getFailureCount()
+    {
+        return statusClasses.get(0);
+    }
+
+    public long getSuccessCount()
+    {
+        return statusClasses.get(2);
+    }
+
+    public long getRedirectionCount()
+    {
+        return statusClasses.get(3);
+    }
+
+    public long getClientErrorCount()
+    {
+        return statusClasses.get(4);
+    }
+
+    public long getServerErrorCount()
+    {
+        return statusClasses.get(5);
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns the latency below which the given percentage of the requests completed.
+     */
+    public long getLatency(final double percentile, final TimeUnit timeUnit)
+    {
+        return timeUnit.convert(latency.getPercentile(percentile), TimeUnit.MICROSECONDS);
+    }
+
+    public double getLatencyMeanMillis()
+    {
+        return latency.getMean() / 1000;
+    }
+
+    public double getLatencyP50Millis()
+    {
+        return latency.getPercentile(50) / 1000.0;
+    }
+
+    public double getLatencyP90Millis()
+    {
+        return latency.getPercentile(90) / 1000.0;
+    }
+
+    public double getLatencyP99Millis()
+    {
+        return latency.getPercentile(99) / 1000.0;
+    }
+
+    public double getLatencyMaxMillis()
+    {
+        return latency.getMax() / 1000.0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: requests=%d, p50=%.2fms, p99=%.2fms", route,
+            getRequestCount(), getLatencyP50Millis(), getLatencyP99Millis());
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.polling;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns how long each kind of {@link Operation} takes to complete, and plans the first poll of
+ * the waits near the expected end of the operation instead of polling at a fixed interval.
+ * <p>
+ * The expected duration of each operation is a moving average of the durations observed in the
+ * previous waits. When there is no history for an operation with a given hypervisor type, the
+ * history of the operation in all hypervisor types is used, and if there is no history at all the
+ * operation is polled at the interval requested by the caller while its duration is learned.
+ * <p>
+ * Once the first poll has been sent near the expected end, the following polls back off
+ * exponentially. Delays are randomized with the configured jitter so waits that started at the
+ * same time do not poll the API all at once.
+ * 
+ * @author Ignasi Barrera
+ */
+public class AdaptivePolling implements PollingStrategy
+{
+    // Bounds the memory used if operations are created with unbounded types
+    private static final int MAX_OPERATIONS = 1000;
+
+    private final double firstPollRatio;
+
+    private final double backoff;
+
+    private final double jitter;
+
+    private final double smoothing;
+
+    private final long minDelayNanos;
+
+    private final long maxDelayNanos;
+
+    private final Random random = new Random();
+
+    private final ConcurrentMap<Operation, Estimate> estimates =
+        new ConcurrentHashMap<Operation, Estimate>();
+
+    // Do not use directly. Use the builder.
+    private AdaptivePolling(final double firstPollRatio, final double backoff,
+        final double jitter, final double smoothing, final long minDelayNanos,
+        final long maxDelayNanos)
+    {
+        this.firstPollRatio = firstPollRatio;
+        this.backoff = backoff;
+        this.jitter = jitter;
+        this.smoothing = smoothing;
+        this.minDelayNanos = minDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private double firstPollRatio = 0.9;
+
+        private double backoff = 1.5;
+
+        private double jitter = 0.1;
+
+        private double smoothing = 0.2;
+
+        private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private long maxDelayNanos = TimeUnit.MINUTES.toNanos(1);
+
+        /**
+         * The fraction of the expected duration of the operation at which the first poll is
+         * planned. Defaults to 0.9.
+         */
+        public Builder firstPollRatio(final double firstPollRatio)
+        {
+            checkArgument(firstPollRatio > 0 && firstPollRatio <= 1,
+                "firstPollRatio must be in the range (0, 1]");
+            this.firstPollRatio = firstPollRatio;
+            return this;
+        }
+
+        /**
+         * The factor applied to the delay between polls once the expected end of the operation
+         * has been reached. Defaults to 1.5.
+         */
+        public Builder backoff(final double backoff)
+        {
+            checkArgument(backoff >= 1, "backoff must be >= 1");
+            this.backoff = backoff;
+            return this;
+        }
+
+        /**
+         * The maximum fraction of the delays that is randomly added or subtracted. Defaults to
+         * 0.1.
+         */
+        public Builder jitter(final double jitter)
+        {
+            checkArgument(jitter >= 0 && jitter < 1, "jitter must be in the range [0, 1)");
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * The weight of the last observed duration in the moving average of the durations of
+         * each operation. Defaults to 0.2.
+         */
+        public Builder smoothing(final double smoothing)
+        {
+            checkArgument(smoothing > 0 && smoothing <= 1, "smoothing must be in the range (0, 1]");
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        /**
+         * The minimum and maximum delays between the polls planned from the learned durations.
+         * Defaults to 100 milliseconds and 1 minute.
+         */
+        public Builder delays(final long minDelay, final long maxDelay, final TimeUnit timeUnit)
+        {
+            checkArgument(minDelay > 0, "minDelay must be > 0");
+            checkArgument(maxDelay >= minDelay, "maxDelay must be >= minDelay");
+            this.minDelayNanos = timeUnit.toNanos(minDelay);
+            this.maxDelayNanos = timeUnit.toNanos(maxDelay);
+            return this;
+        }
+
+        public AdaptivePolling build()
+        {
+            return new AdaptivePolling(firstPollRatio, backoff, jitter, smoothing, minDelayNanos,
+                maxDelayNanos);
+        }
+    }
+
+    @Override
+    public Schedule schedule(final Operation operation, final long pollIntervalNanos)
+    {
+        Estimate estimate = estimates.get(operation);
+        if (estimate == null)
+        {
+            estimate = estimates.get(operation.withoutHypervisorType());
+        }
+        return new AdaptiveSchedule(operation, pollIntervalNanos, estimate == null ? 0
+            : estimate.getMeanNanos());
+    }
+
+    @Override
+    public boolean usesHypervisorType()
+    {
+        return true;
+    }
+
+    /**
+     * Returns the learned duration of the given operation, or -1 if it has not been observed yet.
+     */
+    public long getExpectedDuration(final Operation operation, final TimeUnit timeUnit)
+    {
+        Estimate estimate = estimates.get(operation);
+        return estimate == null ? -1 : timeUnit.convert(estimate.getMeanNanos(),
+            TimeUnit.NANOSECONDS);
+    }
+
+    private void learn(final Operation operation, final long durationNanos)
+    {
+        Estimate estimate = estimates.get(operation);
+        if (estimate == null)
+        {
+            if (estimates.size() >= MAX_OPERATIONS)
+            {
+                return;
+            }
+            Estimate created = new Estimate();
+            estimate = estimates.putIfAbsent(operation, created);
+            if (estimate == null)
+            {
+                estimate = created;
+            }
+        }
+        estimate.add(durationNanos, smoothing);
+    }
+
+    private long delay(final double nanos)
+    {
+        double jittered = nanos * (1 + jitter * (2 * random.nextDouble() - 1));
+        return Math.max(minDelayNanos, Math.min(maxDelayNanos, (long) jittered));
+    }
+
+    private class AdaptiveSchedule implements Schedule
+    {
+        private final Operation operation;
+
+        private final long pollIntervalNanos;
+
+        private final long expectedNanos;
+
+        // The delay between polls once the expected end has been reached
+        private double step;
+
+        public AdaptiveSchedule(final Operation operation, final long pollIntervalNanos,
+            final long expectedNanos)
+        {
+            this.operation = operation;
+            this.pollIntervalNanos = pollIntervalNanos;
+            this.expectedNanos = expectedNanos;
+        }
+
+        @Override
+        public long nextDelayNanos(final int polls, final long elapsedNanos)
+        {
+            if (expectedNanos <= 0)
+            {
+                // Nothing learned yet
+                return pollIntervalNanos;
+            }
+
+            long firstPollNanos = (long) (expectedNanos * firstPollRatio);
+            if (elapsedNanos < firstPollNanos)
+            {
+                return delay(firstPollNanos - elapsedNanos);
+            }
+
+            step = step == 0 ? Math.max(minDelayNanos, expectedNanos - firstPollNanos) : step
+                * backoff;
+            step = Math.min(step, maxDelayNanos);
+            return delay(step);
+        }
+
+        @Override
+        public void finished(final int polls, final long elapsedNanos, final long overshootNanos)
+        {
+            // The operation finished at some point between the last two polls. Operations that
+            // finish almost right away are learned with the minimum delay, as a zero duration
+            // would be taken for an operation that has not been learned yet
+            long durationNanos = Math.max(minDelayNanos, elapsedNanos - overshootNanos / 2);
+            learn(operation, durationNanos);
+            if (operation.getHypervisorType() != null)
+            {
+                learn(operation.withoutHypervisorType(), durationNanos);
+            }
+        }
+    }
+
+    private static class Estimate
+    {
+        private volatile double meanNanos = -1;
+
+        public synchronized void add(final long durationNanos, final double smoothing)
+        {
+            meanNanos =
+                meanNanos < 0 ? durationNanos : meanNanos + smoothing * (durationNanos - meanNanos);
+        }
+
+        public long getMeanNanos()
+        {
+            return (long) meanNanos;
+        }
+    }
+}
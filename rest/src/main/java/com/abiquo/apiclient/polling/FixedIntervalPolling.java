@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.polling;
+
+/**
+ * Polls at the interval requested by the caller of each wait. This is the default strategy.
+ * 
+ * @author Ignasi Barrera
+ */
+public class FixedIntervalPolling implements PollingStrategy
+{
+    @Override
+    public Schedule schedule(final Operation operation, final long pollIntervalNanos)
+    {
+        return new Schedule()
+        {
+            @Override
+            public long nextDelayNanos(final int polls, final long elapsedNanos)
+            {
+                return pollIntervalNanos;
+            }
+
+            @Override
+            public void finished(final int polls, final long elapsedNanos,
+                final long overshootNanos)
+            {
+                // Nothing to learn
+            }
+        };
+    }
+
+    @Override
+    public boolean usesHypervisorType()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.polling;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+
+/**
+ * The kind of an asynchronous operation, used by the {@link PollingStrategy} to tell apart
+ * operations that take different times to complete. For example, the type of a task and the
+ * hypervisor type of the virtual datacenter where it runs.
+ * 
+ * @author Ignasi Barrera
+ */
+public final class Operation
+{
+    private final String type;
+
+    private final String hypervisorType;
+
+    private Operation(final String type, final String hypervisorType)
+    {
+        this.type = checkNotNull(type, "type cannot be null");
+        this.hypervisorType = hypervisorType;
+    }
+
+    public static Operation of(final String type)
+    {
+        return new Operation(type, null);
+    }
+
+    public static Operation of(final String type, final String hypervisorType)
+    {
+        return new Operation(type, hypervisorType);
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    /**
+     * The hypervisor type where the operation runs, or <code>null</code> if it is unknown.
+     */
+    public String getHypervisorType()
+    {
+        return hypervisorType;
+    }
+
+    /**
+     * Returns this operation without the hypervisor type.
+     */
+    public Operation withoutHypervisorType()
+    {
+        return hypervisorType == null ? this : new Operation(type, null);
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof Operation))
+        {
+            return false;
+        }
+        Operation other = (Operation) obj;
+        return type.equals(other.type) && Objects.equal(hypervisorType, other.hypervisorType);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hashCode(type, hypervisorType);
+    }
+
+    @Override
+    public String toString()
+    {
+        return hypervisorType == null ? type : type + "/" + hypervisorType;
+    }
+}
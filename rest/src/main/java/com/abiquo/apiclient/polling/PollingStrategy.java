@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.polling;
+
+/**
+ * Decides when to poll the asynchronous operations of the Abiquo API, such as tasks and state
+ * changes, while the client waits for them to finish.
+ * <p>
+ * The first poll of a wait is always sent right away. Then, the strategy plans the rest of the
+ * polls of the wait with a {@link Schedule}, which is notified when the operation finishes so the
+ * strategy can learn from it. The same strategy is used by all the threads of a client, so it
+ * must be thread safe. Each schedule is used by a single wait at a time.
+ * 
+ * @see FixedIntervalPolling
+ * @see AdaptivePolling
+ * @author Ignasi Barrera
+ */
+public interface PollingStrategy
+{
+    /**
+     * Plans the polls of a wait for the given operation.
+     * 
+     * @param operation The kind of operation being waited for.
+     * @param pollIntervalNanos The poll interval requested by the caller of the wait.
+     */
+    public Schedule schedule(Operation operation, long pollIntervalNanos);
+
+    /**
+     * Returns whether the schedules of this strategy depend on the hypervisor type of the
+     * operations. If they do not, the client does not look it up, as it may take a request.
+     */
+    public boolean usesHypervisorType();
+
+    public static interface Schedule
+    {
+        /**
+         * Returns the delay before the next poll.
+         * 
+         * @param polls The number of polls already sent.
+         * @param elapsedNanos The time elapsed since the wait started.
+         */
+        public long nextDelayNanos(int polls, long elapsedNanos);
+
+        /**
+         * Called when a poll sees that the operation has finished.
+         * 
+         * @param polls The number of polls sent, including the last one.
+         * @param elapsedNanos The time elapsed between the start of the wait and the last poll.
+         * @param overshootNanos The time elapsed between the previous poll and the last one. It
+         *            bounds the delay added by the polling to the end of the operation.
+         */
+        public void finished(int polls, long elapsedNanos, long overshootNanos);
+    }
+}
@@ -15,14 +15,13 @@
  */
 package com.abiquo.apiclient.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import okio.BufferedSink;
-import okio.Okio;
+import okio.Buffer;
 
+import com.abiquo.apiclient.json.JsonRequestBody;
 import com.google.common.base.Strings;
 import com.squareup.okhttp.Headers;
 import com.squareup.okhttp.Request;
@@ -33,6 +32,11 @@ public class LogUtils
 {
     private static final Logger LOG = Logger.getLogger("abiquo.client");
 
+    public static boolean isDebugEnabled()
+    {
+        return LOG.isLoggable(Level.FINE);
+    }
+
     public static void logRequest(final Request request) throws IOException
     {
         if (LOG.isLoggable(Level.FINE))
@@ -48,24 +52,11 @@ public class LogUtils
             RequestBody body = request.body();
             if (body != null)
             {
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                try
-                {
-                    BufferedSink buffer = Okio.buffer(Okio.sink(out));
-                    body.writeTo(buffer);
-                    buffer.flush();
-
-                    byte[] bytes = out.toByteArray();
-                    if (bytes.length > 0)
-                    {
-                        LOG.log(Level.FINE,
-                            String.format(">> Content-Type: %s", body.contentType()));
-                        LOG.log(Level.FINE, String.format(">> Body: %s", new String(bytes)));
-                    }
-                }
-                finally
+                Buffer buffer = JsonRequestBody.bufferOf(body);
+                if (buffer.size() > 0)
                 {
-                    out.close();
+                    LOG.log(Level.FINE, String.format(">> Content-Type: %s", body.contentType()));
+                    LOG.log(Level.FINE, String.format(">> Body: %s", buffer.readUtf8()));
                 }
             }
         }
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.abiquo.apiclient.domain.exception.RequestRejectedException;
+
+@Test
+public class AdaptiveConcurrencyLimitTest
+{
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    public void testLimitGrowsWhenSaturatedWithLowLatency() throws Exception
+    {
+        AdaptiveConcurrencyLimit limit =
+            AdaptiveConcurrencyLimit.builder().initialLimit(2).maxLimit(3).build();
+
+        for (int i = 0; i < 10; i++)
+        {
+            limit.acquire();
+            limit.acquire();
+            limit.release(RTT, false);
+            limit.release(RTT, false);
+        }
+
+        assertEquals(limit.getLimit(), 3);
+        assertEquals(limit.getInFlight(), 0);
+    }
+
+    public void testLimitDecreasesOnOverload() throws Exception
+    {
+        AdaptiveConcurrencyLimit limit =
+            AdaptiveConcurrencyLimit.builder().initialLimit(10).backoffRatio(0.5).build();
+
+        limit.acquire();
+        limit.release(RTT, true);
+        assertEquals(limit.getLimit(), 5);
+
+        // Latency over the tolerance is a sign of overload too
+        limit.acquire();
+        limit.release(RTT * 10, false);
+        assertEquals(limit.getLimit(), 2);
+    }
+
+    public void testSlowRoutesAreNotTakenForOverload() throws Exception
+    {
+        AdaptiveConcurrencyLimit limit =
+            AdaptiveConcurrencyLimit.builder().initialLimit(2).maxLimit(3).build();
+
+        for (int i = 0; i < 10; i++)
+        {
+            limit.acquire();
+            limit.acquire();
+            limit.release("GET /cloud/virtualdatacenters/{id}", RTT, false);
+            limit.release("GET /cloud/virtualmachines", RTT * 10, false);
+        }
+
+        assertEquals(limit.getLimit(), 3);
+        assertEquals(limit.getInFlight(), 0);
+
+        // A latency spike in the slow route is still a sign of overload
+        limit.acquire();
+        limit.release("GET /cloud/virtualmachines", RTT * 100, false);
+        assertTrue(limit.getLimit() < 3);
+    }
+
+    public void testRequestsOverTheLimitAreRejected() throws Exception
+    {
+        AdaptiveConcurrencyLimit limit =
+            AdaptiveConcurrencyLimit.builder().initialLimit(1).maxWait(0, TimeUnit.SECONDS)
+                .build();
+
+        limit.acquire();
+        try
+        {
+            limit.acquire();
+            fail("Request should have been rejected");
+        }
+        catch (RequestRejectedException ex)
+        {
+            assertTrue(ex.getMessage().contains("1 concurrent requests"));
+        }
+
+        assertEquals(limit.getRejectedCount(), 1);
+        assertEquals(limit.getQueueDepth(), 0);
+        assertEquals(limit.getInFlight(), 1);
+    }
+}
@@ -15,18 +15,28 @@
  */
 package com.abiquo.apiclient;
 
+import static com.abiquo.apiclient.auth.BasicAuthentication.basic;
 import static com.abiquo.apiclient.domain.ApiPath.VIRTUALDATACENTERS_URL;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.fail;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import org.testng.annotations.Test;
 
+import com.abiquo.apiclient.domain.exception.HttpException;
 import com.abiquo.apiclient.domain.options.ExternalIpListOptions;
 import com.abiquo.apiclient.domain.options.VirtualApplianceListOptions;
 import com.abiquo.apiclient.domain.options.VirtualDatacenterListOptions;
 import com.abiquo.apiclient.domain.options.VirtualMachineListOptions;
+import com.abiquo.apiclient.polling.AdaptivePolling;
+import com.abiquo.apiclient.polling.FixedIntervalPolling;
+import com.abiquo.apiclient.polling.Operation;
+import com.abiquo.apiclient.polling.PollingStrategy;
 import com.abiquo.model.enumerator.NetworkType;
 import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.AcceptedRequestDto;
@@ -435,13 +445,17 @@ public class CloudApiTest extends BaseMockTest
                 "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1");
         link.setType(VirtualMachineDto.SHORT_MEDIA_TYPE_JSON);
         dto.addLink(link);
+        link = new RESTLink("virtualdatacenter", "/cloud/virtualdatacenters/1");
+        link.setType(VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
 
         VirtualMachineDto vm = newApiClient().getCloudApi().deploy(dto, 1, 300, TimeUnit.SECONDS);
 
         // Verify the returned status is the right one
         assertEquals(vm.getState(), VirtualMachineState.ON);
 
-        // Make sure the polling has retried once
+        // Make sure the polling has retried once, and the virtual datacenter has not been fetched
+        // as the default polling strategy does not use its hypervisor type
         assertEquals(server.getRequestCount(), 2);
 
         // Verify the first request
@@ -458,6 +472,115 @@ public class CloudApiTest extends BaseMockTest
             SingleResourceTransportDto.API_VERSION);
     }
 
+    public void testDeployVirtualMachineInTheHypervisorTypeOfItsVirtualDatacenter()
+        throws Exception
+    {
+        VirtualDatacenterDto vdc = new VirtualDatacenterDto();
+        vdc.setHypervisorType("KVM");
+        RESTLink link = new RESTLink("edit", "/cloud/virtualdatacenters/1");
+        link.setType(VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON);
+        vdc.addLink(link);
+
+        VirtualMachineDto powerOn = new VirtualMachineDto();
+        powerOn.setState(VirtualMachineState.ON);
+
+        server.enqueue(new MockResponse().addHeader("Content-type",
+            VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON).setBody(json.write(vdc)));
+        for (int i = 0; i < 2; i++)
+        {
+            server.enqueue(new MockResponse() //
+                .setHeader("Content-Type", AcceptedRequestDto.SHORT_MEDIA_TYPE_JSON)//
+                .setBody(payloadFromResource("acceptedRequest.json")));
+            server.enqueue(new MockResponse().addHeader("Content-type",
+                VirtualMachineDto.SHORT_MEDIA_TYPE_JSON).setBody(json.write(powerOn)));
+        }
+        server.play();
+
+        VirtualMachineDto dto = new VirtualMachineDto();
+        link =
+            new RESTLink("deploy",
+                "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1/action/deploy");
+        link.setType(AcceptedRequestDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+        link =
+            new RESTLink("edit",
+                "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1");
+        link.setType(VirtualMachineDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+        link = new RESTLink("virtualdatacenter", "/cloud/virtualdatacenters/1");
+        link.setType(VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+
+        final List<Operation> operations = new CopyOnWriteArrayList<Operation>();
+        final PollingStrategy polling = new FixedIntervalPolling();
+        CloudApi api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .pollingStrategy(new PollingStrategy()
+            {
+                @Override
+                public Schedule schedule(final Operation operation, final long pollIntervalNanos)
+                {
+                    operations.add(operation);
+                    return polling.schedule(operation, pollIntervalNanos);
+                }
+
+                @Override
+                public boolean usesHypervisorType()
+                {
+                    return true;
+                }
+            }).build().getCloudApi();
+
+        api.deploy(dto, 1, 300, TimeUnit.SECONDS);
+        api.deploy(dto, 1, 300, TimeUnit.SECONDS);
+
+        assertEquals(operations, Arrays.asList(Operation.of("DEPLOY", "KVM"),
+            Operation.of("DEPLOY", "KVM")));
+
+        // The virtual datacenter is fetched only once, before sending the action
+        assertEquals(server.getRequestCount(), 5);
+        assertRequest(server.takeRequest(), "GET", "/cloud/virtualdatacenters/1");
+        assertRequest(server.takeRequest(), "POST",
+            "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1/action/deploy?force=false");
+    }
+
+    public void testDeployVirtualMachineFailsIfItsVirtualDatacenterCannotBeFetched()
+        throws Exception
+    {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.play();
+
+        VirtualMachineDto dto = new VirtualMachineDto();
+        RESTLink link =
+            new RESTLink("deploy",
+                "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1/action/deploy");
+        link.setType(AcceptedRequestDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+        link = new RESTLink("virtualdatacenter", "/cloud/virtualdatacenters/1");
+        link.setType(VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+
+        CloudApi api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .pollingStrategy(AdaptivePolling.builder().build()).build().getCloudApi();
+
+        try
+        {
+            api.deploy(dto, 1, 300, TimeUnit.SECONDS);
+            fail("Deploy should have failed as the virtual datacenter does not exist");
+        }
+        catch (HttpException ex)
+        {
+            assertEquals(ex.getCode(), 404);
+        }
+
+        // The action is not sent
+        assertEquals(server.getRequestCount(), 1);
+        assertRequest(server.takeRequest(), "GET", "/cloud/virtualdatacenters/1");
+    }
+
     public void testDeployVirtualMachineWithForce() throws Exception
     {
         MockResponse response = new MockResponse() //
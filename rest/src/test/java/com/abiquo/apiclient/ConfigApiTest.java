@@ -15,10 +15,16 @@
  */
 package com.abiquo.apiclient;
 
+import static com.abiquo.apiclient.cache.MetadataCache.ResourceType.HYPERVISOR_TYPES;
 import static com.abiquo.apiclient.domain.ApiPath.HYPERVISORTYPES_URL;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
 
 import org.testng.annotations.Test;
 
+import com.abiquo.apiclient.cache.MetadataCache;
 import com.abiquo.model.transport.SingleResourceTransportDto;
 import com.abiquo.server.core.cloud.HypervisorTypeDto;
 import com.abiquo.server.core.cloud.HypervisorTypesDto;
@@ -65,4 +71,31 @@ public class ConfigApiTest extends BaseMockTest
             SingleResourceTransportDto.API_VERSION);
     }
 
+    public void testGetHypervisorTypesIsCached() throws Exception
+    {
+        MockResponse vdcsResponse = new MockResponse() //
+            .setHeader("Content-Type", HypervisorTypesDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("hypervisortypes.json"));
+
+        server.enqueue(vdcsResponse);
+        server.play();
+
+        MetadataCache cache = MetadataCache.builder().ttl(HYPERVISOR_TYPES, 1, TimeUnit.MINUTES)
+            .build();
+        ApiClient api = newApiClient().toBuilder().metadataCache(cache).build();
+
+        Iterable<HypervisorTypeDto> first = api.getConfigApi().getHypervisorTypes();
+        Iterable<HypervisorTypeDto> second = api.getConfigApi().getHypervisorTypes();
+
+        assertSame(second, first);
+        assertEquals(server.getRequestCount(), 1);
+        assertEquals(cache.stats(HYPERVISOR_TYPES).hitCount(), 1);
+
+        RecordedRequest request = server.takeRequest();
+
+        assertRequest(request, "GET", HYPERVISORTYPES_URL);
+        assertAccept(request, HypervisorTypesDto.SHORT_MEDIA_TYPE_JSON,
+            SingleResourceTransportDto.API_VERSION);
+    }
+
 }
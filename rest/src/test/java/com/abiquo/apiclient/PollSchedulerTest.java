@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+
+@Test
+public class PollSchedulerTest
+{
+    public void testTasksRunInDeadlineOrder() throws Exception
+    {
+        // A small wheel, so some of the tasks need more than one turn
+        PollScheduler scheduler = PollScheduler.builder().ticksPerWheel(4).build();
+        try
+        {
+            final List<Integer> executed = new CopyOnWriteArrayList<Integer>();
+            final CountDownLatch latch = new CountDownLatch(4);
+            for (final int delay : new int[] {120, 10, 200, 60})
+            {
+                scheduler.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        executed.add(delay);
+                        latch.countDown();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+            assertEquals(executed, ImmutableList.of(10, 60, 120, 200));
+        }
+        finally
+        {
+            scheduler.close();
+        }
+    }
+
+    public void testCancelledTasksDoNotRun() throws Exception
+    {
+        PollScheduler scheduler = PollScheduler.builder().build();
+        try
+        {
+            final CountDownLatch latch = new CountDownLatch(1);
+            ListenableFuture<Void> cancelled = scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    latch.countDown();
+                }
+            }, 50, TimeUnit.MILLISECONDS);
+
+            assertTrue(cancelled.cancel(false));
+            assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+        }
+        finally
+        {
+            scheduler.close();
+        }
+    }
+
+    public void testRunningTasksCannotBeCancelled() throws Exception
+    {
+        PollScheduler scheduler = PollScheduler.builder().build();
+        try
+        {
+            final AtomicReference<ListenableFuture<Void>> timeout =
+                new AtomicReference<ListenableFuture<Void>>();
+            final AtomicBoolean cancelled = new AtomicBoolean(true);
+            final CountDownLatch scheduled = new CountDownLatch(1);
+            final CountDownLatch latch = new CountDownLatch(1);
+            timeout.set(scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        scheduled.await();
+                        cancelled.set(timeout.get().cancel(false));
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            }, 10, TimeUnit.MILLISECONDS));
+            scheduled.countDown();
+
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+            assertFalse(cancelled.get());
+            assertNull(timeout.get().get(1, TimeUnit.SECONDS));
+            assertFalse(timeout.get().isCancelled());
+        }
+        finally
+        {
+            scheduler.close();
+        }
+    }
+
+    public void testCloseCancelsPendingTasks() throws Exception
+    {
+        PollScheduler scheduler = PollScheduler.builder().build();
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // Do nothing
+            }
+        };
+        ListenableFuture<Void> pending = scheduler.schedule(task, 1, TimeUnit.MINUTES);
+
+        scheduler.close();
+
+        try
+        {
+            pending.get(1, TimeUnit.SECONDS);
+            fail("Pending tasks should have been cancelled");
+        }
+        catch (CancellationException ex)
+        {
+            // Expected
+        }
+
+        try
+        {
+            scheduler.schedule(task, 1, TimeUnit.SECONDS);
+            fail("Tasks should not be scheduled once the scheduler is closed");
+        }
+        catch (IllegalStateException ex)
+        {
+            assertEquals(ex.getMessage(), "The scheduler has been closed");
+        }
+    }
+}
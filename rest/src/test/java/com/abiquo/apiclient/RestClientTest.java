@@ -15,7 +15,13 @@
  */
 package com.abiquo.apiclient;
 
+import static com.abiquo.apiclient.auth.BasicAuthentication.basic;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
@@ -24,7 +30,13 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -36,8 +48,19 @@ import javax.net.ssl.X509TrustManager;
 import org.testng.annotations.Test;
 
 import com.abiquo.apiclient.ApiClient.SSLConfiguration;
+import com.abiquo.apiclient.cache.ResponseCache;
+import com.abiquo.apiclient.domain.CloseableIterator;
 import com.abiquo.apiclient.domain.PageIterator.AdvancingIterable;
 import com.abiquo.apiclient.domain.exception.AuthorizationException;
+import com.abiquo.apiclient.domain.exception.HttpException;
+import com.abiquo.apiclient.domain.exception.RequestRejectedException;
+import com.abiquo.apiclient.interceptors.RetryInterceptor;
+import com.abiquo.apiclient.json.Projection;
+import com.abiquo.apiclient.metrics.ClientMetrics;
+import com.abiquo.apiclient.metrics.RouteMetrics;
+import com.abiquo.apiclient.polling.FixedIntervalPolling;
+import com.abiquo.apiclient.polling.Operation;
+import com.abiquo.apiclient.polling.PollingStrategy;
 import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.AcceptedRequestDto;
 import com.abiquo.model.transport.SingleResourceTransportDto;
@@ -48,8 +71,12 @@ import com.abiquo.server.core.cloud.VirtualMachineState;
 import com.abiquo.server.core.task.TaskDto;
 import com.abiquo.server.core.task.TaskState;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.squareup.okhttp.internal.SslContextBuilder;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
@@ -123,6 +150,81 @@ public class RestClientTest extends BaseMockTest
             SingleResourceTransportDto.API_VERSION);
     }
 
+    public void testStreamReadsTheElementsOfAllPages() throws Exception
+    {
+        server.play();
+
+        VirtualDatacentersDto firstPage = new VirtualDatacentersDto();
+        firstPage.add(vdc("vdc1"));
+        firstPage.add(vdc("vdc2"));
+        firstPage.setTotalSize(3);
+        firstPage.addLink(new RESTLink("next", baseUrl()
+            + "/cloud/virtualdatacenters?startwith=2"));
+        VirtualDatacentersDto secondPage = new VirtualDatacentersDto();
+        secondPage.add(vdc("vdc3"));
+        secondPage.setTotalSize(3);
+
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(json.write(firstPage)));
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(json.write(secondPage)));
+
+        CloseableIterator<VirtualDatacenterDto> vdcs =
+            newApiClient().getClient()
+                .stream("/cloud/virtualdatacenters", VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON,
+                    VirtualDatacentersDto.class).iterator();
+        try
+        {
+            assertEquals(vdcs.next().getName(), "vdc1");
+            // The second page is only requested when the first one has been consumed
+            assertEquals(vdcs.next().getName(), "vdc2");
+            assertEquals(server.getRequestCount(), 1);
+            assertEquals(vdcs.next().getName(), "vdc3");
+            assertFalse(vdcs.hasNext());
+        }
+        finally
+        {
+            vdcs.close();
+        }
+
+        assertRequest(server.takeRequest(), "GET", "/cloud/virtualdatacenters");
+        RecordedRequest request = server.takeRequest();
+        assertRequest(request, "GET", "/cloud/virtualdatacenters?startwith=2");
+        assertAccept(request, VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON,
+            SingleResourceTransportDto.API_VERSION);
+    }
+
+    public void testGetWithProjection() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualMachineDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vm.json")));
+        server.play();
+
+        VirtualMachineDto vm =
+            newApiClient().getClient().get("/cloud/virtualmachines/1",
+                VirtualMachineDto.SHORT_MEDIA_TYPE_JSON, VirtualMachineDto.class,
+                Projection.of("name", "state"));
+
+        assertEquals(vm.getState(), VirtualMachineState.NOT_ALLOCATED);
+        assertNotNull(vm.getName());
+        assertNull(vm.getEditLink());
+
+        RecordedRequest request = server.takeRequest();
+        assertRequest(request, "GET", "/cloud/virtualmachines/1");
+        assertAccept(request, VirtualMachineDto.SHORT_MEDIA_TYPE_JSON,
+            SingleResourceTransportDto.API_VERSION);
+    }
+
+    private static VirtualDatacenterDto vdc(final String name)
+    {
+        VirtualDatacenterDto vdc = new VirtualDatacenterDto();
+        vdc.setName(name);
+        return vdc;
+    }
+
     public void testGetRelativeLinkReturnsAnIterable() throws Exception
     {
         MockResponse vdcsResponse = new MockResponse() //
@@ -168,6 +270,447 @@ public class RestClientTest extends BaseMockTest
         assertAccept(request, VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON, "2.6");
     }
 
+    public void testGetAsync() throws Exception
+    {
+        MockResponse vdcsResponse = new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdcs.json"));
+
+        server.enqueue(vdcsResponse);
+        server.play();
+
+        ListenableFuture<VirtualDatacentersDto> future =
+            newApiClient().getClient().getAsync("/cloud/virtualdatacenters",
+                VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacentersDto.class);
+
+        VirtualDatacentersDto vdcs = future.get(5, TimeUnit.SECONDS);
+        assertEquals(vdcs.getCollection().size(), 2);
+
+        RecordedRequest request = server.takeRequest();
+
+        assertRequest(request, "GET", "/cloud/virtualdatacenters");
+        assertAccept(request, VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON,
+            SingleResourceTransportDto.API_VERSION);
+    }
+
+    public void testListAsyncReturnsAnIterable() throws Exception
+    {
+        MockResponse vdcsResponse = new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdcs.json"));
+
+        server.enqueue(vdcsResponse);
+        server.play();
+
+        Iterable<VirtualDatacenterDto> vdcs =
+            newApiClient().getClient()
+                .listAsync("/cloud/virtualdatacenters",
+                    VirtualDatacentersDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacentersDto.class)
+                .get(5, TimeUnit.SECONDS);
+
+        assertTrue(vdcs instanceof AdvancingIterable);
+        assertEquals(AdvancingIterable.class.cast(vdcs).size(), 2);
+    }
+
+    public void testAsyncErrorsAreMappedToExceptions() throws Exception
+    {
+        server.enqueue(new MockResponse().setResponseCode(401));
+        server.play();
+
+        ListenableFuture<VirtualDatacenterDto> future =
+            newApiClient().getClient().getAsync("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.MEDIA_TYPE, VirtualDatacenterDto.class);
+
+        try
+        {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Request should have failed and an AuthorizationException should have been thrown");
+        }
+        catch (ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof AuthorizationException);
+        }
+    }
+
+    public void testDerivedClientsShareTheTransport() throws Exception
+    {
+        server.play();
+
+        Transport transport = Transport.builder().maxRequestsPerHost(10).build();
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .transport(transport) //
+            .build();
+        ApiClient derived = api.toBuilder().version("2.6").build();
+
+        assertSame(api.getClient().rawClient().getConnectionPool(), transport.getConnectionPool());
+        assertSame(derived.getClient().rawClient().getConnectionPool(),
+            transport.getConnectionPool());
+        assertSame(derived.getClient().rawClient().getDispatcher(), transport.getDispatcher());
+        assertEquals(transport.getDispatcher().getMaxRequestsPerHost(), 10);
+
+        // Clients do not release shared transports
+        api.close();
+        derived.close();
+        assertFalse(transport.getDispatcher().getExecutorService().isShutdown());
+
+        transport.close();
+        assertTrue(transport.getDispatcher().getExecutorService().isShutdown());
+    }
+
+    public void testConditionalGetReturnsCachedObject() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setHeader("ETag", "\"v1\"") //
+            .setBody(payloadFromResource("vdc.json")));
+        server.enqueue(new MockResponse().setResponseCode(304));
+        server.play();
+
+        ResponseCache cache = ResponseCache.create(10);
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .responseCache(cache) //
+            .build();
+
+        VirtualDatacenterDto first =
+            api.getClient().get("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+        VirtualDatacenterDto second =
+            api.getClient().get("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+
+        // Each caller gets its own copy of the cached resource
+        assertNotSame(second, first);
+        assertEquals(second.getName(), first.getName());
+        assertEquals(cache.getMissCount(), 0);
+        assertEquals(cache.getHitCount(), 1);
+
+        RecordedRequest request = server.takeRequest();
+        assertRequest(request, "GET", "/cloud/virtualdatacenters/1");
+        assertEquals(request.getHeader("If-None-Match"), null);
+
+        RecordedRequest conditional = server.takeRequest();
+        assertRequest(conditional, "GET", "/cloud/virtualdatacenters/1");
+        assertHeader(conditional, "If-None-Match", "\"v1\"");
+    }
+
+    public void testConditionalGetCountsChangedResourcesAsMisses() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setHeader("ETag", "\"v1\"") //
+            .setBody(payloadFromResource("vdc.json")));
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setHeader("ETag", "\"v2\"") //
+            .setBody(payloadFromResource("vdc.json")));
+        server.enqueue(new MockResponse().setResponseCode(304));
+        server.play();
+
+        ResponseCache cache = ResponseCache.create(10);
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .responseCache(cache) //
+            .build();
+
+        for (int i = 0; i < 3; i++)
+        {
+            api.getClient().get("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+        }
+
+        assertEquals(cache.getMissCount(), 1);
+        assertEquals(cache.getHitCount(), 1);
+
+        assertEquals(server.takeRequest().getHeader("If-None-Match"), null);
+        assertHeader(server.takeRequest(), "If-None-Match", "\"v1\"");
+        assertHeader(server.takeRequest(), "If-None-Match", "\"v2\"");
+    }
+
+    public void testConditionalGetDoesNotShareResponsesBetweenCredentials() throws Exception
+    {
+        for (int i = 0; i < 2; i++)
+        {
+            server.enqueue(new MockResponse() //
+                .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+                .setHeader("ETag", "\"v1\"") //
+                .setBody(payloadFromResource("vdc.json")));
+        }
+        server.play();
+
+        ResponseCache cache = ResponseCache.create(10);
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .responseCache(cache) //
+            .build();
+        ApiClient other = api.toBuilder().authentication(basic("bar", "bar")).build();
+
+        api.getClient().get("/cloud/virtualdatacenters/1",
+            VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+        other.getClient().get("/cloud/virtualdatacenters/1",
+            VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+
+        assertEquals(cache.size(), 2);
+        assertEquals(server.takeRequest().getHeader("If-None-Match"), null);
+        assertEquals(server.takeRequest().getHeader("If-None-Match"), null);
+    }
+
+    public void testConcurrentGetsAreCoalesced() throws Exception
+    {
+        // Slow down the response so both requests are in flight at the same time
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdc.json")) //
+            .throttleBody(64, 100, TimeUnit.MILLISECONDS));
+        server.play();
+
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .coalesceRequests(true) //
+            .build();
+
+        ListenableFuture<VirtualDatacenterDto> first =
+            api.getClient().getAsync("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+        ListenableFuture<VirtualDatacenterDto> second =
+            api.getClient().getAsync("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+
+        assertSame(second.get(5, TimeUnit.SECONDS), first.get(5, TimeUnit.SECONDS));
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    public void testIdempotentRequestsAreRetried() throws Exception
+    {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "0"));
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdc.json")));
+        server.play();
+
+        RetryPolicy retryPolicy = RetryPolicy.builder().build();
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .retryPolicy(retryPolicy) //
+            .build();
+
+        VirtualDatacenterDto vdc =
+            api.getClient().get("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+
+        assertEquals(vdc.getName(), "VDC");
+        assertEquals(server.getRequestCount(), 2);
+        assertEquals(retryPolicy.getRetryCount(), 1);
+        assertEquals(retryPolicy.getGiveUpCount(), 0);
+    }
+
+    public void testAsyncRequestsAreRetriedWithoutBlockingTheDispatcher() throws Exception
+    {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "0"));
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdc.json")));
+        server.play();
+
+        RetryPolicy retryPolicy = RetryPolicy.builder().build();
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .retryPolicy(retryPolicy) //
+            .build();
+
+        VirtualDatacenterDto vdc =
+            api.getClient()
+                .getAsync("/cloud/virtualdatacenters/1",
+                    VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class)
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(vdc.getName(), "VDC");
+        assertEquals(server.getRequestCount(), 2);
+        assertEquals(retryPolicy.getRetryCount(), 1);
+
+        // The marker used to skip the retries in the interceptor is not sent
+        server.takeRequest();
+        assertNull(server.takeRequest().getHeader(RetryInterceptor.RETRIED_BY_CALLER));
+    }
+
+    public void testPostRequestsAreNotRetriedByDefault() throws Exception
+    {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "0"));
+        server.play();
+
+        RetryPolicy retryPolicy = RetryPolicy.builder().build();
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .retryPolicy(retryPolicy) //
+            .build();
+
+        try
+        {
+            api.getClient().post("/cloud/virtualdatacenters",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON,
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, new VirtualDatacenterDto(),
+                VirtualDatacenterDto.class);
+            fail("POST request should have failed");
+        }
+        catch (HttpException ex)
+        {
+            assertEquals(ex.getCode(), 503);
+        }
+
+        assertEquals(server.getRequestCount(), 1);
+        assertEquals(retryPolicy.getRetryCount(), 0);
+    }
+
+    public void testAdmissionControlRejectsRequestsOverTheLimit() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdc.json")));
+        server.play();
+
+        AdmissionControl admissionControl = AdmissionControl.builder() //
+            .rateLimit("/cloud/virtualdatacenters/**", 0.001) //
+            .concurrencyLimit("/cloud/virtualdatacenters/**", 1) //
+            .maxWait(0, TimeUnit.SECONDS) //
+            .build();
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .admissionControl(admissionControl) //
+            .build();
+
+        api.getClient().get("/cloud/virtualdatacenters/1",
+            VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+
+        try
+        {
+            api.getClient().get("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+            fail("Request should have been rejected");
+        }
+        catch (RuntimeException ex)
+        {
+            assertTrue(ex.getCause() instanceof RequestRejectedException);
+        }
+
+        AdmissionControl.RouteStats stats = admissionControl.getStats().get(0);
+        assertEquals(stats.getAdmittedCount(), 1);
+        assertEquals(stats.getRejectedCount(), 1);
+        assertEquals(stats.getInFlight(), 0);
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    public void testRejectedRequestsAreNotRetried() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdc.json")));
+        server.play();
+
+        AdmissionControl admissionControl = AdmissionControl.builder() //
+            .rateLimit("/cloud/virtualdatacenters/**", 0.001) //
+            .maxWait(0, TimeUnit.SECONDS) //
+            .build();
+        RetryPolicy retryPolicy = RetryPolicy.builder().build();
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .admissionControl(admissionControl) //
+            .retryPolicy(retryPolicy) //
+            .build();
+
+        api.getClient().get("/cloud/virtualdatacenters/1",
+            VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+
+        try
+        {
+            api.getClient().get("/cloud/virtualdatacenters/1",
+                VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+            fail("Request should have been rejected");
+        }
+        catch (RuntimeException ex)
+        {
+            assertTrue(ex.getCause() instanceof RequestRejectedException);
+        }
+
+        assertEquals(admissionControl.getStats().get(0).getRejectedCount(), 1);
+        assertEquals(retryPolicy.getRetryCount(), 0);
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    public void testMetricsAreRecordedPerRoute() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdc.json")));
+        server.play();
+
+        ClientMetrics metrics = ClientMetrics.create();
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .metrics(metrics) //
+            .build();
+
+        api.getClient().get("/cloud/virtualdatacenters/1",
+            VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+
+        RouteMetrics route =
+            metrics.getRoute("GET /cloud/virtualdatacenters/{id} "
+                + VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON);
+        assertEquals(route.getRequestCount(), 1);
+        assertEquals(route.getSuccessCount(), 1);
+        assertEquals(route.getBytesReceived(), payloadFromResource("vdc.json").length());
+    }
+
+    public void testCallListenerIsNotifiedOfEachPhase() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdc.json")));
+        server.play();
+
+        final List<CallEvent> events = new CopyOnWriteArrayList<CallEvent>();
+        ApiClient api = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .callListener(new CallListener()
+            {
+                @Override
+                public void onEvent(final CallEvent event)
+                {
+                    events.add(event);
+                }
+            }) //
+            .build();
+
+        api.getClient().get("/cloud/virtualdatacenters/1",
+            VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON, VirtualDatacenterDto.class);
+
+        List<CallEvent.Phase> phases = new ArrayList<CallEvent.Phase>();
+        for (CallEvent event : events)
+        {
+            phases.add(event.getPhase());
+            assertEquals(event.getCallId(), events.get(0).getCallId());
+            assertTrue(event.getTimestampNanos() >= events.get(0).getTimestampNanos());
+        }
+
+        // Test logging is enabled, so the response is read before decoding it
+        assertEquals(phases, ImmutableList.of(CallEvent.Phase.REQUEST_BUILT,
+            CallEvent.Phase.CONNECTION_ACQUIRED, CallEvent.Phase.AUTHENTICATED,
+            CallEvent.Phase.HEADERS_RECEIVED, CallEvent.Phase.BODY_READ,
+            CallEvent.Phase.RESPONSE_CHECKED, CallEvent.Phase.JSON_DECODED));
+    }
+
     public void testConnectionFailsIfSSLConfigurationMissing() throws Exception
     {
         server.useHttps(SslContextBuilder.localhost().getSocketFactory(), false);
@@ -229,6 +772,26 @@ public class RestClientTest extends BaseMockTest
             SingleResourceTransportDto.API_VERSION);
     }
 
+    public void testRequestBodiesAreSentWithContentLength() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("vdc.json")));
+        server.play();
+
+        VirtualDatacenterDto dto = new VirtualDatacenterDto();
+        RESTLink link = new RESTLink("edit", "/cloud/virtualdatacenters/1");
+        link.setType(VirtualDatacenterDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+
+        newApiClient().getClient().edit(dto);
+
+        RecordedRequest request = server.takeRequest();
+        assertNull(request.getHeader("Transfer-Encoding"));
+        assertEquals(request.getHeader("Content-Length"), String.valueOf(request.getBodySize()));
+        assertTrue(request.getBodySize() > 0);
+    }
+
     @Test(expectedExceptions = NullPointerException.class, expectedExceptionsMessageRegExp = "The given object does not have an edit/self link")
     public void testRefreshMissingLink() throws Exception
     {
@@ -424,6 +987,36 @@ public class RestClientTest extends BaseMockTest
         assertAccept(request, TaskDto.SHORT_MEDIA_TYPE_JSON, SingleResourceTransportDto.API_VERSION);
     }
 
+    public void testWaitForTaskAsyncStopsPollingWhenCancelled() throws Exception
+    {
+        TaskDto inProgress = new TaskDto();
+        inProgress.setState(TaskState.PENDING);
+
+        server.enqueue(new MockResponse().addHeader("Content-type", TaskDto.SHORT_MEDIA_TYPE_JSON)
+            .setBody(json.write(inProgress)));
+        server.enqueue(new MockResponse().addHeader("Content-type", TaskDto.SHORT_MEDIA_TYPE_JSON)
+            .setBody(json.write(inProgress)));
+        server.play();
+
+        AcceptedRequestDto<String> dto = new AcceptedRequestDto<String>();
+        RESTLink link =
+            new RESTLink("status",
+                "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1/tasks/1");
+        link.setType(TaskDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+
+        ListenableFuture<TaskDto> task =
+            newApiClient().getClient().waitForTaskAsync(dto, 200, 5000, TimeUnit.MILLISECONDS);
+
+        // Cancel the wait once the first poll has been sent, before the next one is due
+        server.takeRequest();
+        Thread.sleep(50);
+        assertTrue(task.cancel(true));
+
+        Thread.sleep(300);
+        assertEquals(server.getRequestCount(), 1);
+    }
+
     public void testWaitUntilUnlocked() throws Exception
     {
         VirtualMachineDto locked = new VirtualMachineDto();
@@ -506,6 +1099,199 @@ public class RestClientTest extends BaseMockTest
             SingleResourceTransportDto.API_VERSION);
     }
 
+    public void testWaitReachesTimeoutWhenThePollingStrategyPlansLongerDelays() throws Exception
+    {
+        TaskDto inProgress = new TaskDto();
+        inProgress.setState(TaskState.PENDING);
+
+        server.enqueue(new MockResponse().addHeader("Content-type", TaskDto.SHORT_MEDIA_TYPE_JSON)
+            .setBody(json.write(inProgress)));
+        server.play();
+
+        AcceptedRequestDto<String> dto = new AcceptedRequestDto<String>();
+        RESTLink link =
+            new RESTLink("status",
+                "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1/tasks/1");
+        link.setType(TaskDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+
+        // Plans the next poll way after the timeout
+        final PollingStrategy polling = new FixedIntervalPolling();
+        RestClient client = ApiClient.builder() //
+            .endpoint(baseUrl()) //
+            .authentication(basic(DEFAULT_USER, DEFAULT_PASS)) //
+            .pollingStrategy(new PollingStrategy()
+            {
+                @Override
+                public Schedule schedule(final Operation operation, final long pollIntervalNanos)
+                {
+                    return polling.schedule(operation, TimeUnit.MINUTES.toNanos(10));
+                }
+
+                @Override
+                public boolean usesHypervisorType()
+                {
+                    return false;
+                }
+            }).build().getClient();
+
+        ListenableFuture<TaskDto> task =
+            client.waitForTaskAsync(dto, 100, 200, TimeUnit.MILLISECONDS);
+        try
+        {
+            task.get(5, TimeUnit.SECONDS);
+            fail("Wait should have timed out");
+        }
+        catch (ExecutionException ex)
+        {
+            assertEquals(ex.getCause().getMessage(),
+                "Task did not complete in the configured timeout");
+        }
+
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    public void testWaitUntilUnlockedPollsWhenTheCompletionSourceNotifiesAChange()
+        throws Exception
+    {
+        VirtualMachineDto locked = new VirtualMachineDto();
+        locked.setState(VirtualMachineState.LOCKED);
+
+        VirtualMachineDto powerOn = new VirtualMachineDto();
+        powerOn.setState(VirtualMachineState.ON);
+
+        server.enqueue(new MockResponse().addHeader("Content-type",
+            VirtualMachineDto.SHORT_MEDIA_TYPE_JSON).setBody(json.write(locked)));
+        server.enqueue(new MockResponse().addHeader("Content-type",
+            VirtualMachineDto.SHORT_MEDIA_TYPE_JSON).setBody(json.write(powerOn)));
+        server.play();
+
+        final List<String> subscribed = new CopyOnWriteArrayList<String>();
+        final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+        CompletionSource source = new CompletionSource()
+        {
+            @Override
+            public Subscription subscribe(final String resourcePath, final Runnable listener)
+            {
+                subscribed.add(resourcePath);
+                listeners.add(listener);
+                return new Subscription()
+                {
+                    @Override
+                    public void cancel()
+                    {
+                        listeners.remove(listener);
+                    }
+                };
+            }
+        };
+
+        VirtualMachineDto dto = new VirtualMachineDto();
+        RESTLink link =
+            new RESTLink("edit",
+                "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1");
+        link.setType(VirtualMachineDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+
+        // The safety poll is longer than the test timeout, so only a notification can finish it
+        ApiClient api =
+            newApiClient().toBuilder().completionSource(source, 1, TimeUnit.MINUTES).build();
+        ListenableFuture<VirtualMachineDto> vm =
+            api.getClient().waitUntilUnlockedAsync(dto, 100, 10000, TimeUnit.MILLISECONDS);
+
+        assertEquals(subscribed,
+            ImmutableList.of("/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1"));
+
+        server.takeRequest();
+        for (Runnable listener : listeners)
+        {
+            listener.run();
+        }
+
+        assertEquals(vm.get(5, TimeUnit.SECONDS).getState(), VirtualMachineState.ON);
+        assertEquals(server.getRequestCount(), 2);
+    }
+
+    public void testWaitUntilUnlockedSendsOneRequestAtATimeWhenNotified() throws Exception
+    {
+        VirtualMachineDto locked = new VirtualMachineDto();
+        locked.setState(VirtualMachineState.LOCKED);
+        final String lockedBody = json.write(locked);
+
+        VirtualMachineDto powerOn = new VirtualMachineDto();
+        powerOn.setState(VirtualMachineState.ON);
+        final String powerOnBody = json.write(powerOn);
+
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final AtomicInteger requests = new AtomicInteger();
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request)
+            {
+                if (inFlight.incrementAndGet() > 1)
+                {
+                    overlapped.set(true);
+                }
+                Uninterruptibles.sleepUninterruptibly(20, TimeUnit.MILLISECONDS);
+                inFlight.decrementAndGet();
+
+                String body = requests.incrementAndGet() < 10 ? lockedBody : powerOnBody;
+                return new MockResponse().addHeader("Content-type",
+                    VirtualMachineDto.SHORT_MEDIA_TYPE_JSON).setBody(body);
+            }
+        });
+        server.play();
+
+        final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+        CompletionSource source = new CompletionSource()
+        {
+            @Override
+            public Subscription subscribe(final String resourcePath, final Runnable listener)
+            {
+                listeners.add(listener);
+                return new Subscription()
+                {
+                    @Override
+                    public void cancel()
+                    {
+                        listeners.remove(listener);
+                    }
+                };
+            }
+        };
+
+        VirtualMachineDto dto = new VirtualMachineDto();
+        RESTLink link =
+            new RESTLink("edit",
+                "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1");
+        link.setType(VirtualMachineDto.SHORT_MEDIA_TYPE_JSON);
+        dto.addLink(link);
+
+        // Notifications race with the scheduled polls and with the requests in flight
+        ApiClient api =
+            newApiClient().toBuilder().completionSource(source, 20, TimeUnit.MILLISECONDS)
+                .build();
+        ListenableFuture<VirtualMachineDto> vm =
+            api.getClient().waitUntilUnlockedAsync(dto, 20, 10000, TimeUnit.MILLISECONDS);
+        while (!vm.isDone())
+        {
+            for (Runnable listener : listeners)
+            {
+                listener.run();
+            }
+            Thread.sleep(1);
+        }
+
+        assertEquals(vm.get().getState(), VirtualMachineState.ON);
+        assertFalse(overlapped.get());
+
+        // No other poll chain keeps polling once the wait has finished
+        Thread.sleep(200);
+        assertEquals(server.getRequestCount(), 10);
+    }
+
     public void testQueryParametersAreURLEncoded() throws Exception
     {
         MockResponse vdcsResponse = new MockResponse() //
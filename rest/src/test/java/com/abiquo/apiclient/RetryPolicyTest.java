@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+import org.testng.annotations.Test;
+
+import com.abiquo.apiclient.domain.exception.RequestRejectedException;
+
+@Test
+public class RetryPolicyTest
+{
+    public void testTransportFailuresAreRetryable()
+    {
+        RetryPolicy policy = RetryPolicy.builder().build();
+        assertTrue(policy.isRetryable(new IOException("Connection reset")));
+        assertTrue(policy.isRetryable(new SocketTimeoutException("Read timed out")));
+    }
+
+    public void testInterruptedAndRejectedRequestsAreNotRetryable()
+    {
+        RetryPolicy policy = RetryPolicy.builder().build();
+        assertFalse(policy.isRetryable(new InterruptedIOException("Interrupted")));
+        assertFalse(policy.isRetryable(new RequestRejectedException("Rejected")));
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.domain;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+
+import org.testng.annotations.Test;
+
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+
+@Test
+public class LinkIndexTest
+{
+    public void testSearchLink()
+    {
+        VirtualMachineDto dto = new VirtualMachineDto();
+        dto.addLink(new RESTLink("edit", "http://localhost/vm"));
+        dto.addLink(new RESTLink("tasks", "http://localhost/vm/tasks"));
+        dto.addLink(new RESTLink("tasks", "http://localhost/other/tasks"));
+
+        assertEquals(LinkIndex.editLink(dto).getHref(), "http://localhost/vm");
+        assertEquals(LinkIndex.searchLink(dto, "tasks").getHref(), "http://localhost/vm/tasks");
+        assertNull(LinkIndex.searchLink(dto, "state"));
+    }
+
+    public void testIndexOfManyLinks()
+    {
+        VirtualMachineDto dto = vmWithManyLinks();
+        dto.addLink(new RESTLink("tasks", "http://localhost/other/tasks"));
+
+        assertEquals(LinkIndex.editLink(dto).getHref(), "http://localhost/vm");
+        assertEquals(LinkIndex.searchLink(dto, "tasks").getHref(), "http://localhost/vm/tasks");
+        assertEquals(LinkIndex.searchLink(dto, "link0").getHref(), "http://localhost/vm/link0");
+        assertNull(LinkIndex.searchLink(dto, "state"));
+    }
+
+    public void testIndexIsRebuiltWhenLinksChange()
+    {
+        VirtualMachineDto dto = vmWithManyLinks();
+        assertNull(LinkIndex.searchLink(dto, "state"));
+
+        dto.addLink(new RESTLink("state", "http://localhost/vm/state"));
+        assertEquals(LinkIndex.searchLink(dto, "state").getHref(), "http://localhost/vm/state");
+
+        dto.setLinks(new ArrayList<RESTLink>());
+        assertNull(LinkIndex.editLink(dto));
+    }
+
+    public void testIndexIsRebuiltWhenLinksAreReplacedWithTheSameSize()
+    {
+        VirtualMachineDto dto = vmWithManyLinks();
+        assertEquals(LinkIndex.searchLink(dto, "tasks").getHref(), "http://localhost/vm/tasks");
+
+        dto.getLinks().remove(dto.searchLink("tasks"));
+        dto.addLink(new RESTLink("state", "http://localhost/vm/state"));
+        assertNull(LinkIndex.searchLink(dto, "tasks"));
+        assertEquals(LinkIndex.searchLink(dto, "state").getHref(), "http://localhost/vm/state");
+
+        // Links modified in place are detected too
+        dto.searchLink("state").setRel("tasks");
+        assertNull(LinkIndex.searchLink(dto, "state"));
+        assertEquals(LinkIndex.searchLink(dto, "tasks").getHref(), "http://localhost/vm/state");
+
+        // Links replaced in place
+        dto.getLinks().set(0, new RESTLink("edit", "http://localhost/other"));
+        assertEquals(LinkIndex.editLink(dto).getHref(), "http://localhost/other");
+    }
+
+    private static VirtualMachineDto vmWithManyLinks()
+    {
+        VirtualMachineDto dto = new VirtualMachineDto();
+        dto.addLink(new RESTLink("edit", "http://localhost/vm"));
+        dto.addLink(new RESTLink("tasks", "http://localhost/vm/tasks"));
+        for (int i = 0; i < 20; i++)
+        {
+            dto.addLink(new RESTLink("link" + i, "http://localhost/vm/link" + i));
+        }
+        return dto;
+    }
+}
@@ -63,4 +63,31 @@ public class LinksTest
         assertEquals(copy.getType(), VirtualMachineDto.MEDIA_TYPE);
         assertEquals(copy.getTitle(), "foo");
     }
+
+    public void testWithQueryParam()
+    {
+        RESTLink link = new RESTLink("next", "http://localhost/api/vms?startwith=2&limit=2");
+        link.setType(VirtualMachineDto.MEDIA_TYPE);
+
+        RESTLink copy = Links.withQueryParam(link, "startwith", 4);
+        assertEquals(copy.getRel(), "next");
+        assertEquals(copy.getHref(), "http://localhost/api/vms?startwith=4&limit=2");
+        assertEquals(copy.getType(), VirtualMachineDto.MEDIA_TYPE);
+
+        copy = Links.withQueryParam(link, "has", "web server");
+        assertEquals(copy.getHref(),
+            "http://localhost/api/vms?startwith=2&limit=2&has=web%20server");
+
+        copy = Links.withQueryParam(new RESTLink("next", "http://localhost/api/vms"), "limit", 10);
+        assertEquals(copy.getHref(), "http://localhost/api/vms?limit=10");
+    }
+
+    public void testGetQueryParam()
+    {
+        RESTLink link = new RESTLink("next", "http://localhost/api/vms?startwithx=1&startwith=2");
+
+        assertEquals(Links.getQueryParam(link, "startwith"), "2");
+        assertNull(Links.getQueryParam(link, "limit"));
+        assertNull(Links.getQueryParam(new RESTLink("next", "http://localhost"), "limit"));
+    }
 }
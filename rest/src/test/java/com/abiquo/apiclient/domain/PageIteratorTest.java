@@ -21,15 +21,25 @@ import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.annotations.Test;
 
 import com.abiquo.apiclient.BaseMockTest;
+import com.abiquo.apiclient.domain.PageIterator.AdvancingIterable;
 import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.SingleResourceTransportDto;
 import com.abiquo.server.core.infrastructure.DatacenterDto;
 import com.abiquo.server.core.infrastructure.DatacentersDto;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
@@ -99,4 +109,261 @@ public class PageIteratorTest extends BaseMockTest
         // After reading the second page, there are no elements left
         assertFalse(it.hasNext());
     }
+
+    public void testPrefetchFetchesPagesAhead() throws Exception
+    {
+        server.play();
+
+        DatacentersDto secondPage =
+            json.read(payloadFromResource("dcs.json"), DatacentersDto.class);
+        secondPage.addLink(new RESTLink("next", baseUrl() + "/api/admin/datacenters?startwith=4"));
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", DatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(json.write(secondPage)));
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", DatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(payloadFromResource("dcs.json")));
+
+        DatacentersDto datacenters = new DatacentersDto();
+        datacenters.add(new DatacenterDto());
+        datacenters.add(new DatacenterDto());
+        datacenters.addLink(new RESTLink("next", baseUrl() + "/api/admin/datacenters?startwith=2"));
+
+        @SuppressWarnings("unchecked")
+        AdvancingIterable<DatacenterDto, DatacentersDto> iterable =
+            (AdvancingIterable<DatacenterDto, DatacentersDto>) flatten(newApiClient().getClient(),
+                datacenters);
+        Iterator<DatacenterDto> it = iterable.prefetch(2).iterator();
+
+        // Handing out the first page starts fetching the two following ones
+        assertNotNull(it.next());
+        assertRequest(server.takeRequest(), "GET", "/api/admin/datacenters?startwith=2");
+        assertRequest(server.takeRequest(), "GET", "/api/admin/datacenters?startwith=4");
+
+        int count = 1;
+        while (it.hasNext())
+        {
+            assertNotNull(it.next());
+            count++;
+        }
+
+        assertEquals(count, 6);
+        assertEquals(server.getRequestCount(), 2);
+    }
+
+    public void testParallelFetchesRemainingPagesInOrder() throws Exception
+    {
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request)
+            {
+                int start = Integer.parseInt(request.getPath().replaceAll(".*startwith=(\\d+).*",
+                    "$1"));
+                return new MockResponse() //
+                    .setHeader("Content-Type", DatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+                    .setBody(write(datacenters(start, 2, 7)));
+            }
+        });
+        server.play();
+
+        DatacentersDto datacenters = datacenters(0, 2, 7);
+        datacenters.addLink(new RESTLink("next", baseUrl()
+            + "/api/admin/datacenters?startwith=2&limit=2"));
+
+        @SuppressWarnings("unchecked")
+        AdvancingIterable<DatacenterDto, DatacentersDto> iterable =
+            (AdvancingIterable<DatacenterDto, DatacentersDto>) flatten(newApiClient().getClient(),
+                datacenters);
+
+        List<String> names = new ArrayList<String>();
+        for (DatacenterDto datacenter : iterable.parallel(2, true))
+        {
+            names.add(datacenter.getName());
+        }
+
+        assertEquals(names.size(), 7);
+        for (int i = 0; i < names.size(); i++)
+        {
+            assertEquals(names.get(i), "dc" + i);
+        }
+        assertEquals(server.getRequestCount(), 3);
+    }
+
+    public void testPagesReturnsEachPage() throws Exception
+    {
+        server.enqueue(new MockResponse() //
+            .setHeader("Content-Type", DatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+            .setBody(json.write(datacenters(2, 2, 3))));
+        server.play();
+
+        DatacentersDto datacenters = datacenters(0, 2, 3);
+        datacenters.addLink(new RESTLink("next", baseUrl()
+            + "/api/admin/datacenters?startwith=2&limit=2"));
+
+        @SuppressWarnings("unchecked")
+        AdvancingIterable<DatacenterDto, DatacentersDto> iterable =
+            (AdvancingIterable<DatacenterDto, DatacentersDto>) flatten(newApiClient().getClient(),
+                datacenters);
+
+        Iterator<DatacentersDto> pages = iterable.pages().iterator();
+        assertEquals(pages.next().getCollection().size(), 2);
+        assertEquals(server.getRequestCount(), 0);
+        assertEquals(pages.next().getCollection().size(), 1);
+        assertFalse(pages.hasNext());
+        assertEquals(server.getRequestCount(), 1);
+    }
+
+    public void testAdaptivePageSizeAdjustsTheLimit() throws Exception
+    {
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request)
+            {
+                RESTLink link = new RESTLink("next", baseUrl() + request.getPath());
+                int start = Integer.parseInt(Links.getQueryParam(link, "startwith"));
+                int limit = Integer.parseInt(Links.getQueryParam(link, "limit"));
+
+                DatacentersDto page = datacenters(start, limit, 20);
+                if (start + limit < 20)
+                {
+                    page.addLink(Links.withQueryParam(link, "startwith", start + limit));
+                }
+                return new MockResponse() //
+                    .setHeader("Content-Type", DatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+                    .setBody(write(page));
+            }
+        });
+        server.play();
+
+        DatacentersDto datacenters = datacenters(0, 2, 20);
+        datacenters.addLink(new RESTLink("next", baseUrl()
+            + "/api/admin/datacenters?startwith=2&limit=2"));
+
+        final List<Integer> limits = new ArrayList<Integer>();
+        AdaptivePageSize pageSize = AdaptivePageSize.builder() //
+            .targetPageTime(1, TimeUnit.HOURS) //
+            .limits(1, 100) //
+            .listener(new AdaptivePageSize.Listener()
+            {
+                @Override
+                public void onPageSize(final int limit, final int elements,
+                    final long latencyNanos, final long bytes)
+                {
+                    limits.add(limit);
+                }
+            }).build();
+
+        @SuppressWarnings("unchecked")
+        AdvancingIterable<DatacenterDto, DatacentersDto> iterable =
+            (AdvancingIterable<DatacenterDto, DatacentersDto>) flatten(newApiClient().getClient(),
+                datacenters);
+
+        int count = 0;
+        for (DatacenterDto datacenter : iterable.adaptivePageSize(pageSize))
+        {
+            assertEquals(datacenter.getName(), "dc" + count++);
+        }
+        assertEquals(count, 20);
+
+        // Pages grow, at most doubling their size each time, as they are fast and small
+        assertEquals(limits, ImmutableList.of(4, 8, 16, 32));
+        assertRequest(server.takeRequest(), "GET", "/api/admin/datacenters?startwith=2&limit=2");
+        assertRequest(server.takeRequest(), "GET", "/api/admin/datacenters?startwith=4&limit=4");
+        assertRequest(server.takeRequest(), "GET", "/api/admin/datacenters?startwith=8&limit=8");
+        assertRequest(server.takeRequest(), "GET",
+            "/api/admin/datacenters?startwith=16&limit=16");
+    }
+
+    public void testAdaptivePageSizeIsBoundByTheSizeOfTheResponses() throws Exception
+    {
+        final List<Long> served = new CopyOnWriteArrayList<Long>();
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request)
+            {
+                RESTLink link = new RESTLink("next", baseUrl() + request.getPath());
+                int start = Integer.parseInt(Links.getQueryParam(link, "startwith"));
+                int limit = Integer.parseInt(Links.getQueryParam(link, "limit"));
+
+                DatacentersDto page = datacenters(start, limit, 10);
+                if (start + limit < 10)
+                {
+                    page.addLink(Links.withQueryParam(link, "startwith", start + limit));
+                }
+                String body = write(page);
+                served.add((long) body.getBytes(Charsets.UTF_8).length);
+                return new MockResponse() //
+                    .setHeader("Content-Type", DatacentersDto.SHORT_MEDIA_TYPE_JSON) //
+                    .setBody(body);
+            }
+        });
+        server.play();
+
+        DatacentersDto datacenters = datacenters(0, 4, 10);
+        datacenters.addLink(new RESTLink("next", baseUrl()
+            + "/api/admin/datacenters?startwith=4&limit=4"));
+
+        final List<Integer> limits = new CopyOnWriteArrayList<Integer>();
+        final List<Long> measured = new CopyOnWriteArrayList<Long>();
+        AdaptivePageSize pageSize = AdaptivePageSize.builder() //
+            .targetPageTime(1, TimeUnit.HOURS) //
+            .maxPageBytes(1) //
+            .limits(1, 100) //
+            .listener(new AdaptivePageSize.Listener()
+            {
+                @Override
+                public void onPageSize(final int limit, final int elements,
+                    final long latencyNanos, final long bytes)
+                {
+                    limits.add(limit);
+                    measured.add(bytes);
+                }
+            }).build();
+
+        @SuppressWarnings("unchecked")
+        AdvancingIterable<DatacenterDto, DatacentersDto> iterable =
+            (AdvancingIterable<DatacenterDto, DatacentersDto>) flatten(newApiClient().getClient(),
+                datacenters);
+
+        int count = 0;
+        for (DatacenterDto datacenter : iterable.prefetch(1).adaptivePageSize(pageSize))
+        {
+            assertEquals(datacenter.getName(), "dc" + count++);
+        }
+        assertEquals(count, 10);
+
+        // Every fetched page is measured, and pages shrink as they are too big
+        assertEquals(measured, served);
+        assertEquals(limits, ImmutableList.of(2, 1));
+    }
+
+    // The dispatchers cannot throw checked exceptions
+    private String write(final Object dto)
+    {
+        try
+        {
+            return json.write(dto);
+        }
+        catch (IOException ex)
+        {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private static DatacentersDto datacenters(final int start, final int pageSize,
+        final int totalSize)
+    {
+        DatacentersDto datacenters = new DatacentersDto();
+        for (int i = start; i < Math.min(start + pageSize, totalSize); i++)
+        {
+            DatacenterDto datacenter = new DatacenterDto();
+            datacenter.setName("dc" + i);
+            datacenters.add(datacenter);
+        }
+        datacenters.setTotalSize(totalSize);
+        return datacenters;
+    }
 }
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.domain.options;
+
+import static com.abiquo.apiclient.domain.options.BaseOptions.isUrlEncoded;
+import static com.abiquo.apiclient.domain.options.BaseOptions.urlEncode;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.testng.annotations.Test;
+
+@Test
+public class BaseOptionsTest
+{
+    public void testUrlEncode()
+    {
+        assertEquals(urlEncode("vm-01_a.b"), "vm-01_a.b");
+        assertEquals(urlEncode("web server"), "web%20server");
+        assertEquals(urlEncode("a*b+c"), "a%2Ab%2Bc");
+        assertEquals(urlEncode("web%20server"), "web%20server");
+    }
+
+    public void testIsUrlEncoded()
+    {
+        assertTrue(isUrlEncoded("web%20server"));
+        assertTrue(isUrlEncoded("%2a"));
+        assertFalse(isUrlEncoded("web server"));
+        assertFalse(isUrlEncoded("100%"));
+        assertFalse(isUrlEncoded("%2g"));
+        assertFalse(isUrlEncoded("web%20\nserver"));
+    }
+
+    public void testQueryParamsAreSorted()
+    {
+        ListOptions options = ListOptions.builder().limit(10).has("foo").asc(true).build();
+        Iterator<String> keys = options.queryParams().keySet().iterator();
+
+        assertEquals(keys.next(), "asc");
+        assertEquals(keys.next(), "has");
+        assertEquals(keys.next(), "limit");
+        assertFalse(keys.hasNext());
+    }
+}
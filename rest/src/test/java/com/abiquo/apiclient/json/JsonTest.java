@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.json;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import com.abiquo.server.core.cloud.VirtualDatacenterDto;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+import com.abiquo.server.core.cloud.VirtualMachineState;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+@Test
+public class JsonTest
+{
+    public void testReadersAndWritersAreReused() throws IOException
+    {
+        Json json = new Json();
+        String payload = Resources.toString(Resources.getResource("vdc.json"), Charsets.UTF_8);
+
+        VirtualDatacenterDto first = json.read(payload, VirtualDatacenterDto.class);
+        VirtualDatacenterDto second = json.read(json.write(first), VirtualDatacenterDto.class);
+
+        assertEquals(second.getName(), first.getName());
+        assertEquals(json.write(second), json.write(first));
+    }
+
+    public void testAfterburner() throws IOException
+    {
+        Json json = Json.withAfterburner();
+        String payload = Resources.toString(Resources.getResource("vdc.json"), Charsets.UTF_8);
+
+        VirtualDatacenterDto vdc = json.read(payload, VirtualDatacenterDto.class);
+        assertEquals(vdc.getName(), "VDC");
+        assertEquals(json.write(vdc), new Json().write(vdc));
+    }
+
+    public void testReadPage() throws IOException
+    {
+        Json json = new Json();
+        byte[] payload = Resources.toByteArray(Resources.getResource("vdcs.json"));
+
+        PageParser<VirtualDatacenterDto> page =
+            json.readPage(new ByteArrayInputStream(payload), VirtualDatacenterDto.class);
+        try
+        {
+            assertTrue(page.hasNext());
+            assertEquals(page.next().getName(), "VDC");
+            assertFalse(page.hasNext());
+
+            // The fields that come after the collection are available once it has been read
+            assertEquals(page.getTotalSize(), Integer.valueOf(2));
+            assertEquals(page.getLinks().size(), 3);
+            assertEquals(page.searchLink("next").getHref(),
+                "https://localhost:443/api/cloud/virtualdatacenters?startwith=25,limit=25&by=name");
+            assertNull(page.searchLink("edit"));
+        }
+        finally
+        {
+            page.close();
+        }
+    }
+
+    public void testReadProjection() throws IOException
+    {
+        Json json = new Json();
+        byte[] payload = Resources.toByteArray(Resources.getResource("vm.json"));
+
+        VirtualMachineDto vm =
+            json.read(new ByteArrayInputStream(payload), VirtualMachineDto.class,
+                Projection.of("id", "name", "state"));
+
+        assertEquals(vm.getId(), Integer.valueOf(1));
+        assertEquals(vm.getName(), "ABQ_8986ef1e-73c5-4c9c-ab1f-eb65fbf93a46");
+        assertEquals(vm.getState(), VirtualMachineState.NOT_ALLOCATED);
+        assertNull(vm.getUuid());
+        assertNull(vm.searchLink("edit"));
+    }
+
+    public void testReadPageProjection() throws IOException
+    {
+        Json json = new Json();
+        byte[] payload = Resources.toByteArray(Resources.getResource("vdcs.json"));
+
+        PageParser<VirtualDatacenterDto> page =
+            json.readPage(new ByteArrayInputStream(payload), VirtualDatacenterDto.class,
+                Projection.of("name"));
+        try
+        {
+            VirtualDatacenterDto vdc = page.next();
+            assertEquals(vdc.getName(), "VDC");
+            assertNull(vdc.searchLink("edit"));
+            assertFalse(page.hasNext());
+
+            // The projection applies to the elements, not to the page
+            assertEquals(page.getTotalSize(), Integer.valueOf(2));
+            assertEquals(page.getLinks().size(), 3);
+        }
+        finally
+        {
+            page.close();
+        }
+    }
+}
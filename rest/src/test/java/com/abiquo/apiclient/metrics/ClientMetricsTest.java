@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+@Test
+public class ClientMetricsTest
+{
+    public void testRouteReplacesIdentifiers()
+    {
+        assertEquals(ClientMetrics.route("GET", "/cloud/virtualdatacenters/12/virtualappliances/3",
+            "application/vnd.abiquo.virtualappliance+json"),
+            "GET /cloud/virtualdatacenters/{id}/virtualappliances/{id} "
+                + "application/vnd.abiquo.virtualappliance+json");
+        assertEquals(ClientMetrics.route("DELETE",
+            "/admin/enterprises/1/users/a3c2b1d0-1234-4abc-9def-0123456789ab", null),
+            "DELETE /admin/enterprises/{id}/users/{id}");
+        assertEquals(ClientMetrics.route("GET", "/config/hypervisortypes/KVM", null),
+            "GET /config/hypervisortypes/KVM");
+    }
+
+    public void testRecord()
+    {
+        ClientMetrics metrics = ClientMetrics.create();
+        for (int i = 1; i <= 100; i++)
+        {
+            metrics.record("GET", "/cloud/locations/1", null, i == 100 ? 503 : 200,
+                TimeUnit.MILLISECONDS.toNanos(i), 0, 10);
+        }
+
+        RouteMetrics route = metrics.getRoute("GET /cloud/locations/{id}");
+        assertNotNull(route);
+        assertEquals(route.getRequestCount(), 100);
+        assertEquals(route.getSuccessCount(), 99);
+        assertEquals(route.getServerErrorCount(), 1);
+        assertEquals(route.getBytesReceived(), 1000);
+        assertEquals(route.getBytesSent(), 0);
+
+        // Percentiles have a relative error lower than 12.5%
+        long p50 = route.getLatency(50, TimeUnit.MILLISECONDS);
+        assertTrue(p50 >= 50 && p50 <= 57, "unexpected p50: " + p50);
+        assertEquals(route.getLatencyMaxMillis(), 100.0);
+    }
+
+    public void testRecordWait()
+    {
+        ClientMetrics metrics = ClientMetrics.create();
+        metrics.recordWait("AdaptivePolling", 2, TimeUnit.MILLISECONDS.toNanos(100));
+        metrics.recordWait("AdaptivePolling", 4, TimeUnit.MILLISECONDS.toNanos(300));
+
+        PollingMetrics polling = metrics.getPollingStrategy("AdaptivePolling");
+        assertNotNull(polling);
+        assertEquals(polling.getWaitCount(), 2);
+        assertEquals(polling.getPollCount(), 6);
+        assertEquals(polling.getPollsPerWait(), 3.0);
+
+        long max = polling.getOvershoot(100, TimeUnit.MILLISECONDS);
+        assertTrue(max >= 300 && max <= 338, "unexpected max overshoot: " + max);
+
+        metrics.reset();
+        assertTrue(metrics.getPollingStrategies().isEmpty());
+    }
+
+    public void testHistogramBuckets()
+    {
+        for (long value : new long[] {0, 7, 8, 9, 100, 12345, Long.MAX_VALUE / 2})
+        {
+            int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.polling;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+import com.abiquo.apiclient.polling.PollingStrategy.Schedule;
+
+@Test
+public class AdaptivePollingTest
+{
+    private static final Operation DEPLOY = Operation.of("DEPLOY", "VMX_04");
+
+    public void testPollsAtTheRequestedIntervalUntilTheDurationIsLearned()
+    {
+        AdaptivePolling polling = AdaptivePolling.builder().jitter(0).build();
+        Schedule schedule = polling.schedule(DEPLOY, MILLISECONDS.toNanos(500));
+
+        assertEquals(schedule.nextDelayNanos(1, 0), MILLISECONDS.toNanos(500));
+        assertEquals(schedule.nextDelayNanos(2, MILLISECONDS.toNanos(500)),
+            MILLISECONDS.toNanos(500));
+        assertEquals(polling.getExpectedDuration(DEPLOY, MILLISECONDS), -1);
+    }
+
+    public void testFirstPollIsPlannedNearTheExpectedDuration()
+    {
+        AdaptivePolling polling = AdaptivePolling.builder().jitter(0).build();
+        // The operation finished between the polls sent at 9 and 11 seconds
+        polling.schedule(DEPLOY, SECONDS.toNanos(1)).finished(12, SECONDS.toNanos(11),
+            SECONDS.toNanos(2));
+        assertEquals(polling.getExpectedDuration(DEPLOY, SECONDS), 10);
+
+        Schedule schedule = polling.schedule(DEPLOY, SECONDS.toNanos(1));
+        assertEquals(schedule.nextDelayNanos(1, 0), SECONDS.toNanos(9));
+    }
+
+    public void testPollsBackOffOnceTheExpectedDurationIsReached()
+    {
+        AdaptivePolling polling =
+            AdaptivePolling.builder().jitter(0).backoff(2).delays(100, 5000, MILLISECONDS)
+                .build();
+        polling.schedule(DEPLOY, SECONDS.toNanos(1)).finished(1, SECONDS.toNanos(10), 0);
+
+        Schedule schedule = polling.schedule(DEPLOY, SECONDS.toNanos(1));
+        assertEquals(schedule.nextDelayNanos(2, SECONDS.toNanos(9)), SECONDS.toNanos(1));
+        assertEquals(schedule.nextDelayNanos(3, SECONDS.toNanos(10)), SECONDS.toNanos(2));
+        assertEquals(schedule.nextDelayNanos(4, SECONDS.toNanos(12)), SECONDS.toNanos(4));
+        // Capped at the maximum delay
+        assertEquals(schedule.nextDelayNanos(5, SECONDS.toNanos(16)), SECONDS.toNanos(5));
+    }
+
+    public void testUsesTheDurationInAllHypervisorsWhenTheHypervisorIsUnknown()
+    {
+        AdaptivePolling polling = AdaptivePolling.builder().jitter(0).build();
+        polling.schedule(DEPLOY, SECONDS.toNanos(1)).finished(1, SECONDS.toNanos(10), 0);
+
+        Schedule schedule =
+            polling.schedule(Operation.of("DEPLOY", "KVM"), SECONDS.toNanos(1));
+        assertEquals(schedule.nextDelayNanos(1, 0), SECONDS.toNanos(9));
+        assertEquals(polling.getExpectedDuration(Operation.of("DEPLOY", "KVM"), SECONDS), -1);
+        assertEquals(polling.getExpectedDuration(Operation.of("DEPLOY"), SECONDS), 10);
+    }
+
+    public void testOperationsThatFinishRightAwayAreLearnedWithTheMinimumDelay()
+    {
+        AdaptivePolling polling =
+            AdaptivePolling.builder().jitter(0).delays(100, 5000, MILLISECONDS).build();
+        // The operation had already finished when the first poll was sent
+        polling.schedule(DEPLOY, SECONDS.toNanos(1)).finished(1, MILLISECONDS.toNanos(2),
+            MILLISECONDS.toNanos(2));
+        assertEquals(polling.getExpectedDuration(DEPLOY, MILLISECONDS), 100);
+
+        // The next waits do not fall back to the requested interval
+        Schedule schedule = polling.schedule(DEPLOY, SECONDS.toNanos(1));
+        assertEquals(schedule.nextDelayNanos(1, 0), MILLISECONDS.toNanos(100));
+    }
+
+    public void testExpectedDurationIsAMovingAverage()
+    {
+        AdaptivePolling polling = AdaptivePolling.builder().smoothing(0.5).build();
+        polling.schedule(DEPLOY, SECONDS.toNanos(1)).finished(1, SECONDS.toNanos(10), 0);
+        polling.schedule(DEPLOY, SECONDS.toNanos(1)).finished(1, SECONDS.toNanos(20), 0);
+
+        assertEquals(polling.getExpectedDuration(DEPLOY, SECONDS), 15);
+    }
+}
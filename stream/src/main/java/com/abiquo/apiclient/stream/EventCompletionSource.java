@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.stream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import rx.Observable;
+import rx.Subscriber;
+
+import com.abiquo.apiclient.ApiClient;
+import com.abiquo.apiclient.CompletionSource;
+import com.abiquo.event.model.Event;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * A {@link CompletionSource} that notifies the changes on the resources from the events received
+ * by a {@link StreamClient}, so the REST API client can finish the waits for deploys, undeploys
+ * and power state changes as soon as the corresponding event arrives.
+ * <p>
+ * The source subscribes to the event stream when it is built, and must be closed once the REST
+ * API clients that use it are not needed anymore:
+ * 
+ * <pre>
+ * EventCompletionSource events = EventCompletionSource.builder().stream(stream).build();
+ * ApiClient api = ApiClient.builder() //
+ *     .endpoint(&quot;http://abiquo-server/api&quot;) //
+ *     .authentication(basic(&quot;username&quot;, &quot;password&quot;)) //
+ *     .completionSource(events, 1, TimeUnit.MINUTES) //
+ *     .build();
+ * </pre>
+ * 
+ * @see ApiClient.Builder#completionSource(CompletionSource, long, java.util.concurrent.TimeUnit)
+ * @author Ignasi Barrera
+ */
+public class EventCompletionSource implements CompletionSource, Closeable
+{
+    private static final Logger LOG = Logger.getLogger("abiquo.stream");
+
+    private final SetMultimap<String, Runnable> listeners = Multimaps
+        .synchronizedSetMultimap(HashMultimap.<String, Runnable> create());
+
+    private final Predicate<Event> filter;
+
+    private final Subscriber<Event> subscriber;
+
+    // Do not use directly. Use the builder. Package-private to be used in tests.
+    EventCompletionSource(final Observable<Event> events, final Predicate<Event> filter)
+    {
+        checkNotNull(events, "events cannot be null");
+        this.filter = checkNotNull(filter, "filter cannot be null");
+
+        subscriber = new Subscriber<Event>()
+        {
+            @Override
+            public void onNext(final Event event)
+            {
+                dispatch(event);
+            }
+
+            @Override
+            public void onError(final Throwable ex)
+            {
+                // The waits fall back to the safety poll
+                LOG.log(Level.WARNING, "Error receiving events. Waits will rely on polling", ex);
+            }
+
+            @Override
+            public void onCompleted()
+            {
+                LOG.fine("Event stream completed. Waits will rely on polling");
+            }
+        };
+        events.subscribe(subscriber);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private StreamClient stream;
+
+        private Predicate<Event> filter = Predicates.alwaysTrue();
+
+        public Builder stream(final StreamClient stream)
+        {
+            this.stream = stream;
+            return this;
+        }
+
+        /**
+         * Only the events that match the given filter notify a change on their entity. All events
+         * are considered by default. Use it to ignore the events that are not fired when an
+         * operation finishes.
+         */
+        public Builder filter(final Predicate<Event> filter)
+        {
+            this.filter = filter;
+            return this;
+        }
+
+        public EventCompletionSource build() throws IOException
+        {
+            checkNotNull(stream, "stream cannot be null");
+            return new EventCompletionSource(stream.newEventStream(), filter);
+        }
+    }
+
+    @Override
+    public Subscription subscribe(final String resourcePath, final Runnable listener)
+    {
+        final String path = normalize(checkNotNull(resourcePath, "resourcePath cannot be null"));
+        checkNotNull(listener, "listener cannot be null");
+        listeners.put(path, listener);
+
+        return new Subscription()
+        {
+            @Override
+            public void cancel()
+            {
+                listeners.remove(path, listener);
+            }
+        };
+    }
+
+    private void dispatch(final Event event)
+    {
+        if (!event.getEntityIdentifier().isPresent() || !filter.apply(event))
+        {
+            return;
+        }
+
+        String path = normalize(event.getEntityIdentifier().get());
+        List<Runnable> subscribed;
+        synchronized (listeners)
+        {
+            subscribed = ImmutableList.copyOf(listeners.get(path));
+        }
+
+        for (Runnable listener : subscribed)
+        {
+            try
+            {
+                listener.run();
+            }
+            catch (RuntimeException ex)
+            {
+                LOG.log(Level.WARNING, "Error notifying event for " + path, ex);
+            }
+        }
+    }
+
+    private static String normalize(final String path)
+    {
+        return CharMatcher.is('/').trimTrailingFrom(path);
+    }
+
+    /**
+     * Stops listening to the event stream. The waits in progress fall back to polling.
+     */
+    @Override
+    public void close()
+    {
+        subscriber.unsubscribe();
+    }
+}
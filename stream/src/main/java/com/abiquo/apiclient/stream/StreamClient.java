@@ -151,8 +151,7 @@ public class StreamClient implements Closeable
                         {
                             try
                             {
-                                Event event = json.readValue(rawEvent, Event.class);
-                                subscriber.onNext(event);
+                                subscriber.onNext(parseEvent(rawEvent));
                             }
                             catch (IOException ex)
                             {
@@ -201,6 +200,12 @@ public class StreamClient implements Closeable
         return observable;
     }
 
+    // Package-private so the parsing can be measured without connecting to the server
+    Event parseEvent(final String rawEvent) throws IOException
+    {
+        return json.readValue(rawEvent, Event.class);
+    }
+
     private void subscriberGone(final Subscriber< ? super Event> subscriber)
     {
         if (subscriberCount.decrementAndGet() == 0)
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2008 Abiquo Holdings S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abiquo.apiclient.stream;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import rx.subjects.PublishSubject;
+
+import com.abiquo.apiclient.CompletionSource.Subscription;
+import com.abiquo.event.model.Event;
+import com.google.common.base.Predicates;
+
+@Test
+public class EventCompletionSourceTest
+{
+    private static final String VM =
+        "/cloud/virtualdatacenters/1/virtualappliances/1/virtualmachines/1";
+
+    private StreamClient stream;
+
+    private PublishSubject<Event> events;
+
+    @BeforeMethod
+    protected void setup()
+    {
+        // The client is only used to parse the events and is never connected
+        stream = StreamClient.builder() //
+            .endpoint("http://localhost/m/stream") //
+            .credentials("user", "password") //
+            .build();
+        events = PublishSubject.create();
+    }
+
+    public void testDispatchesEventsToTheSubscribedPath() throws IOException
+    {
+        EventCompletionSource source =
+            new EventCompletionSource(events, Predicates.<Event> alwaysTrue());
+        Counter vm = new Counter();
+        Counter other = new Counter();
+        source.subscribe(VM, vm);
+        source.subscribe(VM.replace("virtualmachines/1", "virtualmachines/2"), other);
+
+        events.onNext(event("DEPLOY", VM));
+
+        assertEquals(vm.count.get(), 1);
+        assertEquals(other.count.get(), 0);
+    }
+
+    public void testIgnoresTrailingSlashes() throws IOException
+    {
+        EventCompletionSource source =
+            new EventCompletionSource(events, Predicates.<Event> alwaysTrue());
+        Counter vm = new Counter();
+        source.subscribe(VM + "/", vm);
+
+        events.onNext(event("DEPLOY", VM));
+
+        assertEquals(vm.count.get(), 1);
+    }
+
+    public void testDoesNotDispatchFilteredEvents() throws IOException
+    {
+        EventCompletionSource source =
+            new EventCompletionSource(events, Predicates.<Event> alwaysFalse());
+        Counter vm = new Counter();
+        source.subscribe(VM, vm);
+
+        events.onNext(event("DEPLOY", VM));
+
+        assertEquals(vm.count.get(), 0);
+    }
+
+    public void testDoesNotDispatchToCancelledSubscriptions() throws IOException
+    {
+        EventCompletionSource source =
+            new EventCompletionSource(events, Predicates.<Event> alwaysTrue());
+        Counter vm = new Counter();
+        Subscription subscription = source.subscribe(VM, vm);
+
+        events.onNext(event("DEPLOY", VM));
+        subscription.cancel();
+        events.onNext(event("UNDEPLOY", VM));
+
+        assertEquals(vm.count.get(), 1);
+    }
+
+    public void testDoesNotDispatchOnceClosed() throws IOException
+    {
+        EventCompletionSource source =
+            new EventCompletionSource(events, Predicates.<Event> alwaysTrue());
+        Counter vm = new Counter();
+        source.subscribe(VM, vm);
+
+        source.close();
+        events.onNext(event("DEPLOY", VM));
+
+        assertEquals(vm.count.get(), 0);
+    }
+
+    private Event event(final String action, final String entityIdentifier) throws IOException
+    {
+        return stream.parseEvent("{\"timestamp\":1427716530000,"
+            + "\"user\":\"/admin/enterprises/1/users/1\",\"enterprise\":\"/admin/enterprises/1\","
+            + "\"severity\":\"INFO\",\"action\":\"" + action + "\",\"type\":\"VIRTUAL_MACHINE\","
+            + "\"entityIdentifier\":\"" + entityIdentifier + "\"}");
+    }
+
+    private static class Counter implements Runnable
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void run()
+        {
+            count.incrementAndGet();
+        }
+    }
+}